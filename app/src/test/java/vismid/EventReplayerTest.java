@@ -0,0 +1,96 @@
+package vismid;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sound.midi.ShortMessage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that an EventReplayer sends the messages of a log back
+ * in the order and on the ports they were recorded
+ */
+class EventReplayerTest
+{
+	@TempDir
+	Path dir;
+
+	@Test
+	void replaySendsMessagesBackInOrderOnTheirPorts() throws Exception
+	{
+		File recorded = dir.resolve("recorded.vmrl").toFile();
+		try(EventRecorder recorder = new EventRecorder(recorded))
+		{
+			for(int i = 0; i < 200; i++)
+			{
+				int command = i % 3 == 0 ? ShortMessage.NOTE_OFF : ShortMessage.NOTE_ON;
+				recorder.record(i * 7 % 4, new ShortMessage(command, i % 16, i % 128, i % 3 == 0 ? 0 : 100));
+				if(i % 50 == 0)
+					Thread.sleep(2);
+			}
+		}
+
+		EventReplayer replayer = new EventReplayer(recorded);
+		assertEquals(200, replayer.getRecordCount());
+		assertEquals(4, replayer.getPortCount());
+
+		//Record the replay as the Signaler receives it
+		for(double speed: new double[] { 10, EventReplayer.AS_FAST_AS_POSSIBLE })
+		{
+			File replayed = dir.resolve("replayed-" + speed + ".vmrl").toFile();
+			Signaler signaler = new Signaler();
+			try(EventRecorder recorder = new EventRecorder(replayed))
+			{
+				signaler.setRecorder(recorder);
+				assertEquals(200, replayer.replay(signaler, speed));
+				signaler.setRecorder(null);
+			}
+			assertEquals(messages(recorded), messages(replayed), "At speed " + speed);
+		}
+
+		//Replayed on the calling thread, there is no thread to wait for
+		replayer.stop();
+	}
+
+	@Test
+	void replayKeepsTheRecordedTimes() throws Exception
+	{
+		File recorded = dir.resolve("timed.vmrl").toFile();
+		try(EventRecorder recorder = new EventRecorder(recorded))
+		{
+			recorder.record(0, new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100));
+			Thread.sleep(50);
+			recorder.record(1, new ShortMessage(ShortMessage.NOTE_OFF, 0, 60, 0));
+		}
+
+		//Sent no sooner than recorded, however parking returns
+		EventReplayer replayer = new EventReplayer(recorded);
+		EventReplayer.Cursor c = replayer.cursor();
+		c.next();
+		long first = c.getNanos();
+		c.next();
+		long gap = c.getNanos() - first;
+		long start = System.nanoTime();
+		replayer.replay(new Signaler(), 1);
+		assertTrue(System.nanoTime() - start >= gap);
+	}
+
+	/**
+	 * @return the messages of a log as "port status data1 data2"
+	 */
+	private static List<String> messages(File log) throws Exception
+	{
+		List<String> messages = new ArrayList<>();
+		EventReplayer.Cursor c = new EventReplayer(log).cursor();
+		while(c.next())
+			messages.add(c.getPort() + " " + c.getStatus() + " " + c.getData1() + " " + c.getData2());
+		return messages;
+	}
+}
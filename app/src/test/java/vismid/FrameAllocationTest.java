@@ -0,0 +1,223 @@
+package vismid;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.Set;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.ShortMessage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that frames of the Canvas, with the 16 channel groups set up by
+ * Main and notes received every frame, stay within an allocation budget
+ * once warmed up. Allocations are measured with
+ * ThreadMXBean.getThreadAllocatedBytes on the rendering thread and on the
+ * workers of the ForkJoinPool tiles are drawn on, so that garbage creeping
+ * back into the signal, update and draw path fails the build.
+ */
+class FrameAllocationTest
+{
+	//Most bytes a frame may allocate on average. Java2D copies the
+	//transform of the graphical context for every Canvas once per frame
+	private static final long BUDGET_BYTES_PER_FRAME = 256;
+
+	//Frames run before measuring, so that sprites are cached and
+	//the path is compiled, and frames measured
+	private static final int WARMUP_FRAMES = 2000;
+	private static final int MEASURED_FRAMES = 500;
+
+	private static final int NOTES_PER_FRAME = 8;
+	private static final int SIZE = 400;
+
+	//Simulated time between frames, about 144 fps
+	private static final long FRAME_NANOS = 7_000_000L;
+
+	private com.sun.management.ThreadMXBean threads =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	private Signaler signaler;
+	private Canvas canvas;
+	private BufferedImage image;
+	private Graphics2D g2d;
+	private ShortMessage[] messages;
+	private int next;
+	private long time;
+
+	@BeforeEach
+	void setup() throws InvalidMidiDataException
+	{
+		signaler = new Signaler();
+		canvas = new Canvas(signaler);
+		canvas.setSize(SIZE, SIZE);
+		Main.setupChannelResponders(canvas, signaler);
+		image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_RGB);
+		g2d = image.createGraphics();
+
+		Random random = new Random(42);
+		messages = new ShortMessage[256];
+		for(int i = 0; i < messages.length; i++)
+		{
+			int command = i % 2 == 0 ? ShortMessage.NOTE_ON : ShortMessage.NOTE_OFF;
+			messages[i] = new ShortMessage(command, random.nextInt(16), 36 + random.nextInt(60), 100);
+		}
+	}
+
+	@AfterEach
+	void tearDown()
+	{
+		canvas.setRenderThreads(1);
+		g2d.dispose();
+	}
+
+	@Test
+	void signalingAndUpdatingStaysWithinBudget()
+	{
+		assertWithinBudget(() ->
+		{
+			receiveNotes();
+			canvas.advance(time += FRAME_NANOS, SIZE, SIZE);
+		});
+	}
+
+	@Test
+	void fullFrameStaysWithinBudget()
+	{
+		assertWithinBudget(() ->
+		{
+			receiveNotes();
+			canvas.render(g2d, SIZE, SIZE, time += FRAME_NANOS);
+		});
+	}
+
+	@Test
+	void damagedFrameStaysWithinBudget()
+	{
+		assertWithinBudget(() ->
+		{
+			receiveNotes();
+			canvas.advance(time += FRAME_NANOS, SIZE, SIZE);
+			canvas.drawDamage(g2d, SIZE, SIZE);
+		});
+	}
+
+	@Test
+	void tiledFrameStaysWithinBudget()
+	{
+		canvas.setRenderThreads(4);
+		assertWithinBudget(() ->
+		{
+			receiveNotes();
+			canvas.render(g2d, SIZE, SIZE, time += FRAME_NANOS);
+		});
+	}
+
+	@Test
+	void governedFrameStaysWithinBudget()
+	{
+		canvas.getMetrics().setTargetInterval(FRAME_NANOS);
+		canvas.setQualityGovernor(new QualityGovernor());
+		assertWithinBudget(() ->
+		{
+			receiveNotes();
+			canvas.render(g2d, SIZE, SIZE, time += FRAME_NANOS);
+		});
+	}
+
+	@Test
+	void sharedSimulationStaysWithinBudget()
+	{
+		//A tick drawn by two views, the snapshots
+		//going back to the pool once both are done
+		Simulation simulation = new Simulation(signaler);
+		Main.setupChannelResponders(new Canvas(simulation), signaler);
+		Canvas first = new Canvas(simulation);
+		Canvas second = new Canvas(simulation);
+		assertWithinBudget(() ->
+		{
+			receiveNotes();
+			simulation.advance(time += FRAME_NANOS);
+			first.render(g2d, SIZE, SIZE, time);
+			second.render(g2d, SIZE, SIZE, time);
+		});
+	}
+
+	@Test
+	void recordedSignalingStaysWithinBudget(@TempDir Path dir) throws IOException
+	{
+		//Every received message appended to the log,
+		//which then replays all of them
+		File log = dir.resolve("events.log").toFile();
+		EventRecorder recorder = new EventRecorder(log);
+		signaler.setRecorder(recorder);
+		assertWithinBudget(() ->
+		{
+			receiveNotes();
+			canvas.advance(time += FRAME_NANOS, SIZE, SIZE);
+		});
+		signaler.setRecorder(null);
+		recorder.close();
+
+		EventReplayer replayer = new EventReplayer(log);
+		assertEquals(recorder.getRecorded(), replayer.getRecordCount());
+		assertEquals((WARMUP_FRAMES + MEASURED_FRAMES) * NOTES_PER_FRAME, replayer.getRecordCount());
+		assertEquals(replayer.getRecordCount(), replayer.replay(new Signaler(), EventReplayer.AS_FAST_AS_POSSIBLE));
+	}
+
+	/**
+	 * Runs frames until warmed up, then fails if the measured
+	 * frames allocate more than the budget on average
+	 */
+	private void assertWithinBudget(Runnable frame)
+	{
+		for(int i = 0; i < WARMUP_FRAMES; i++)
+			frame.run();
+
+		long[] ids = renderThreads();
+		long[] before = threads.getThreadAllocatedBytes(ids);
+		for(int i = 0; i < MEASURED_FRAMES; i++)
+			frame.run();
+		long[] after = threads.getThreadAllocatedBytes(ids);
+
+		//Threads that ended meanwhile report -1 and are left out
+		long allocated = 0;
+		for(int i = 0; i < ids.length; i++)
+			if(before[i] >= 0 && after[i] >= 0)
+				allocated += after[i] - before[i];
+		long perFrame = allocated / MEASURED_FRAMES;
+
+		assertTrue(perFrame <= BUDGET_BYTES_PER_FRAME,
+				"A frame allocated " + perFrame + " bytes, the budget is " + BUDGET_BYTES_PER_FRAME);
+	}
+
+	/**
+	 * @return the ids of the current thread and of the workers of
+	 * ForkJoinPools created by TileRenderer, which the default thread
+	 * factory names ForkJoinPool-pool-worker-thread
+	 */
+	private static long[] renderThreads()
+	{
+		Set<Thread> all = Thread.getAllStackTraces().keySet();
+		return all.stream()
+				.filter(t -> t == Thread.currentThread() || t.getName().matches("ForkJoinPool-\\d+-worker-\\d+"))
+				.mapToLong(Thread::getId)
+				.toArray();
+	}
+
+	private void receiveNotes()
+	{
+		for(int i = 0; i < NOTES_PER_FRAME; i++)
+			signaler.send(messages[next++ & messages.length - 1], -1);
+	}
+}
@@ -0,0 +1,204 @@
+package vismid;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks the events a MappedMidiFile.Cursor gives out for Standard MIDI
+ * Files written byte by byte, including files cut short.
+ */
+class MappedMidiFileTest
+{
+	private static final int RESOLUTION = 480;
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void runningStatusContinuesTheLastStatus() throws Exception
+	{
+		File file = write(track(
+				0, 0x90, 60, 100,
+				10, 62, 100,
+				10, 60, 0,
+				0, 0xC1, 5,
+				10, 7,
+				0, 0xFF, 0x2F, 0));
+		assertEquals(List.of(
+				"0 90 60 100",
+				"10 90 62 100",
+				"20 90 60 0",
+				"20 c1 5 0",
+				"30 c1 7 0"), events(file));
+	}
+
+	@Test
+	void systemExclusiveAndMetaEventsAreSkipped() throws Exception
+	{
+		File file = write(track(
+				0, 0xF0, 3, 0x7E, 0x7F, 0xF7,
+				5, 0xFF, 0x01, 4, 't', 'e', 'x', 't',
+				5, 0x91, 64, 90,
+				0, 0xF7, 1, 0x00,
+				5, 0x91, 65, 90,
+				0, 0xFF, 0x2F, 0));
+		assertEquals(List.of(
+				"10 91 64 90",
+				"15 91 65 90"), events(file));
+	}
+
+	@Test
+	void tempoChangesApplyFromTheirTick() throws Exception
+	{
+		//The default 120 bpm, then twice as fast from the second
+		//beat. A beat of 480 ticks is 0x83 0x60 as a delta time
+		File file = write(track(
+				0, 0x90, 60, 100,
+				0x83, 0x60, 0xFF, 0x51, 3, 0x03, 0xD0, 0x90,
+				0, 0x90, 61, 100,
+				0x83, 0x60, 0x90, 62, 100,
+				0, 0xFF, 0x2F, 0));
+		MappedMidiFile.Cursor c = new MappedMidiFile(file).cursor();
+		long[] micros = new long[3];
+		for(int i = 0; i < micros.length; i++)
+		{
+			c.next();
+			micros[i] = c.getMicros();
+		}
+		assertFalse(c.next());
+		assertEquals(0, micros[0]);
+		assertEquals(500_000, micros[1]);
+		assertEquals(750_000, micros[2]);
+	}
+
+	@Test
+	void tracksAreMergedInTickThenTrackOrder() throws Exception
+	{
+		File file = write(
+				track(0, 0x90, 1, 1, 10, 0x90, 4, 1, 20, 0x90, 7, 1),
+				track(5, 0x91, 2, 1, 5, 0x91, 5, 1, 20, 0x91, 8, 1),
+				track(5, 0x92, 3, 1, 10, 0x92, 6, 1, 0, 0x92, 9, 1));
+		assertEquals(List.of(
+				"0 90 1 1",
+				"5 91 2 1",
+				"5 92 3 1",
+				"10 90 4 1",
+				"10 91 5 1",
+				"15 92 6 1",
+				"15 92 9 1",
+				"30 90 7 1",
+				"30 91 8 1"), events(file));
+	}
+
+	@Test
+	void truncatedTrackEndsWhereItsDataEnds() throws Exception
+	{
+		byte[] whole = bytes(track(
+				0, 0x90, 60, 100,
+				10, 0x90, 62, 100));
+
+		//Cut the file within the last message
+		byte[] cut = new byte[whole.length - 1];
+		System.arraycopy(whole, 0, cut, 0, cut.length);
+		File file = dir.resolve("cut.mid").toFile();
+		Files.write(file.toPath(), cut);
+		assertEquals(List.of("0 90 60 100"), events(file));
+	}
+
+	@Test
+	void truncatedMetaEventEndsTheTrack() throws Exception
+	{
+		//A text event claiming more bytes than the track holds
+		File file = write(track(
+				0, 0x90, 60, 100,
+				0, 0xFF, 0x01, 100, 'a'),
+				track(5, 0x91, 61, 100));
+		assertEquals(List.of("0 90 60 100", "5 91 61 100"), events(file));
+	}
+
+	@Test
+	void chunksAreReadAcrossWindows() throws Exception
+	{
+		File file = write(
+				track(0, 0x90, 60, 100, 10, 62, 100, 0, 0xFF, 0x51, 3, 0x03, 0xD0, 0x90, 10, 0x80, 60, 0),
+				track(0, 0xF0, 3, 1, 2, 3, 15, 0x91, 70, 80));
+		List<String> whole = events(new MappedMidiFile(file));
+		for(int window = 1; window <= 7; window++)
+			assertEquals(whole, events(new MappedMidiFile(file, window)), "Window of " + window + " bytes");
+	}
+
+	/**
+	 * @return the bytes of a track chunk holding the given event bytes
+	 */
+	private static int[] track(int... events)
+	{
+		return events;
+	}
+
+	private File write(int[]... tracks) throws IOException
+	{
+		File file = Files.createTempFile(dir, "test", ".mid").toFile();
+		Files.write(file.toPath(), bytes(tracks));
+		return file;
+	}
+
+	private static byte[] bytes(int[]... tracks)
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeInt(out, 0x4D546864);
+		writeInt(out, 6);
+		writeShort(out, 1);
+		writeShort(out, tracks.length);
+		writeShort(out, RESOLUTION);
+		for(int[] track: tracks)
+		{
+			writeInt(out, 0x4D54726B);
+			writeInt(out, track.length);
+			for(int b: track)
+				out.write(b);
+		}
+		return out.toByteArray();
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int value)
+	{
+		writeShort(out, value >>> 16);
+		writeShort(out, value);
+	}
+
+	private static void writeShort(ByteArrayOutputStream out, int value)
+	{
+		out.write(value >>> 8);
+		out.write(value);
+	}
+
+	private static List<String> events(File file) throws IOException, InvalidMidiDataException
+	{
+		return events(new MappedMidiFile(file));
+	}
+
+	/**
+	 * @return every event of a file as "tick status data1 data2"
+	 */
+	private static List<String> events(MappedMidiFile midi)
+	{
+		List<String> events = new ArrayList<>();
+		MappedMidiFile.Cursor c = midi.cursor();
+		while(c.next())
+			events.add(c.getTick() + " " + Integer.toHexString(c.getStatus()) + " " + c.getData1() + " " + c.getData2());
+		return events;
+	}
+}
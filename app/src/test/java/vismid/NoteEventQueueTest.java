@@ -0,0 +1,174 @@
+package vismid;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sound.midi.ShortMessage;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that a NoteEventQueue hands events over in order, and what
+ * it does with events offered while full under each OverflowPolicy
+ */
+class NoteEventQueueTest
+{
+	private static final int ON = ShortMessage.NOTE_ON;
+	private static final int OFF = ShortMessage.NOTE_OFF;
+
+	@Test
+	void capacityIsRoundedUpToAPowerOfTwo()
+	{
+		assertEquals(2, new NoteEventQueue(1).capacity());
+		assertEquals(8, new NoteEventQueue(5).capacity());
+		assertEquals(8, new NoteEventQueue(8).capacity());
+		assertEquals(16, new NoteEventQueue(9).capacity());
+	}
+
+	@Test
+	void eventsKeepTheirOrderAcrossWraparound()
+	{
+		//Drains of every size move the slots around the ring many times
+		NoteEventQueue queue = new NoteEventQueue(8);
+		int offered = 0;
+		int drained = 0;
+		for(int round = 0; round < 100; round++)
+		{
+			int batch = round % 9;
+			for(int n = 0; n < batch; n++)
+				assertTrue(queue.offer(n % 16, ON, offered & 127, 100, offered++));
+			assertEquals(batch, queue.size());
+			long[] expected = { drained };
+			int count = queue.drain((channel, command, note, velocity, timeStamp) ->
+			{
+				assertEquals(expected[0]++, timeStamp);
+				assertEquals(timeStamp & 127, note);
+			});
+			assertEquals(batch, count);
+			drained += count;
+			assertEquals(0, queue.size());
+		}
+		assertEquals(offered, drained);
+		assertEquals(0, queue.dropped());
+	}
+
+	@Test
+	void eventsKeepTheirOrderAcrossThreads() throws Exception
+	{
+		NoteEventQueue queue = new NoteEventQueue(64, NoteEventQueue.OverflowPolicy.BLOCK);
+		int total = 200_000;
+		Thread producer = new Thread(() ->
+		{
+			for(int n = 0; n < total; n++)
+				queue.offer(n & 15, ON, n & 127, 100, n);
+		});
+		producer.start();
+		long[] next = { 0 };
+		while(next[0] < total && queue.dropped() == 0)
+			queue.drain((channel, command, note, velocity, timeStamp) ->
+			{
+				assertEquals(next[0]++, timeStamp);
+				assertEquals(timeStamp & 15, channel);
+			});
+		producer.join();
+		assertEquals(0, queue.dropped());
+		assertEquals(total, next[0]);
+	}
+
+	@Test
+	void dropNewestKeepsTheEventsQueuedFirst()
+	{
+		NoteEventQueue queue = new NoteEventQueue(4, NoteEventQueue.OverflowPolicy.DROP_NEWEST);
+		for(int note = 0; note < 6; note++)
+			assertEquals(note < 4, queue.offer(0, ON, note, 100, note));
+		assertEquals(2, queue.dropped());
+		assertEquals(List.of("0 on 0", "0 on 1", "0 on 2", "0 on 3"), drain(queue));
+	}
+
+	@Test
+	void dropOldestKeepsTheEventsQueuedLast()
+	{
+		NoteEventQueue queue = new NoteEventQueue(4, NoteEventQueue.OverflowPolicy.DROP_OLDEST);
+		for(int note = 0; note < 6; note++)
+			assertTrue(queue.offer(0, ON, note, 100, note));
+
+		//The oldest slot left is the next to be written over, so the
+		//consumer cannot tell whether it is whole and gives it up too
+		assertEquals(List.of("0 on 3", "0 on 4", "0 on 5"), drain(queue));
+		assertEquals(3, queue.dropped());
+	}
+
+	@Test
+	void mergeKeepsTheLastStateOfEachNote()
+	{
+		NoteEventQueue queue = new NoteEventQueue(2, NoteEventQueue.OverflowPolicy.MERGE);
+		queue.offer(0, ON, 1, 100, 0);
+		queue.offer(0, ON, 2, 100, 0);
+
+		//Went off then on, on then off, and on again louder
+		assertFalse(queue.offer(3, OFF, 60, 0, 0));
+		assertFalse(queue.offer(5, ON, 40, 70, 0));
+		assertFalse(queue.offer(3, ON, 60, 90, 0));
+		assertFalse(queue.offer(5, OFF, 40, 0, 0));
+		assertFalse(queue.offer(0, ON, 64, 50, 0));
+		assertFalse(queue.offer(0, ON, 64, 80, 0));
+		assertEquals(0, queue.dropped());
+		assertEquals(List.of(
+				"0 on 1", "0 on 2",
+				"3 on 60 at 90", "5 off 40", "0 on 64 at 80"), drain(queue));
+
+		//The summary starts over once drained
+		assertEquals(List.of(), drain(queue));
+		queue.offer(0, ON, 1, 100, 0);
+		queue.offer(0, ON, 2, 100, 0);
+		queue.offer(3, OFF, 60, 0, 0);
+		assertEquals(List.of("0 on 1", "0 on 2", "3 off 60"), drain(queue));
+	}
+
+	@Test
+	void blockWaitsForTheConsumer() throws Exception
+	{
+		NoteEventQueue queue = new NoteEventQueue(2, NoteEventQueue.OverflowPolicy.BLOCK);
+		queue.offer(0, ON, 1, 100, 0);
+		queue.offer(0, ON, 2, 100, 0);
+
+		//With no consumer, the producer gives up after waiting
+		long start = System.nanoTime();
+		assertFalse(queue.offer(0, ON, 3, 100, 0));
+		assertTrue(System.nanoTime() - start >= NoteEventQueue.MAX_BLOCK_NANOS);
+		assertEquals(1, queue.dropped());
+
+		//With one, every event gets through in order
+		List<String> received = new ArrayList<>();
+		Thread consumer = new Thread(() ->
+		{
+			while(received.size() < 2 + 50)
+				received.addAll(drain(queue));
+		});
+		consumer.start();
+		for(int note = 10; note < 60; note++)
+			assertTrue(queue.offer(0, ON, note, 100, 0));
+		consumer.join();
+		assertEquals(1, queue.dropped());
+		assertEquals("0 on 1", received.get(0));
+		for(int note = 10; note < 60; note++)
+			assertEquals("0 on " + note, received.get(note - 8));
+	}
+
+	/**
+	 * @return the events drained as "channel on|off note", with
+	 * " at velocity" for notes on at another velocity than 100
+	 */
+	static List<String> drain(NoteEventQueue queue)
+	{
+		List<String> events = new ArrayList<>();
+		queue.drain((channel, command, note, velocity, timeStamp) ->
+				events.add(channel + (command == ON && velocity != 0 ? " on " : " off ") + note
+						+ (command == ON && velocity != 100 ? " at " + velocity : "")));
+		return events;
+	}
+}
@@ -0,0 +1,125 @@
+package vismid;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the notes a NoteTimeline finds sounding against a rescan of
+ * every event from the start of the song
+ */
+class NoteTimelineTest
+{
+	@Test
+	void activeNotesMatchAFullRescanAfterSeeks() throws Exception
+	{
+		Random random = new Random(42);
+		NoteTimeline timeline = new NoteTimeline(randomSequence(random));
+		long[] active = new long[2];
+		for(int c = 0; c < 3; c++)
+			assertEquals(3000, timeline.size(c), "Channel " + c);
+
+		//Jump back and forth, over and between checkpoints,
+		//onto events and between them, and past either end
+		long length = timeline.getLengthMicros();
+		for(int seek = 0; seek < 2000; seek++)
+		{
+			int channel = random.nextInt(4);
+			long time;
+			switch(seek % 4)
+			{
+				case 0:
+					time = random.nextLong(-1000, length + 1000);
+					break;
+				case 1:
+					int size = timeline.size(channel);
+					time = size == 0 ? 0 : timeline.getMicros(channel, random.nextInt(size));
+					break;
+				case 2:
+					time = seek % 8 == 2 ? -1 : length + 1;
+					break;
+				default:
+					time = random.nextLong(length / 3);
+			}
+			timeline.getActiveNotes(channel, time, active);
+			assertArrayEquals(rescan(timeline, channel, time), active, "Channel " + channel + " at " + time);
+		}
+	}
+
+	@Test
+	void seekFindsTheFirstEventAfterATime() throws Exception
+	{
+		NoteTimeline timeline = new NoteTimeline(randomSequence(new Random(7)));
+		for(int i = 0; i < timeline.size(0); i += 97)
+		{
+			long time = timeline.getMicros(0, i);
+			int found = timeline.seek(0, time);
+			assertEquals(time, timeline.getMicros(0, found - 1));
+			if(found < timeline.size(0))
+				assertTrue(timeline.getMicros(0, found) > time);
+		}
+		assertEquals(0, timeline.seek(0, -1));
+		assertEquals(timeline.size(0), timeline.seek(0, Long.MAX_VALUE));
+	}
+
+	/**
+	 * @return the notes of a channel sounding at a time, replaying
+	 * every event of the channel up to it
+	 */
+	private static long[] rescan(NoteTimeline timeline, int channel, long time)
+	{
+		long[] active = new long[2];
+		for(int i = 0; i < timeline.size(channel) && timeline.getMicros(channel, i) <= time; i++)
+		{
+			int note = timeline.getNote(channel, i);
+			if(timeline.isOn(channel, i))
+				active[note >> 6] |= 1L << note;
+			else
+				active[note >> 6] &= ~(1L << note);
+		}
+		return active;
+	}
+
+	/**
+	 * @return a sequence of three tracks, each holding 1000 notes on
+	 * each of the channels 0 to 2 at shared ticks, and several tempo
+	 * changes
+	 */
+	private static Sequence randomSequence(Random random) throws Exception
+	{
+		Sequence sequence = new Sequence(Sequence.PPQ, 480);
+		Track tempo = sequence.createTrack();
+		for(int t = 0; t < 5; t++)
+		{
+			int mpq = 300_000 + random.nextInt(400_000);
+			byte[] data = { (byte) (mpq >> 16), (byte) (mpq >> 8), (byte) mpq };
+			tempo.add(new MidiEvent(new MetaMessage(0x51, data, 3), t * 20_000L));
+		}
+		for(int t = 0; t < 3; t++)
+		{
+			Track track = sequence.createTrack();
+			for(int n = 0; n < 3000; n++)
+			{
+				int channel = n % 3;
+				long tick = random.nextInt(100_000) / 10 * 10;
+				int note = random.nextInt(128);
+				int command = random.nextBoolean() ? ShortMessage.NOTE_ON : ShortMessage.NOTE_OFF;
+
+				//Note ons of no velocity end their note
+				int velocity = command == ShortMessage.NOTE_ON && random.nextInt(4) > 0 ? 1 + random.nextInt(127) : 0;
+				track.add(new MidiEvent(new ShortMessage(command, channel, note, velocity), tick));
+			}
+		}
+		return sequence;
+	}
+}
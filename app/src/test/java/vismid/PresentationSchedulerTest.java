@@ -0,0 +1,104 @@
+package vismid;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks how a PresentationScheduler holds notes and follows a timeline
+ */
+class PresentationSchedulerTest
+{
+	@Test
+	void heldNotesAreCappedByTheOverflowPolicy()
+	{
+		assertEquals(List.of(4, 5, 6, 7), holdTen(NoteEventQueue.OverflowPolicy.DROP_NEWEST, null));
+		assertEquals(List.of(10, 11, 12, 13), holdTen(NoteEventQueue.OverflowPolicy.DROP_OLDEST, null));
+
+		//Notes making room are passed on early, before those due
+		List<Integer> early = new ArrayList<>();
+		assertEquals(List.of(10, 11, 12, 13), holdTen(NoteEventQueue.OverflowPolicy.MERGE, early));
+		assertEquals(List.of(4, 5, 6, 7, 8, 9), early);
+	}
+
+	/**
+	 * Holds notes 4 to 13 in a scheduler holding at most 4
+	 * @return the notes released once all are due
+	 */
+	private static List<Integer> holdTen(NoteEventQueue.OverflowPolicy policy, List<Integer> early)
+	{
+		PresentationScheduler scheduler = new PresentationScheduler(4, policy,
+				early == null ? null : (channel, command, note, velocity, time) -> early.add(note));
+		for(int note = 4; note < 14; note++)
+			scheduler.hold(0, ShortMessage.NOTE_ON, note, 100, note);
+		assertEquals(4, scheduler.size());
+		assertEquals(early == null ? 6 : 0, scheduler.dropped());
+
+		List<Integer> released = new ArrayList<>();
+		int count = scheduler.release(Long.MAX_VALUE / 2, (channel, command, note, velocity, time) -> released.add(note));
+		assertEquals(4 + (early == null ? 0 : 6), count);
+		return released;
+	}
+
+	@Test
+	void heldNotesKeepTheirOrderAcrossTheRing()
+	{
+		PresentationScheduler scheduler = new PresentationScheduler();
+		List<Integer> released = new ArrayList<>();
+		int next = 0;
+
+		//Hold more than the initial room while releasing some,
+		//so the held notes wrap around and grow
+		for(int round = 0; round < 20; round++)
+		{
+			for(int n = 0; n < 300; n++, next++)
+				scheduler.hold(0, ShortMessage.NOTE_ON, next & 127, 100, next);
+			scheduler.release(next - 200, (channel, command, note, velocity, time) -> released.add((int) time));
+		}
+		scheduler.release(Long.MAX_VALUE / 2, (channel, command, note, velocity, time) -> released.add((int) time));
+		assertEquals(next, released.size());
+		for(int i = 0; i < next; i++)
+			assertEquals(i, released.get(i));
+	}
+
+	@Test
+	void forwardJumpSkipsTheNotesJumpedOver() throws Exception
+	{
+		//A note every 10 ms for 10 s, at the default 120 bpm
+		Sequence sequence = new Sequence(Sequence.PPQ, 480);
+		Track track = sequence.createTrack();
+		for(int n = 0; n < 1000; n++)
+			track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, n & 127, 100), n * 480 / 50));
+		NoteTimeline timeline = new NoteTimeline(sequence);
+
+		long[] position = { 0 };
+		PresentationScheduler scheduler = new PresentationScheduler();
+		scheduler.follow(timeline, () -> position[0]);
+		NoteEventQueue.NoteEventHandler none = (channel, command, note, velocity, time) -> {};
+		long now = 1_000_000_000L;
+		assertEquals(1, scheduler.releaseTimeline(now, now, none));
+		position[0] = 100_000;
+		assertEquals(10, scheduler.releaseTimeline(now, now, none));
+
+		//Seeking ahead by 5 s releases nothing at once, and then
+		//only the notes that come after the new position
+		position[0] = 5_100_000;
+		assertEquals(0, scheduler.releaseTimeline(now, now, none));
+		position[0] = 5_150_000;
+		assertEquals(5, scheduler.releaseTimeline(now, now, none));
+
+		//And so does going back
+		position[0] = 1_000_000;
+		assertEquals(0, scheduler.releaseTimeline(now, now, none));
+		position[0] = 1_020_000;
+		assertEquals(2, scheduler.releaseTimeline(now, now, none));
+	}
+}
@@ -0,0 +1,99 @@
+package vismid;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Feeds a QualityGovernor synthetic render times and checks
+ * the levels it picks
+ */
+class QualityGovernorTest
+{
+	//60 frames per second
+	private static final long TARGET = 16_666_667L;
+	private static final long MILLIS = 1_000_000L;
+
+	@Test
+	void stepsDownOnceAWindowIsOverBudget()
+	{
+		QualityGovernor governor = new QualityGovernor();
+		for(int frame = 1; frame < 30; frame++)
+			assertEquals(RenderQuality.FULL, governor.frameRendered(15 * MILLIS, TARGET));
+		assertEquals(RenderQuality.NO_ANTIALIASING, governor.frameRendered(15 * MILLIS, TARGET));
+	}
+
+	@Test
+	void waitsForHeadroomBeforeSteppingUp()
+	{
+		QualityGovernor governor = new QualityGovernor();
+		governor.reset(RenderQuality.NO_ANTIALIASING);
+
+		//A full window, then 60 frames of headroom
+		for(int frame = 1; frame < 89; frame++)
+			assertEquals(RenderQuality.NO_ANTIALIASING, governor.frameRendered(5 * MILLIS, TARGET), "Frame " + frame);
+		assertEquals(RenderQuality.FULL, governor.frameRendered(5 * MILLIS, TARGET));
+
+		//Without headroom, it never steps up
+		governor.reset(RenderQuality.NO_ANTIALIASING);
+		for(int frame = 0; frame < 1000; frame++)
+			assertEquals(RenderQuality.NO_ANTIALIASING, governor.frameRendered(10 * MILLIS, TARGET));
+	}
+
+	@Test
+	void stepsUpThatCannotHoldAreTriedLessAndLessOften()
+	{
+		//The top level is over budget, the one below has headroom
+		List<Integer> stepsUp = run(q -> q == RenderQuality.FULL ? 15 * MILLIS : 5 * MILLIS, 10_000);
+		assertTrue(stepsUp.size() >= 3, "Steps up: " + stepsUp);
+		for(int i = 2; i < stepsUp.size(); i++)
+		{
+			int gap = stepsUp.get(i) - stepsUp.get(i - 1);
+			int previous = stepsUp.get(i - 1) - stepsUp.get(i - 2);
+			assertTrue(gap >= previous, "Steps up at " + stepsUp);
+		}
+		assertTrue(stepsUp.size() <= 10, "Steps up: " + stepsUp);
+	}
+
+	@Test
+	void stepDownThatCostsMoreIsUndoneForGood()
+	{
+		//Dropping antialiasing makes frames slower, as when
+		//the context cannot draw without it in hardware
+		QualityGovernor governor = new QualityGovernor();
+		List<RenderQuality> levels = new ArrayList<>();
+		RenderQuality q = RenderQuality.FULL;
+		for(int frame = 0; frame < 5000; frame++)
+		{
+			RenderQuality next = governor.frameRendered(q == RenderQuality.FULL ? 15 * MILLIS : 20 * MILLIS, TARGET);
+			if(next != q)
+				levels.add(next);
+			q = next;
+		}
+		assertEquals(List.of(RenderQuality.NO_ANTIALIASING, RenderQuality.FULL), levels);
+	}
+
+	/**
+	 * Renders frames whose times depend on the level only
+	 * @return the frames at which the governor stepped up
+	 */
+	private static List<Integer> run(ToLongFunction<RenderQuality> cost, int frames)
+	{
+		QualityGovernor governor = new QualityGovernor();
+		List<Integer> stepsUp = new ArrayList<>();
+		RenderQuality q = governor.getQuality();
+		for(int frame = 0; frame < frames; frame++)
+		{
+			RenderQuality next = governor.frameRendered(cost.applyAsLong(q), TARGET);
+			if(next.ordinal() < q.ordinal())
+				stepsUp.add(frame);
+			q = next;
+		}
+		return stepsUp;
+	}
+}
@@ -0,0 +1,110 @@
+package vismid;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that responders subscribed to a range of notes are only
+ * signalled of the notes within it
+ */
+class SignalerTest
+{
+	@Test
+	void noteRangesOnlyReceiveTheirNotes() throws Exception
+	{
+		for(boolean coalescing: new boolean[] { true, false })
+		{
+			Signaler signaler = new Signaler();
+			signaler.setCoalescing(coalescing);
+			Recorder range = new Recorder();
+			Recorder single = new Recorder();
+			Recorder channel = new Recorder();
+			Recorder otherPort = new Recorder();
+			signaler.registerMidiResponder(range, 2, 60, 64);
+			signaler.registerMidiResponder(single, 2, 72, 72);
+			signaler.registerMidiResponder(channel, 2);
+			signaler.registerMidiResponder(otherPort, Signaler.CHANNELS_PER_PORT + 2, 60, 64);
+
+			//Notes on either side of the ranges, on their channel and
+			//another, and the same notes on a second port
+			Receiver port1 = signaler.receiverForPort(1);
+			for(int note = 58; note <= 74; note += 2)
+			{
+				send(signaler, ShortMessage.NOTE_ON, 2, note, 100);
+				send(signaler, ShortMessage.NOTE_ON, 3, note + 1, 100);
+				send(port1, ShortMessage.NOTE_ON, 2, note, 90);
+			}
+			signaler.dispatchPending();
+			send(signaler, ShortMessage.NOTE_OFF, 2, 60, 0);
+			send(signaler, ShortMessage.NOTE_ON, 2, 64, 0);
+			send(signaler, ShortMessage.NOTE_OFF, 2, 66, 0);
+			send(signaler, ShortMessage.NOTE_OFF, 2, 72, 0);
+			signaler.dispatchPending();
+
+			String mode = coalescing ? "Coalescing" : "Not coalescing";
+			assertEquals(List.of("on 2 60 100", "on 2 62 100", "on 2 64 100", "off 2 60", "off 2 64"), range.signals, mode);
+			assertEquals(List.of("on 2 72 100", "off 2 72"), single.signals, mode);
+			assertEquals(13, channel.signals.size(), mode);
+			assertEquals(List.of("on 2 60 90", "on 2 62 90", "on 2 64 90"), otherPort.signals, mode);
+		}
+	}
+
+	@Test
+	void invalidNoteRangesAreRefused()
+	{
+		Signaler signaler = new Signaler();
+		Recorder r = new Recorder();
+		assertThrows(IllegalArgumentException.class, () -> signaler.registerMidiResponder(r, 0, -1, 10));
+		assertThrows(IllegalArgumentException.class, () -> signaler.registerMidiResponder(r, 0, 10, 128));
+		assertThrows(IllegalArgumentException.class, () -> signaler.registerMidiResponder(r, 0, 11, 10));
+		assertThrows(IllegalArgumentException.class, () -> signaler.registerMidiResponder(r, -1, 0, 10));
+	}
+
+	private static void send(Receiver receiver, int command, int channel, int note, int velocity)
+			throws InvalidMidiDataException
+	{
+		receiver.send(new ShortMessage(command, channel, note, velocity), -1);
+	}
+
+	/**
+	 * Keeps every note it is signalled of as "on channel note velocity"
+	 * or "off channel note"
+	 */
+	private static class Recorder implements MidiResponder
+	{
+		List<String> signals = new ArrayList<>();
+
+		@Override
+		public void signalOn(ShortMessage sm)
+		{
+			signals.add("on " + sm.getChannel() + " " + sm.getData1() + " " + sm.getData2());
+		}
+
+		@Override
+		public void signalOff(ShortMessage sm)
+		{
+			signals.add("off " + sm.getChannel() + " " + sm.getData1());
+		}
+
+		@Override
+		public void drawResponse(Graphics2D g2d)
+		{
+		}
+
+		@Override
+		public void transform(AffineTransform at)
+		{
+		}
+	}
+}
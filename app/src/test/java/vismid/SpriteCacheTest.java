@@ -0,0 +1,111 @@
+package vismid;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that a SpriteCache stays within its budget, and that sprites
+ * in use are not rendered again when the budget is below them
+ */
+class SpriteCacheTest
+{
+	private static final int SIZE = 16;
+	private static final long SPRITE_BYTES = SIZE * SIZE * 4;
+
+	@Test
+	void spritesInUseStayWithinTheBudget()
+	{
+		//Room for 4 of the 12 sprites drawn every frame
+		long budget = 4 * SPRITE_BYTES;
+		SpriteCache cache = new SpriteCache(budget);
+		Holder[] holders = new Holder[12];
+		for(int i = 0; i < holders.length; i++)
+			holders[i] = new Holder(new Color(i * 20, 0, 0));
+
+		for(Holder h: holders)
+		{
+			h.fetch(cache);
+			assertTrue(cache.getUsedBytes() <= budget);
+		}
+
+		BufferedImage[] held = new BufferedImage[holders.length];
+		for(int i = 0; i < holders.length; i++)
+			held[i] = holders[i].sprite;
+		for(int frame = 0; frame < 10; frame++)
+			for(Holder h: holders)
+			{
+				h.fetch(cache);
+				assertTrue(cache.getUsedBytes() <= budget);
+			}
+		for(int i = 0; i < holders.length; i++)
+			assertSame(held[i], holders[i].sprite, "Sprite " + i + " was rendered again");
+		assertEquals(budget, cache.getUsedBytes());
+	}
+
+	@Test
+	void evictionDropsTheLeastRecentlyUsedSprite()
+	{
+		SpriteCache cache = new SpriteCache(2 * SPRITE_BYTES);
+		BufferedImage blue = cache.getSprite(Color.BLUE, SIZE, 0);
+		BufferedImage red = cache.getSprite(Color.RED, SIZE, 0);
+		cache.getSprite(Color.BLUE, SIZE, 0);
+
+		//A third sprite evicts red, which was used the longest ago
+		cache.getSprite(Color.GREEN, SIZE, 0);
+		assertEquals(2, cache.size());
+		assertEquals(2 * SPRITE_BYTES, cache.getUsedBytes());
+		assertSame(blue, cache.getSprite(Color.BLUE, SIZE, 0));
+		assertNotSame(red, cache.getSprite(Color.RED, SIZE, 0));
+	}
+
+	@Test
+	void spritesLargerThanTheBudgetAreNotCached()
+	{
+		SpriteCache cache = new SpriteCache(SPRITE_BYTES);
+		cache.getSprite(Color.RED, SIZE, 0);
+		BufferedImage large = cache.getSprite(Color.BLUE, SIZE, 1);
+		assertEquals(2 * SIZE, large.getWidth());
+		assertEquals(1, cache.size());
+		assertEquals(SPRITE_BYTES, cache.getUsedBytes());
+
+		//Clearing tells holders to let go of their sprites
+		int generation = cache.getGeneration();
+		cache.clear();
+		assertNotEquals(generation, cache.getGeneration());
+		assertEquals(0, cache.getUsedBytes());
+	}
+
+	/**
+	 * Keeps a sprite the way pulsers do, fetching it again
+	 * only when the generation of the cache changes
+	 */
+	private static class Holder
+	{
+		Color color;
+		BufferedImage sprite;
+		int generation;
+
+		Holder(Color color)
+		{
+			this.color = color;
+		}
+
+		void fetch(SpriteCache cache)
+		{
+			int g = cache.getGeneration();
+			if(sprite == null || g != generation)
+			{
+				generation = g;
+				sprite = cache.getSprite(color, SIZE, 0);
+			}
+		}
+	}
+}
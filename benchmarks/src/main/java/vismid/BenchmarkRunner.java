@@ -0,0 +1,35 @@
+package vismid;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks with the GC profiler, so that the allocation
+ * rate per operation is reported next to every score, and with AWT in
+ * headless mode, so that no display is needed.
+ *
+ * Build and run from the root of the repository with
+ * <pre>
+ * mvn -B package
+ * java -jar benchmarks/target/benchmarks.jar [JMH options]
+ * </pre>
+ * Any standard JMH option can be passed, for example a benchmark name
+ * pattern such as Canvas to only run the Canvas benchmarks.
+ */
+public class BenchmarkRunner
+{
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException
+	{
+		Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.jvmArgsAppend("-Djava.awt.headless=true")
+				.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,127 @@
+package vismid;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.ShortMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a frame of the application's Canvas, with the 16 channel
+ * groups set up by Main, painted into a headless BufferedImage. Every
+ * frame a few notes are received on random channels among the active
+ * ones. Frames are either painted whole, or only where they changed,
+ * on one thread or in tiles on several.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CanvasBenchmark
+{
+	//Size of the frame, the default window and 4K
+	@Param({"400x400", "3840x2160"})
+	public String size;
+
+	//Amount of channels notes are received on
+	@Param({"16", "2"})
+	public int activeChannels;
+
+	//Amount of threads the canvas is drawn on
+	@Param({"1", "4"})
+	public int threads;
+
+	//Notes received between two frames
+	private static final int NOTES_PER_FRAME = 8;
+
+	private Canvas canvas;
+	private Signaler signaler;
+	private BufferedImage image;
+	private Graphics2D retained;
+	private int width;
+	private int height;
+	private ShortMessage[] messages;
+	private int next;
+
+	//Simulated time, one 50 fps frame per invocation
+	private long time;
+
+	@Setup
+	public void setup() throws InvalidMidiDataException
+	{
+		width = Integer.parseInt(size.substring(0, size.indexOf('x')));
+		height = Integer.parseInt(size.substring(size.indexOf('x') + 1));
+
+		signaler = new Signaler();
+		canvas = new Canvas(signaler);
+		canvas.setSize(width, height);
+		canvas.setRenderThreads(threads);
+		Main.setupChannelResponders(canvas, signaler);
+		image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		retained = image.createGraphics();
+
+		Random random = new Random(42);
+		messages = new ShortMessage[1024];
+		for(int i = 0; i < messages.length; i++)
+		{
+			int command = i % 2 == 0 ? ShortMessage.NOTE_ON : ShortMessage.NOTE_OFF;
+			messages[i] = new ShortMessage(command, random.nextInt(activeChannels), 36 + random.nextInt(60), 100);
+		}
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		canvas.setRenderThreads(1);
+		retained.dispose();
+	}
+
+	/**
+	 * Receives a few notes and paints one whole frame. The graphical
+	 * context is created per frame, as Swing does for every paint
+	 */
+	@Benchmark
+	public void fullFrame()
+	{
+		receiveNotes();
+		Graphics2D g2d = image.createGraphics();
+		canvas.render(g2d, width, height, time += 20_000_000L);
+		g2d.dispose();
+	}
+
+	/**
+	 * Receives a few notes and paints only what changed over the
+	 * previous frame, as the active renderer does
+	 */
+	@Benchmark
+	public long damagedFrame()
+	{
+		receiveNotes();
+		DamageTracker damage = canvas.advance(time += 20_000_000L, width, height);
+		canvas.drawDamage(retained, width, height);
+		return damage.getArea();
+	}
+
+	private void receiveNotes()
+	{
+		for(int i = 0; i < NOTES_PER_FRAME; i++)
+			signaler.send(messages[next++ & (messages.length - 1)], -1);
+	}
+}
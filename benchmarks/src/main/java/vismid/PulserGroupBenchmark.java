@@ -0,0 +1,101 @@
+package vismid;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of a single frame of a PulserGroup and of a lone
+ * Pulser, that is one simulation step followed by drawing. Every tenth frame the responders are signaled, so the
+ * measurement covers pulsers both at rest and pulsing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PulserGroupBenchmark
+{
+	//Amount of pulsers in the group
+	@Param({"9", "144", "1024"})
+	public int pulsers;
+
+	//Whether shapes are drawn with antialiasing
+	@Param({"false", "true"})
+	public boolean antialiasing;
+
+	private PulserGroup group;
+	private Pulser pulser;
+	private BufferedImage image;
+	private Graphics2D g2d;
+	private int frame;
+
+	//One frame of the original 50 fps
+	private static final long STEP_NANOS = 20_000_000L;
+
+	@Setup
+	public void setup()
+	{
+		group = new PulserGroup(pulsers, 10, 150, Color.CYAN, 0, false);
+		pulser = new Pulser(50, 50, 10, Color.CYAN);
+		image = new BufferedImage(400, 400, BufferedImage.TYPE_INT_RGB);
+		g2d = image.createGraphics();
+		g2d.translate(200, 200);
+		g2d.scale(1, -1);
+		if(antialiasing)
+			g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		g2d.dispose();
+	}
+
+	/**
+	 * Signals the responders every tenth frame
+	 */
+	@Setup(Level.Invocation)
+	public void signal()
+	{
+		if(frame++ % 10 == 0)
+		{
+			group.signalOn(null);
+			group.signalOff(null);
+			pulser.signalOn(null);
+		}
+	}
+
+	@Benchmark
+	public void groupDrawResponse()
+	{
+		group.update(STEP_NANOS);
+		group.interpolate(1);
+		group.drawResponse(g2d);
+	}
+
+	@Benchmark
+	public void pulserDrawResponse()
+	{
+		pulser.update(STEP_NANOS);
+		pulser.interpolate(1);
+		pulser.drawResponse(g2d);
+	}
+}
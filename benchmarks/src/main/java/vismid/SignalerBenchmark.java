@@ -0,0 +1,71 @@
+package vismid;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.ShortMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how many note messages per second the Signaler can receive
+ * and hand to the responders of 16 channels, for different mixes of
+ * note on and note off messages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SignalerBenchmark
+{
+	//Amount of messages sent between two frames
+	private static final int BATCH = 1024;
+
+	//Fraction of the messages that are note on messages
+	@Param({"0.25", "0.5", "0.75"})
+	public double noteOnRatio;
+
+	private Signaler signaler;
+	private ShortMessage[] messages;
+
+	@Setup
+	public void setup() throws InvalidMidiDataException
+	{
+		signaler = new Signaler();
+		Main.setupChannelResponders(new Canvas(signaler), signaler);
+
+		Random random = new Random(42);
+		messages = new ShortMessage[BATCH];
+		for(int i = 0; i < BATCH; i++)
+		{
+			int command = random.nextDouble() < noteOnRatio ? ShortMessage.NOTE_ON : ShortMessage.NOTE_OFF;
+			messages[i] = new ShortMessage(command, random.nextInt(16), 36 + random.nextInt(60), 1 + random.nextInt(126));
+		}
+	}
+
+	/**
+	 * Sends a frame's worth of messages and dispatches them
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public int sendAndDispatch()
+	{
+		for(int i = 0; i < BATCH; i++)
+			signaler.send(messages[i], i);
+		return signaler.dispatchPending();
+	}
+}
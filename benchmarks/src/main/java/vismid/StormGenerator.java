@@ -0,0 +1,290 @@
+package vismid;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+
+/**
+ * StormGenerator produces a synthetic stream of note on and note off
+ * messages spread over many channels, at rates well beyond what a person
+ * can play, to load the application the way black MIDI files do.
+ *
+ * Notes start at a chosen rate with constant, Poisson or bursty arrivals,
+ * on random channels and keys. Each note has an exponentially distributed
+ * length and a normally distributed velocity. Every channel has a fixed
+ * amount of voices, and a note starting on a channel whose voices are all
+ * held releases the voice that would have ended first, so the polyphony
+ * of a channel never exceeds its limit.
+ *
+ * The stream only depends on the seed, so runs are repeatable. Messages
+ * are sent through a single reused ShortMessage, which the Signaler reads
+ * right away, so generating does not allocate.
+ */
+public class StormGenerator
+{
+	/**
+	 * How the start times of notes are spread
+	 */
+	public enum Arrivals
+	{
+		//Evenly spaced notes
+		CONSTANT,
+
+		//Independent notes, with exponentially distributed gaps
+		POISSON,
+
+		//Chords of BURST_SIZE notes starting together
+		BURST
+	}
+
+	//Notes in a chord of the BURST arrivals
+	public static final int BURST_SIZE = 64;
+
+	//Range of keys notes are picked from, those of a piano
+	private static final int LOWEST_KEY = 21;
+	private static final int KEYS = 88;
+
+	private double rate;
+	private Arrivals arrivals;
+	private int channels;
+	private int polyphony;
+	private double meanLengthNanos;
+	private double velocityMean;
+	private double velocitySpread;
+	private Random random;
+
+	//Time the next note starts, and notes left in the current chord
+	private long nextOn;
+	private int chordLeft;
+
+	//Voices of every channel, indexed by channel * polyphony + voice.
+	//A voice holds a key until its end time, and is free at Long.MAX_VALUE
+	private int[] voiceKeys;
+	private long[] voiceEnds;
+
+	//Ends of held voices, as a binary heap of end times and voices
+	private long[] heapEnds;
+	private int[] heapVoices;
+	private int heapSize;
+
+	private ShortMessage message = new ShortMessage();
+	private long notesOn;
+	private long notesOff;
+
+	/**
+	 * Creates a generator
+	 * @param rate notes started per second
+	 * @param arrivals how the start times of notes are spread
+	 * @param channels channels notes are spread over, more than 16
+	 * spanning several ports
+	 * @param polyphony most notes held at once on a channel
+	 * @param meanLengthMillis mean length of a note in milliseconds
+	 * @param velocityMean mean velocity of notes
+	 * @param velocitySpread standard deviation of the velocity, 0
+	 * to give every note the mean velocity
+	 * @param seed seed of the random numbers
+	 */
+	public StormGenerator(double rate, Arrivals arrivals, int channels, int polyphony,
+			double meanLengthMillis, double velocityMean, double velocitySpread, long seed)
+	{
+		if(rate <= 0 || channels <= 0 || polyphony <= 0)
+			throw new IllegalArgumentException("Rate, channels and polyphony must be positive");
+		this.rate = rate;
+		this.arrivals = arrivals;
+		this.channels = channels;
+		this.polyphony = polyphony;
+		this.meanLengthNanos = meanLengthMillis * 1_000_000;
+		this.velocityMean = velocityMean;
+		this.velocitySpread = velocitySpread;
+		this.random = new Random(seed);
+		this.chordLeft = BURST_SIZE;
+
+		voiceKeys = new int[channels * polyphony];
+		voiceEnds = new long[channels * polyphony];
+		Arrays.fill(voiceEnds, Long.MAX_VALUE);
+		heapEnds = new long[channels * polyphony];
+		heapVoices = new int[channels * polyphony];
+	}
+
+	/**
+	 * Sends every note on and note off due up to a time, in time order
+	 * @param time time since the start of the storm in nanoseconds
+	 * @param ports receivers of the ports, channel c being sent
+	 * to port c / 16 as channel c % 16
+	 * @return the amount of messages sent
+	 */
+	public int emitUntil(long time, Receiver[] ports)
+	{
+		int sent = 0;
+		while(nextOn <= time)
+		{
+			sent += releaseUntil(nextOn, ports);
+			sent += startNote(nextOn, ports);
+			nextOn += gap();
+		}
+		return sent + releaseUntil(time, ports);
+	}
+
+	/**
+	 * Starts a note on a random channel, first releasing a
+	 * voice of the channel if all of them are held
+	 */
+	private int startNote(long time, Receiver[] ports)
+	{
+		int sent = 0;
+		int channel = random.nextInt(channels);
+		int first = channel * polyphony;
+
+		//A free voice, or else the one that ends first
+		int voice = first;
+		for(int v = first; v < first + polyphony; v++)
+			if(voiceEnds[v] < voiceEnds[voice])
+				voice = v;
+		if(voiceEnds[voice] != Long.MAX_VALUE)
+		{
+			send(ports, ShortMessage.NOTE_OFF, channel, voiceKeys[voice], 0);
+			notesOff++;
+			sent++;
+		}
+
+		int key = LOWEST_KEY + random.nextInt(KEYS);
+		int velocity = (int) Math.round(velocityMean + random.nextGaussian() * velocitySpread);
+		velocity = Math.max(1, Math.min(127, velocity));
+		long length = Math.max(1, (long) (-Math.log(1 - random.nextDouble()) * meanLengthNanos));
+
+		voiceKeys[voice] = key;
+		voiceEnds[voice] = time + length;
+		push(time + length, voice);
+		send(ports, ShortMessage.NOTE_ON, channel, key, velocity);
+		notesOn++;
+		return sent + 1;
+	}
+
+	/**
+	 * Releases every voice that ends by a time
+	 */
+	private int releaseUntil(long time, Receiver[] ports)
+	{
+		int sent = 0;
+		while(heapSize > 0 && heapEnds[0] <= time)
+		{
+			long end = heapEnds[0];
+			int voice = heapVoices[0];
+			pop();
+
+			//Voices released early or held again since leave
+			//entries that no longer match their end
+			if(voiceEnds[voice] != end)
+				continue;
+			voiceEnds[voice] = Long.MAX_VALUE;
+			send(ports, ShortMessage.NOTE_OFF, voice / polyphony, voiceKeys[voice], 0);
+			notesOff++;
+			sent++;
+		}
+		return sent;
+	}
+
+	/**
+	 * @return the time until the next note starts in nanoseconds
+	 */
+	private long gap()
+	{
+		double mean = 1e9 / rate;
+		switch(arrivals)
+		{
+		case POISSON:
+			return (long) (-Math.log(1 - random.nextDouble()) * mean);
+		case BURST:
+			if(--chordLeft > 0)
+				return 0;
+			chordLeft = BURST_SIZE;
+			return (long) (mean * BURST_SIZE);
+		default:
+			return (long) mean;
+		}
+	}
+
+	private void send(Receiver[] ports, int command, int channel, int key, int velocity)
+	{
+		try
+		{
+			message.setMessage(command, channel % Signaler.CHANNELS_PER_PORT, key, velocity);
+		}
+		catch(InvalidMidiDataException e)
+		{
+			//Every value is kept within range
+			throw new IllegalStateException(e);
+		}
+		ports[channel / Signaler.CHANNELS_PER_PORT].send(message, -1);
+	}
+
+	private void push(long end, int voice)
+	{
+		if(heapSize == heapEnds.length)
+		{
+			heapEnds = Arrays.copyOf(heapEnds, heapSize * 2);
+			heapVoices = Arrays.copyOf(heapVoices, heapSize * 2);
+		}
+		int i = heapSize++;
+		while(i > 0)
+		{
+			int parent = (i - 1) / 2;
+			if(heapEnds[parent] <= end)
+				break;
+			heapEnds[i] = heapEnds[parent];
+			heapVoices[i] = heapVoices[parent];
+			i = parent;
+		}
+		heapEnds[i] = end;
+		heapVoices[i] = voice;
+	}
+
+	private void pop()
+	{
+		long end = heapEnds[--heapSize];
+		int voice = heapVoices[heapSize];
+		int i = 0;
+		while(true)
+		{
+			int child = 2 * i + 1;
+			if(child >= heapSize)
+				break;
+			if(child + 1 < heapSize && heapEnds[child + 1] < heapEnds[child])
+				child++;
+			if(heapEnds[child] >= end)
+				break;
+			heapEnds[i] = heapEnds[child];
+			heapVoices[i] = heapVoices[child];
+			i = child;
+		}
+		heapEnds[i] = end;
+		heapVoices[i] = voice;
+	}
+
+	/**
+	 * @return the amount of ports the channels span
+	 */
+	public int getPortCount()
+	{
+		return (channels + Signaler.CHANNELS_PER_PORT - 1) / Signaler.CHANNELS_PER_PORT;
+	}
+
+	/**
+	 * @return the amount of notes started so far
+	 */
+	public long getNotesOn()
+	{
+		return notesOn;
+	}
+
+	/**
+	 * @return the amount of notes released so far
+	 */
+	public long getNotesOff()
+	{
+		return notesOff;
+	}
+}
@@ -0,0 +1,303 @@
+package vismid;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import javax.sound.midi.Receiver;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * StressHarness is a soak test of the whole note path. A StormGenerator
+ * thread sends notes into a Signaler in real time, while the main thread
+ * renders the application's Canvas into a headless image, for a fixed
+ * amount of time.
+ *
+ * Every few seconds, and once more at the end, it reports the sustained
+ * rate of notes sent, dispatched and dropped, percentiles of the time it
+ * takes to render a frame, the note to pixel latency, the heap left after
+ * garbage collection and the garbage collection pauses. Runs with the same
+ * options and seed send the same notes, so results can be compared across
+ * versions and machines.
+ *
+ * Run from the root of the repository with
+ * <pre>
+ * mvn -B package
+ * java -Djava.awt.headless=true -cp benchmarks/target/benchmarks.jar vismid.StressHarness [options]
+ * </pre>
+ * Options are given as --name=value:
+ * rate (notes per second, 20000), arrivals (constant, poisson or burst),
+ * channels (64), polyphony (16 per channel), length (mean note length in
+ * ms, 200), velocity (100), spread (velocity deviation, 20), seconds (60),
+ * fps (0 to render as fast as possible, 60), width (1920), height (1080),
+ * threads (1), report (seconds between reports, 5), queue (notes per
+ * port, 65536), overflow (drop_newest, drop_oldest, merge or block),
+ * coalesce (true) and seed (42).
+ *
+ * Given replay (a log written by an EventRecorder), the harness sends the
+ * messages of the log instead of a storm, at speed (times as fast as
+ * recorded, 1, or max) until the log or the time runs out, so a recorded
+ * performance can be measured in the same way.
+ */
+public class StressHarness
+{
+	private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+	//Time between two runs of the generator
+	private static final long GENERATOR_PERIOD_NANOS = 1_000_000L;
+
+	private String[] args;
+
+	//GC pauses in nanoseconds, written by the notification thread
+	private LatencyHistogram gcPauses = new LatencyHistogram();
+
+	private StressHarness(String[] args)
+	{
+		this.args = args;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		new StressHarness(args).run();
+	}
+
+	private void run() throws InterruptedException, IOException
+	{
+		int channels = intOption("channels", 64);
+		StormGenerator storm = new StormGenerator(
+				doubleOption("rate", 20000),
+				StormGenerator.Arrivals.valueOf(option("arrivals", "poisson").toUpperCase()),
+				channels,
+				intOption("polyphony", 16),
+				doubleOption("length", 200),
+				doubleOption("velocity", 100),
+				doubleOption("spread", 20),
+				intOption("seed", 42));
+		int width = intOption("width", 1920);
+		int height = intOption("height", 1080);
+		int fps = intOption("fps", 60);
+		long duration = (long) (doubleOption("seconds", 60) * 1e9);
+		long reportInterval = (long) (doubleOption("report", 5) * 1e9);
+
+		Signaler signaler = new Signaler(intOption("queue", 65536),
+				NoteEventQueue.OverflowPolicy.valueOf(option("overflow", "drop_newest").toUpperCase()));
+		signaler.setCoalescing(Boolean.parseBoolean(option("coalesce", "true")));
+		Canvas canvas = new Canvas(signaler);
+		canvas.setSize(width, height);
+		canvas.setRenderThreads(intOption("threads", 1));
+		String log = option("replay", null);
+		EventReplayer replayer = log == null ? null : new EventReplayer(new File(log));
+		Main.setupChannelResponders(canvas, signaler,
+				replayer == null ? storm.getPortCount() : Math.max(replayer.getPortCount(), 1));
+		Receiver[] ports = new Receiver[storm.getPortCount()];
+		for(int p = 0; p < ports.length; p++)
+			ports[p] = signaler.receiverForPort(p);
+
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		listenToGarbageCollection();
+		System.gc();
+		long heapStart = heapAfterGc();
+		long gcCountStart = gcCount();
+		long gcTimeStart = gcTime();
+
+		if(replayer == null)
+			System.out.printf("Storm of %s notes/s over %d channels, rendering %dx%d at %s for %.0f s%n",
+					option("rate", "20000"), channels, width, height,
+					fps > 0 ? fps + " fps" : "full speed", duration / 1e9);
+		else
+			System.out.printf("Replay of %d messages from %s, rendering %dx%d at %s for %.0f s%n",
+					replayer.getRecordCount(), log, width, height,
+					fps > 0 ? fps + " fps" : "full speed", duration / 1e9);
+
+		//Send the storm from its own thread, in real time
+		long start = System.nanoTime();
+		Thread generator = new Thread(() ->
+		{
+			long now;
+			while((now = System.nanoTime() - start) < duration)
+			{
+				storm.emitUntil(now, ports);
+				LockSupport.parkNanos(GENERATOR_PERIOD_NANOS);
+			}
+		}, "vismid-storm");
+		generator.setDaemon(true);
+		if(replayer == null)
+			generator.start();
+		else
+		{
+			String speed = option("speed", "1");
+			replayer.start(signaler, "max".equals(speed) ? EventReplayer.AS_FAST_AS_POSSIBLE : Double.parseDouble(speed));
+		}
+
+		LatencyHistogram frameTimes = new LatencyHistogram();
+		long frameNanos = fps > 0 ? 1_000_000_000L / fps : 0;
+		long nextFrame = start;
+		long nextReport = start + reportInterval;
+		long frames = 0;
+		long lastSent = 0;
+		long lastDispatched = 0;
+		long lastReport = start;
+		Graphics2D g2d = image.createGraphics();
+		while(System.nanoTime() - start < duration)
+		{
+			long frameStart = System.nanoTime();
+			canvas.advance(frameStart, width, height);
+			canvas.draw(g2d, width, height);
+			long frameEnd = System.nanoTime();
+			frameTimes.record(frameEnd - frameStart);
+			frames++;
+
+			if(frameEnd >= nextReport)
+			{
+				long sent = sent(storm, replayer);
+				long dispatched = signaler.dispatchedEvents();
+				double seconds = (frameEnd - lastReport) / 1e9;
+				System.out.printf("%6.1f s  sent %9.0f/s  dispatched %9.0f/s  dropped %d  frame p99 %.2f ms  heap %.1f MB%n",
+						(frameEnd - start) / 1e9,
+						(sent - lastSent) / seconds,
+						(dispatched - lastDispatched) / seconds,
+						signaler.droppedEvents(),
+						frameTimes.getPercentile(0.99) / NANOS_PER_MILLI,
+						heapAfterGc() / 1e6);
+				lastSent = sent;
+				lastDispatched = dispatched;
+				lastReport = frameEnd;
+				nextReport += reportInterval;
+			}
+
+			if(frameNanos > 0)
+			{
+				nextFrame += frameNanos;
+				long wait = nextFrame - System.nanoTime();
+				if(wait > 0)
+					LockSupport.parkNanos(wait);
+				else
+					nextFrame = System.nanoTime();
+			}
+		}
+		g2d.dispose();
+		if(replayer == null)
+			generator.join();
+		else
+			replayer.stop();
+		long elapsed = System.nanoTime() - start;
+		canvas.setRenderThreads(1);
+
+		System.gc();
+		long heapEnd = heapAfterGc();
+		long sent = sent(storm, replayer);
+		long dispatched = signaler.dispatchedEvents();
+		FrameMetrics metrics = canvas.getMetrics();
+		System.out.println();
+		System.out.printf("Messages   sent %d (%.0f/s), dispatched %d (%.0f/s), dropped %d%n",
+				sent, sent / (elapsed / 1e9), dispatched, dispatched / (elapsed / 1e9), signaler.droppedEvents());
+		System.out.printf("Frames     %d (%.1f/s), render p50 %.2f ms  p90 %.2f ms  p99 %.2f ms  p99.9 %.2f ms  max %.2f ms%n",
+				frames, frames / (elapsed / 1e9),
+				frameTimes.getPercentile(0.5) / NANOS_PER_MILLI,
+				frameTimes.getPercentile(0.9) / NANOS_PER_MILLI,
+				frameTimes.getPercentile(0.99) / NANOS_PER_MILLI,
+				frameTimes.getPercentile(0.999) / NANOS_PER_MILLI,
+				frameTimes.getMax() / NANOS_PER_MILLI);
+		System.out.printf("Latency    note to pixel p50 %.2f ms  p99 %.2f ms  max %.2f ms%n",
+				metrics.getEventLatencyP50Millis(), metrics.getEventLatencyP99Millis(), metrics.getEventLatencyMaxMillis());
+		System.out.printf("Heap       %.1f MB at start, %.1f MB at end, growth %.1f MB%n",
+				heapStart / 1e6, heapEnd / 1e6, (heapEnd - heapStart) / 1e6);
+		System.out.printf("GC         %d collections, %d ms total, pause p99 %.1f ms  max %.1f ms%n",
+				gcCount() - gcCountStart, gcTime() - gcTimeStart,
+				gcPauses.getPercentile(0.99) / NANOS_PER_MILLI, gcPauses.getMax() / NANOS_PER_MILLI);
+	}
+
+	/**
+	 * @return the amount of messages sent by the storm, or by the
+	 * replay when there is one
+	 */
+	private static long sent(StormGenerator storm, EventReplayer replayer)
+	{
+		return replayer == null ? storm.getNotesOn() + storm.getNotesOff() : replayer.getSent();
+	}
+
+	/**
+	 * Records the duration of every garbage collection
+	 */
+	private void listenToGarbageCollection()
+	{
+		NotificationListener listener = (Notification n, Object handback) ->
+		{
+			if(!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(n.getType()))
+				return;
+			GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) n.getUserData());
+			synchronized(gcPauses)
+			{
+				gcPauses.record((long) (info.getGcInfo().getDuration() * NANOS_PER_MILLI));
+			}
+		};
+		for(GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans())
+			if(gc instanceof NotificationEmitter)
+				((NotificationEmitter) gc).addNotificationListener(listener, null, null);
+	}
+
+	/**
+	 * @return the heap in use right after the last collection
+	 */
+	private static long heapAfterGc()
+	{
+		long used = 0;
+		for(MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans())
+		{
+			MemoryUsage usage = pool.getCollectionUsage();
+			if(pool.getType() == MemoryType.HEAP && usage != null)
+				used += usage.getUsed();
+		}
+		return used;
+	}
+
+	private static long gcCount()
+	{
+		long count = 0;
+		for(GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans())
+			count += Math.max(gc.getCollectionCount(), 0);
+		return count;
+	}
+
+	private static long gcTime()
+	{
+		long time = 0;
+		for(GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans())
+			time += Math.max(gc.getCollectionTime(), 0);
+		return time;
+	}
+
+	/**
+	 * Finds the value of a --name=value option
+	 */
+	private String option(String name, String defaultValue)
+	{
+		String prefix = "--" + name + "=";
+		for(String arg: args)
+			if(arg.startsWith(prefix))
+				return arg.substring(prefix.length());
+		return defaultValue;
+	}
+
+	private int intOption(String name, int defaultValue)
+	{
+		return Integer.parseInt(option(name, Integer.toString(defaultValue)));
+	}
+
+	private double doubleOption(String name, double defaultValue)
+	{
+		return Double.parseDouble(option(name, Double.toString(defaultValue)));
+	}
+}
@@ -0,0 +1,179 @@
+package vismid;
+
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Rectangle;
+import java.awt.Toolkit;
+import java.awt.image.VolatileImage;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * ActiveRenderer draws a Canvas from a dedicated thread at a target
+ * frame rate, instead of waiting for Swing to repaint it.
+ * 
+ * Every frame is rendered into an accelerated VolatileImage and then
+ * copied onto the canvas, so no Swing layout or repaint work happens
+ * in between. The buffer keeps the previous frame, so only the areas
+ * that changed are drawn and copied. Frames are paced with
+ * System.nanoTime against a fixed schedule, so the frame rate does not
+ * depend on how busy the event dispatch thread is.
+ */
+public class ActiveRenderer implements Runnable
+{
+	private Canvas canvas;
+	private long frameNanos;
+	private volatile boolean running;
+	private Thread thread;
+	
+	//Back buffer every frame is rendered into. Guarded by this
+	private VolatileImage buffer;
+	
+	//Reused for the damaged rectangles
+	private Rectangle rect = new Rectangle();
+	
+	/**
+	 * Creates a renderer for a canvas
+	 * @param canvas canvas to render
+	 * @param targetFps amount of frames to render per second
+	 */
+	public ActiveRenderer(Canvas canvas, int targetFps)
+	{
+		if(targetFps <= 0)
+			throw new IllegalArgumentException("Target FPS must be positive: " + targetFps);
+		this.canvas = canvas;
+		this.frameNanos = 1_000_000_000L / targetFps;
+	}
+	
+	/**
+	 * Starts rendering on a new thread
+	 */
+	public void start()
+	{
+		running = true;
+		thread = new Thread(this, "vismid-render");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Stops rendering and waits for the current frame to finish
+	 */
+	public void stop() throws InterruptedException
+	{
+		running = false;
+		thread.join();
+	}
+	
+	/**
+	 * Renders frames until stopped, sleeping between frames
+	 * so that each starts on schedule
+	 */
+	@Override
+	public void run()
+	{
+		long next = System.nanoTime();
+		while(running)
+		{
+			renderFrame();
+			next += frameNanos;
+			
+			long wait = next - System.nanoTime();
+			
+			//If rendering fell more than a frame behind, start a
+			//new schedule instead of rendering a burst of frames
+			//to catch up
+			if(wait < -frameNanos)
+				next = System.nanoTime();
+			else if(wait > 0)
+				LockSupport.parkNanos(wait);
+		}
+	}
+	
+	/**
+	 * Renders the changes of a single frame into the back buffer
+	 * and copies them onto the canvas
+	 */
+	private synchronized void renderFrame()
+	{
+		int width = canvas.getWidth();
+		int height = canvas.getHeight();
+		GraphicsConfiguration gc = canvas.getGraphicsConfiguration();
+		
+		//The canvas is not displayed yet
+		if(gc == null || width <= 0 || height <= 0)
+			return;
+		
+		DamageTracker damage = canvas.advance(System.nanoTime(), width, height);
+		boolean full = damage.isFull();
+		do
+		{
+			//Recreate the buffer when the canvas is resized or the
+			//buffer can no longer be used with the display
+			int status = buffer == null ? VolatileImage.IMAGE_INCOMPATIBLE : buffer.validate(gc);
+			if(status == VolatileImage.IMAGE_INCOMPATIBLE
+					|| buffer.getWidth() != width 
+					|| buffer.getHeight() != height)
+			{
+				if(buffer != null)
+					buffer.flush();
+				buffer = gc.createCompatibleVolatileImage(width, height);
+				full = true;
+			}
+			//A restored buffer has lost the previous frame
+			else if(status == VolatileImage.IMAGE_RESTORED)
+				full = true;
+			
+			Graphics2D g2d = buffer.createGraphics();
+			try
+			{
+				if(full)
+					canvas.draw(g2d, width, height);
+				else
+					canvas.drawDamage(g2d, width, height);
+			}
+			finally
+			{
+				g2d.dispose();
+			}
+			
+			Graphics g = canvas.getGraphics();
+			if(g != null)
+			{
+				if(full)
+					g.drawImage(buffer, 0, 0, null);
+				else
+				{
+					for(int i = 0; i < damage.getCount(); i++)
+					{
+						damage.getRect(i, rect);
+						int x1 = rect.x + rect.width;
+						int y1 = rect.y + rect.height;
+						g.drawImage(buffer, rect.x, rect.y, x1, y1, rect.x, rect.y, x1, y1, null);
+					}
+				}
+				g.dispose();
+			}
+			
+			//The buffer may lose its contents at any time, in
+			//which case the whole frame is rendered again
+			if(buffer.contentsLost())
+				full = true;
+		}
+		while(buffer.contentsLost());
+		
+		//Flush the frame to the display right away
+		Toolkit.getDefaultToolkit().sync();
+	}
+	
+	/**
+	 * Shows the last rendered frame on a graphical context,
+	 * without rendering a new one
+	 * @param g graphical context to draw on
+	 */
+	public synchronized void present(Graphics g)
+	{
+		if(buffer != null && !buffer.contentsLost())
+			g.drawImage(buffer, 0, 0, null);
+	}
+}
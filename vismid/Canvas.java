@@ -2,12 +2,18 @@ package vismid;
 
 import java.awt.Color;
 import java.awt.Dimension;
-import java.awt.GradientPaint;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
 
 import javax.sound.midi.MetaEventListener;
 import javax.sound.midi.MetaMessage;
@@ -22,76 +28,627 @@ import javax.swing.Timer;
  * Canvas is the graphical display for this MIDI visualizer application.
  * By registering responders to this object, it is able to invoke the 
  * appropriate draw methods on each of them to produce the visualization
+ * 
+ * Responders are kept in a scene of SceneNodes, so that those that cannot
+ * be seen are skipped before anything is drawn. The view of the scene can
+ * be zoomed with the mouse wheel and panned by dragging, which only
+ * changes how the scene is mapped to the canvas
+ * 
+ * Frames are drawn at a RenderQuality, either set or picked frame by
+ * frame by a QualityGovernor to hold the target frame rate
+ * 
+ * What is drawn comes from snapshots of a Simulation, which the canvas
+ * either runs itself before every frame, or shares with other canvases
+ * and image sinks, each drawing the latest tick at its own resolution,
+ * view and quality
  * @author Miguel Guerrero
  */
 public class Canvas extends JPanel
 {
-	private ArrayList<MidiResponder> responders;
-	public Canvas()
+	//Zoom of the view per notch of the mouse wheel
+	private static final double ZOOM_STEP = 1.1;
+	
+	//Simulation of the responders drawn, whose ticks are run by this
+	//canvas unless shared, and the snapshot of it being drawn
+	private Simulation simulation;
+	private boolean drivesSimulation;
+	private SceneSnapshot snapshot;
+	
+	//View of the scene: scale, and world point shown at the center
+	private volatile double zoom = 1;
+	private volatile double panX;
+	private volatile double panY;
+	
+	//Renders this canvas from its own thread when set. Otherwise
+	//the canvas is repainted by a Swing Timer
+	private ActiveRenderer activeRenderer;
+	
+	private FrameMetrics metrics;
+	private boolean metricsOverlay;
+	
+	//Areas that changed in the last frame, and whether everything
+	//has to be repainted in the next one
+	private DamageTracker damage = new DamageTracker();
+	private volatile boolean invalidated = true;
+	private int lastWidth;
+	private int lastHeight;
+	
+	//Reused for the coordinate system of the responders
+	//and the damaged rectangles
+	private AffineTransform cartesian = new AffineTransform();
+	private Rectangle damagedRect = new Rectangle();
+	
+	//Reused to map the clip to world coordinates and draw the scene
+	private AffineTransform fromCanvas = new AffineTransform();
+	private AffineTransform drawBase = new AffineTransform();
+	private AffineTransform nodeTransform = new AffineTransform();
+	private Rectangle clipRect = new Rectangle();
+	private Rectangle2D.Double visible = new Rectangle2D.Double();
+	private Rectangle2D.Double area = new Rectangle2D.Double();
+	
+	//Whether a frame was advanced and not drawn yet
+	private boolean frameOpen;
+	
+	//Draws the responders in tiles on several threads when set
+	private TileRenderer tileRenderer;
+	
+	//Quality frames are drawn at, the one they will be drawn at
+	//from the next frame on, and what picks it when set
+	private RenderQuality quality = RenderQuality.FULL;
+	private volatile RenderQuality nextQuality = RenderQuality.FULL;
+	private volatile QualityGovernor governor;
+	private long frameStart;
+	
+	//Image the scene is drawn on below full resolution, with its
+	//context and the transforms between it and the world
+	private BufferedImage reduced;
+	private Graphics2D reducedGraphics;
+	private AffineTransform reducedCartesian = new AffineTransform();
+	private AffineTransform reducedFromCanvas = new AffineTransform();
+	
+	/**
+	 * Creates a canvas that draws the responders signaled
+	 * by the given Signaler, simulating them before every frame
+	 * @param signaler source of the notes to visualize
+	 */
+	public Canvas(Signaler signaler)
+	{
+		this(new Simulation(signaler), true);
+		signaler.setMetrics(metrics);
+	}
+	
+	/**
+	 * Creates a canvas that draws the latest tick of a simulation
+	 * shared with other views, which runs its ticks on its own.
+	 * The time from a note being received to being shown is not
+	 * measured by such a canvas
+	 * @param simulation simulation of the responders to draw
+	 */
+	public Canvas(Simulation simulation)
 	{
+		this(simulation, false);
+	}
+	
+	private Canvas(Simulation simulation, boolean drivesSimulation)
+	{
+		this.simulation = simulation;
+		this.drivesSimulation = drivesSimulation;
+		this.snapshot = simulation.acquire();
+		this.metrics = new FrameMetrics(simulation.getSignaler());
 		Dimension size = new Dimension(400, 400);
 		this.setSize(size);
 		this.setPreferredSize(size);
-		responders = new ArrayList<>();
-		startTimer();
+		setupViewControls();
+	}
+	
+	/**
+	 * Zooms the view with the mouse wheel, around the
+	 * pointer, and pans it by dragging
+	 */
+	private void setupViewControls()
+	{
+		MouseAdapter controls = new MouseAdapter()
+		{
+			private int lastX;
+			private int lastY;
+			
+			@Override
+			public void mousePressed(MouseEvent e)
+			{
+				lastX = e.getX();
+				lastY = e.getY();
+			}
+			
+			@Override
+			public void mouseDragged(MouseEvent e)
+			{
+				pan(e.getX() - lastX, e.getY() - lastY);
+				lastX = e.getX();
+				lastY = e.getY();
+			}
+			
+			@Override
+			public void mouseWheelMoved(MouseWheelEvent e)
+			{
+				zoomAt(Math.pow(ZOOM_STEP, -e.getPreciseWheelRotation()), e.getX(), e.getY());
+			}
+		};
+		addMouseListener(controls);
+		addMouseMotionListener(controls);
+		addMouseWheelListener(controls);
 	}
 	
 	/**
-	 * Starts the timer that repaints the frame every
-	 * so often. Needed so that the Signaler
-	 * can 
+	 * Starts the timer that advances the animation and repaints
+	 * what changed every so often. Needed so that the Signaler
+	 * can deliver notes and responders can animate.
+	 * This is the passive rendering mode
 	 */
-	private void startTimer()
+	public void startTimer()
 	{
+		metrics.setTargetInterval(20_000_000L);
 		Timer t = new Timer(20, null);
-		t.addActionListener((ae) -> Main.frame.repaint());
+		t.addActionListener((ae) -> repaintDamage());
 		t.start();
 	}
 	
+	/**
+	 * Advances the animation to now, and asks Swing to
+	 * repaint the areas that changed
+	 */
+	private void repaintDamage()
+	{
+		DamageTracker d = advance(System.nanoTime(), getWidth(), getHeight());
+		if(d.isFull())
+			repaint();
+		else if(d.isEmpty())
+			finishFrame();
+		else
+		{
+			for(int i = 0; i < d.getCount(); i++)
+			{
+				d.getRect(i, damagedRect);
+				repaint(damagedRect);
+			}
+		}
+	}
+	
+	/**
+	 * Starts rendering this canvas from a dedicated thread into an
+	 * accelerated back buffer, instead of relying on the Timer.
+	 * This is the active rendering mode
+	 * @param targetFps amount of frames to render per second
+	 */
+	public void startActiveRendering(int targetFps)
+	{
+		setIgnoreRepaint(true);
+		metrics.setTargetInterval(1_000_000_000L / targetFps);
+		activeRenderer = new ActiveRenderer(this, targetFps);
+		activeRenderer.start();
+	}
+	
+	/**
+	 * Sets the amount of threads the canvas is drawn on. With more
+	 * than one, the canvas is split into tiles that are drawn in
+	 * parallel and then put together
+	 * @param threads amount of threads, 1 to draw on the calling thread
+	 */
+	public void setRenderThreads(int threads)
+	{
+		if(tileRenderer != null)
+			tileRenderer.shutdown();
+		tileRenderer = threads > 1 ? new TileRenderer(threads) : null;
+	}
+	
+	/**
+	 * Paints the canvas when Swing asks for it, within the area Swing
+	 * clips to. The animation is only advanced by the Timer or the
+	 * renderer, never by window events. While actively rendered,
+	 * the last rendered frame is shown again
+	 */
+	public void paintComponent(Graphics g)
+	{
+		if(activeRenderer != null)
+		{
+			activeRenderer.present(g);
+			return;
+		}
+		draw((Graphics2D) g, getWidth(), getHeight());
+	}
+	
+	/**
+	 * Renders a whole frame showing the animation at the current time
+	 * @param g2d graphical context to draw on
+	 * @param width width of the area to draw on
+	 * @param height height of the area to draw on
+	 */
+	public void render(Graphics2D g2d, int width, int height)
+	{
+		render(g2d, width, height, System.nanoTime());
+	}
+	
+	/**
+	 * Advances the animation to the given time and draws the whole frame
+	 * @param g2d graphical context to draw on
+	 * @param width width of the area to draw on
+	 * @param height height of the area to draw on
+	 * @param time time of the frame in nanoseconds. Only the differences
+	 * between the times of successive frames matter
+	 */
+	public void render(Graphics2D g2d, int width, int height, long time)
+	{
+		advance(time, width, height);
+		draw(g2d, width, height);
+	}
+	
+	/**
+	 * Starts a frame. Unless the simulation is shared, the notes received
+	 * since the last frame are delivered, every simulation step due by the
+	 * given time is run, and the responders are captured between the last
+	 * two steps. The latest snapshot of the simulation is then taken, and
+	 * what changed since the snapshot drawn before is reported
+	 * @param time time of the frame in nanoseconds
+	 * @param width width of the area the frame is drawn on
+	 * @param height height of the area the frame is drawn on
+	 * @return the areas that have to be drawn again, valid
+	 * until the next frame is advanced
+	 */
+	public DamageTracker advance(long time, int width, int height)
+	{
+		frameStart = System.nanoTime();
+		metrics.frameStarted(frameStart);
+		frameOpen = true;
+		if(drivesSimulation)
+			simulation.advance(time);
+		SceneSnapshot last = snapshot;
+		snapshot = simulation.acquire();
+		applyQuality();
+		
+		setCartesianCoordinateScheme(cartesian, width, height);
+		damage.reset(width, height, cartesian);
+		
+		//A scene drawn below full resolution is scaled up
+		//as a whole, so it is always repainted in full
+		if(invalidated || width != lastWidth || height != lastHeight || quality.getResolution() < 1)
+		{
+			invalidated = false;
+			lastWidth = width;
+			lastHeight = height;
+			damage.invalidateAll();
+		}
+		
+		//The snapshot drawn before is only needed to tell
+		//what changed, and can then be filled again
+		snapshot.reportDamage(last, damage, cartesian, nodeTransform);
+		last.release();
+		if(metricsOverlay)
+			damage.addCanvas(0, 0, FrameMetrics.OVERLAY_WIDTH, metrics.getOverlayHeight());
+		return damage;
+	}
+	
+	/**
+	 * Moves on to the quality picked for the next frame, and has
+	 * the frame repainted in full when it changed
+	 */
+	private void applyQuality()
+	{
+		RenderQuality next = nextQuality;
+		if(next != quality)
+		{
+			quality = next;
+			invalidated = true;
+			metrics.qualityChanged(next);
+		}
+	}
+	
+	/**
+	 * Draws the current frame, within the clip of the graphical context
+	 * @param g2d graphical context to draw on
+	 * @param width width of the area to draw on
+	 * @param height height of the area to draw on
+	 */
+	public void draw(Graphics2D g2d, int width, int height)
+	{
+		drawContents(g2d, width, height);
+		finishFrame();
+	}
+	
+	/**
+	 * Draws the areas of the current frame that changed since the last
+	 * one. The graphical context must still hold the last frame
+	 * @param g2d graphical context to draw on
+	 * @param width width of the area to draw on
+	 * @param height height of the area to draw on
+	 */
+	public void drawDamage(Graphics2D g2d, int width, int height)
+	{
+		if(damage.isFull())
+		{
+			draw(g2d, width, height);
+			return;
+		}
+		
+		Shape clip = g2d.getClip();
+		for(int i = 0; i < damage.getCount(); i++)
+		{
+			damage.getRect(i, damagedRect);
+			g2d.setClip(damagedRect);
+			drawContents(g2d, width, height);
+		}
+		g2d.setClip(clip);
+		finishFrame();
+	}
+	
+	/**
+	 * Draws the scene at the quality of the frame, and the
+	 * metrics over it when asked to
+	 */
+	private void drawContents(Graphics2D g2d, int width, int height)
+	{
+		g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, quality.isAntialiased()
+				? RenderingHints.VALUE_ANTIALIAS_ON : RenderingHints.VALUE_ANTIALIAS_OFF);
+		if(quality.getResolution() < 1)
+			drawReduced(g2d, width, height, quality.getResolution());
+		else
+			drawScene(g2d, width, height, cartesian, fromCanvas);
+		if(metricsOverlay)
+			metrics.drawOverlay(g2d);
+	}
+	
 	/**
 	 * Sets up the coordinate system, draws the background, and passes
 	 * around the graphical context to each of the registered MIDI responders
+	 * that can be seen within the clip
+	 * @param toCanvas transform from world coordinates to the area
+	 * @param fromCanvas inverse of toCanvas
 	 */
-	public void paintComponent(Graphics g)
+	private void drawScene(Graphics2D g2d, int width, int height, AffineTransform toCanvas, AffineTransform fromCanvas)
 	{
-		Graphics2D g2d = (Graphics2D) g;
-		drawBackground(g2d);
-		setCartesianCoordinateScheme(g2d);
+		visibleArea(g2d, width, height, fromCanvas);
+		if(tileRenderer != null)
+		{
+			tileRenderer.render(g2d, width, height, toCanvas, snapshot, quality, Color.black);
+			metrics.respondersCulled(snapshot.countCulled(area.x, area.y, area.width, area.height));
+			return;
+		}
 		
-		//Draw each response
-		for(MidiResponder m: this.responders) 
-			m.drawResponse(g2d);
+		AffineTransform device = g2d.getTransform();
+		drawBackground(g2d, width, height);
+		drawBase.setTransform(device);
+		drawBase.concatenate(toCanvas);
+		
+		//Draw each response that can be seen, timing each one
+		metrics.respondersCulled(snapshot.draw(g2d, drawBase, area.x, area.y, area.width, area.height,
+				visible, quality, metrics));
+		
+		g2d.setTransform(device);
+	}
+	
+	/**
+	 * Draws the whole scene onto an image smaller than the area,
+	 * then scales the image up onto the graphical context
+	 * @param resolution fraction of the resolution of the area
+	 */
+	private void drawReduced(Graphics2D g2d, int width, int height, double resolution)
+	{
+		int w = Math.max((int) Math.ceil(width * resolution), 1);
+		int h = Math.max((int) Math.ceil(height * resolution), 1);
+		if(reduced == null || reduced.getWidth() != w || reduced.getHeight() != h)
+		{
+			if(reducedGraphics != null)
+				reducedGraphics.dispose();
+			reduced = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+			reducedGraphics = reduced.createGraphics();
+		}
+		
+		double sx = (double) w / width;
+		double sy = (double) h / height;
+		reducedCartesian.setToScale(sx, sy);
+		reducedCartesian.concatenate(cartesian);
+		reducedFromCanvas.setTransform(fromCanvas);
+		reducedFromCanvas.scale(1 / sx, 1 / sy);
+		reducedGraphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, g2d.getRenderingHint(RenderingHints.KEY_ANTIALIASING));
+		drawScene(reducedGraphics, w, h, reducedCartesian, reducedFromCanvas);
+		
+		g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+		g2d.drawImage(reduced, 0, 0, width, height, null);
+	}
+	
+	/**
+	 * Marks the end of the frame that was last advanced, if not
+	 * done already, so the notes it shows are measured as shown
+	 */
+	private void finishFrame()
+	{
+		if(frameOpen)
+		{
+			frameOpen = false;
+			long now = System.nanoTime();
+			metrics.frameFinished(now);
+			QualityGovernor g = governor;
+			if(g != null)
+				nextQuality = g.frameRendered(now - frameStart, metrics.getTargetInterval());
+		}
+	}
+	
+	/**
+	 * Sets the quality frames are drawn at from the next frame on.
+	 * While a governor is set, it starts over from this quality
+	 * @param quality quality to draw at
+	 */
+	public void setQuality(RenderQuality quality)
+	{
+		QualityGovernor g = governor;
+		if(g != null)
+			g.reset(quality);
+		nextQuality = quality;
+	}
+	
+	/**
+	 * @return the quality frames are drawn at from the next frame on
+	 */
+	public RenderQuality getQuality()
+	{
+		return nextQuality;
+	}
+	
+	/**
+	 * Sets what picks the quality of the frames from how long they
+	 * take to render, against the target frame interval
+	 * @param governor governor starting from the current quality,
+	 * or null to keep the quality as it is
+	 */
+	public void setQualityGovernor(QualityGovernor governor)
+	{
+		if(governor != null)
+			governor.reset(nextQuality);
+		this.governor = governor;
+	}
+	
+	/**
+	 * @return the metrics of the frames of this canvas
+	 */
+	public FrameMetrics getMetrics()
+	{
+		return metrics;
+	}
+	
+	/**
+	 * Sets whether the metrics of the frames are drawn
+	 * over the visualization
+	 */
+	public void setMetricsOverlay(boolean metricsOverlay)
+	{
+		this.metricsOverlay = metricsOverlay;
+	}
+	
+	/**
+	 * Sets the area to the part of the world within the clip
+	 * of the graphical context and the canvas
+	 * @param fromCanvas transform from the area to world coordinates
+	 */
+	private void visibleArea(Graphics2D g2d, int width, int height, AffineTransform fromCanvas)
+	{
+		clipRect.setBounds(0, 0, width, height);
+		g2d.getClipBounds(clipRect);
+		int x0 = Math.max(clipRect.x, 0);
+		int y0 = Math.max(clipRect.y, 0);
+		int x1 = Math.min(clipRect.x + clipRect.width, width);
+		int y1 = Math.min(clipRect.y + clipRect.height, height);
+		SceneNode.transformBounds(fromCanvas, x0, y0, Math.max(x1 - x0, 0), Math.max(y1 - y0, 0), area);
 	}
 	
 	/**
 	 * Draws the background
 	 * @param g2d
 	 */
-	private void drawBackground(Graphics2D g2d)
+	private void drawBackground(Graphics2D g2d, int width, int height)
 	{
 		g2d.setBackground(Color.black);
-		g2d.fillRect(0, 0, this.getWidth(), this.getHeight());
+		g2d.setColor(Color.black);
+		g2d.fillRect(0, 0, width, height);
 	}
 	
 	/**
-	 * Sets the coordinate system of the graphical context to be
-	 * more like a cartesian coordinate system where the origin 
-	 * is the center
-	 * @param g2d
+	 * Sets a transform to a coordinate system more like a
+	 * cartesian coordinate system where the origin is the center
+	 * @param at transform to set
+	 */
+	private void setCartesianCoordinateScheme(AffineTransform at, int width, int height)
+	{
+		double z = zoom;
+		at.setToTranslation(width / 2, height / 2);
+		at.scale(z, -z);
+		at.translate(-panX, -panY);
+		
+		fromCanvas.setTransform(at);
+		try
+		{
+			fromCanvas.invert();
+		}
+		catch(NoninvertibleTransformException e)
+		{
+			//The zoom is kept above zero
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Sets the view of the scene
+	 * @param zoom scale of the scene, 1 for a unit per pixel
+	 * @param panX horizontal world coordinate shown at the center
+	 * @param panY vertical world coordinate shown at the center
+	 */
+	public void setView(double zoom, double panX, double panY)
+	{
+		if(!(zoom > 0))
+			throw new IllegalArgumentException("Zoom must be positive");
+		this.zoom = zoom;
+		this.panX = panX;
+		this.panY = panY;
+		invalidated = true;
+	}
+	
+	/**
+	 * Zooms the view, keeping the world point under
+	 * a point of the canvas where it is
+	 * @param factor amount to multiply the zoom by
+	 * @param x horizontal canvas coordinate to zoom around
+	 * @param y vertical canvas coordinate to zoom around
+	 */
+	public void zoomAt(double factor, int x, int y)
+	{
+		double z = zoom;
+		double dx = x - getWidth() / 2;
+		double dy = getHeight() / 2 - y;
+		double nz = z * factor;
+		setView(nz, panX + dx / z - dx / nz, panY + dy / z - dy / nz);
+	}
+	
+	/**
+	 * Moves the view along with the pointer
+	 * @param dx pixels moved to the right
+	 * @param dy pixels moved downwards
+	 */
+	public void pan(int dx, int dy)
+	{
+		double z = zoom;
+		setView(z, panX - dx / z, panY + dy / z);
+	}
+	
+	/**
+	 * @return the zoom of the view
+	 */
+	public double getZoom()
+	{
+		return zoom;
+	}
+	
+	/**
+	 * @return the root of the scene drawn by this canvas. Nodes may
+	 * be added and removed from any thread, and moved between frames
+	 */
+	public SceneNode getScene()
+	{
+		return simulation.getScene();
+	}
+	
+	/**
+	 * @return the simulation of the responders drawn by this canvas
 	 */
-	private void setCartesianCoordinateScheme(Graphics2D g2d)
+	public Simulation getSimulation()
 	{
-		g2d.translate(this.getWidth() / 2, this.getHeight() / 2);
-		g2d.scale(1, -1);
+		return simulation;
 	}
 	
 	/**
-	 * Adds a response to be drawn by this canvas
+	 * Adds a response to be drawn by this canvas, and by
+	 * every other view sharing its simulation
 	 * @param m
 	 */
 	public void addMidiResponder(MidiResponder m)
 	{
-		this.responders.add(m);
+		simulation.getScene().add(new SceneNode(m));
 	}
 	
 	/**
@@ -101,6 +658,10 @@ public class Canvas extends JPanel
 	 */
 	public void removeMidiResponder(MidiResponder m)
 	{
-		this.responders.remove(m);
+		//The scene may be edited from another thread meanwhile
+		SceneNode node = simulation.getScene().find(m);
+		SceneNode parent = node == null ? null : node.getParent();
+		if(parent != null)
+			parent.remove(node);
 	}
 }
@@ -0,0 +1,241 @@
+package vismid;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.ShortMessage;
+
+/**
+ * ChannelSignal is the summary of every note a channel received during
+ * one frame. The Signaler gathers notes into one ChannelSignal per
+ * channel and hands it to the responders of the channel once, so the
+ * work of a responder per frame does not grow with the amount of notes.
+ *
+ * The summary holds how many notes went on and off, the loudest velocity
+ * of the notes that went on, and which notes went on, went off, and were
+ * left on at the end of the frame, along with the last velocity of each
+ * note that went on. Signals are reused from frame to frame,
+ * so responders must not keep them.
+ */
+public class ChannelSignal
+{
+	private int channel;
+	private int onCount;
+	private int offCount;
+	private int maxVelocity;
+
+	//Sets of notes as pairs of longs: notes that went on, notes
+	//that went off, and notes whose last message was a note on
+	private long[] onNotes = new long[2];
+	private long[] offNotes = new long[2];
+	private long[] heldNotes = new long[2];
+
+	//Last velocity of every note, only meaningful for notes that went on
+	private byte[] velocities = new byte[128];
+
+	//Reused for every note replayed
+	private ShortMessage message = new ShortMessage();
+
+	/**
+	 * Creates an empty signal
+	 * @param channel channel address the signal summarizes
+	 */
+	public ChannelSignal(int channel)
+	{
+		this.channel = channel;
+	}
+
+	/**
+	 * Adds a note to the summary
+	 * @param note key of the note
+	 * @param velocity velocity of the note
+	 * @param on whether the note went on or off
+	 */
+	public void add(int note, int velocity, boolean on)
+	{
+		int word = note >> 6;
+		long bit = 1L << (note & 63);
+		if(on)
+		{
+			onCount++;
+			maxVelocity = Math.max(maxVelocity, velocity);
+			onNotes[word] |= bit;
+			heldNotes[word] |= bit;
+			velocities[note] = (byte) velocity;
+		}
+		else
+		{
+			offCount++;
+			offNotes[word] |= bit;
+			heldNotes[word] &= ~bit;
+		}
+	}
+
+	/**
+	 * Empties the summary for the next frame
+	 */
+	public void clear()
+	{
+		onCount = offCount = maxVelocity = 0;
+		onNotes[0] = onNotes[1] = 0;
+		offNotes[0] = offNotes[1] = 0;
+		heldNotes[0] = heldNotes[1] = 0;
+	}
+
+	/**
+	 * @return whether no note was added since the last clear
+	 */
+	public boolean isEmpty()
+	{
+		return onCount == 0 && offCount == 0;
+	}
+
+	/**
+	 * @return the channel address, port * 16 + channel
+	 */
+	public int getChannel()
+	{
+		return channel;
+	}
+
+	/**
+	 * @return the amount of notes that went on
+	 */
+	public int getOnCount()
+	{
+		return onCount;
+	}
+
+	/**
+	 * @return the amount of notes that went off
+	 */
+	public int getOffCount()
+	{
+		return offCount;
+	}
+
+	/**
+	 * @return the loudest velocity of the notes that went on,
+	 * 0 if none did
+	 */
+	public int getMaxVelocity()
+	{
+		return maxVelocity;
+	}
+
+	/**
+	 * @return whether a note went on at least once
+	 */
+	public boolean wentOn(int note)
+	{
+		return (onNotes[note >> 6] & 1L << (note & 63)) != 0;
+	}
+
+	/**
+	 * @return whether a note went off at least once
+	 */
+	public boolean wentOff(int note)
+	{
+		return (offNotes[note >> 6] & 1L << (note & 63)) != 0;
+	}
+
+	/**
+	 * @return whether the last message of a note was a note on
+	 */
+	public boolean isHeld(int note)
+	{
+		return (heldNotes[note >> 6] & 1L << (note & 63)) != 0;
+	}
+
+	/**
+	 * @return the velocity of the last note on of a note,
+	 * only meaningful if the note went on
+	 */
+	public int getVelocity(int note)
+	{
+		return velocities[note];
+	}
+
+	/**
+	 * Finds the notes that went on or off, in ascending order
+	 * @param from lowest note to look at
+	 * @return the lowest note from the given one that went
+	 * on or off, or -1 if there is none
+	 */
+	public int nextNote(int from)
+	{
+		for(int w = from >> 6; w < 2 && from < 128; w++)
+		{
+			long bits = (onNotes[w] | offNotes[w]) & (-1L << (from & 63));
+			if(bits != 0)
+				return w * 64 + Long.numberOfTrailingZeros(bits);
+			from = (w + 1) * 64;
+		}
+		return -1;
+	}
+
+	/**
+	 * Passes the summary on to a responder as single notes: a note
+	 * on at its last velocity for every note that went on, followed
+	 * by a note off for every note that went off and was not left on.
+	 * This is what responders that do not handle signals receive
+	 * @param responder responder to signal
+	 */
+	public void replay(MidiResponder responder)
+	{
+		int ch = channel % Signaler.CHANNELS_PER_PORT;
+		try
+		{
+			for(int w = 0; w < 2; w++)
+			{
+				for(long bits = onNotes[w]; bits != 0; bits &= bits - 1)
+				{
+					int note = w * 64 + Long.numberOfTrailingZeros(bits);
+					message.setMessage(ShortMessage.NOTE_ON, ch, note, velocities[note]);
+					responder.signalOn(message);
+				}
+			}
+			for(int w = 0; w < 2; w++)
+			{
+				for(long bits = offNotes[w] & ~heldNotes[w]; bits != 0; bits &= bits - 1)
+				{
+					message.setMessage(ShortMessage.NOTE_OFF, ch, w * 64 + Long.numberOfTrailingZeros(bits), 0);
+					responder.signalOff(message);
+				}
+			}
+		}
+		catch(InvalidMidiDataException e)
+		{
+			//Notes and velocities are kept within range
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Passes what happened to a single note on to a responder: a
+	 * note on if it went on, then a note off if it was not left on.
+	 * This is what responders subscribed to notes receive
+	 * @param responder responder to signal
+	 * @param note note to signal
+	 */
+	public void replayNote(MidiResponder responder, int note)
+	{
+		int ch = channel % Signaler.CHANNELS_PER_PORT;
+		try
+		{
+			if(wentOn(note))
+			{
+				message.setMessage(ShortMessage.NOTE_ON, ch, note, velocities[note]);
+				responder.signalOn(message);
+			}
+			if(wentOff(note) && !isHeld(note))
+			{
+				message.setMessage(ShortMessage.NOTE_OFF, ch, note, 0);
+				responder.signalOff(message);
+			}
+		}
+		catch(InvalidMidiDataException e)
+		{
+			//Notes and velocities are kept within range
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,258 @@
+package vismid;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+
+/**
+ * DamageTracker collects the areas of the canvas that changed since the
+ * last frame, so that only those need to be cleared and drawn again.
+ *
+ * Responders report what they changed in their own coordinates, which are
+ * mapped to the pixels of the canvas. Overlapping areas are merged as they
+ * are added, and the areas are kept down to a handful of rectangles by
+ * merging the ones that waste the least space when combined. Once the
+ * damage covers most of the canvas, the whole canvas is considered
+ * damaged, as drawing it at once is cheaper than drawing it in pieces.
+ */
+public class DamageTracker
+{
+	//Most rectangles the damage is split into
+	private static final int MAX_RECTS = 4;
+
+	//Fraction of the canvas above which all of it is repainted
+	private static final double FULL_FRACTION = 0.5;
+
+	//Extra pixels around every area, covering rounding and line widths
+	private static final int PADDING = 1;
+
+	private int width;
+	private int height;
+	private AffineTransform toCanvas = new AffineTransform();
+	private boolean full;
+
+	//Damaged rectangles in pixels of the canvas, as x0, y0, x1, y1.
+	//One more than the maximum is kept before merging
+	private int[] rects = new int[(MAX_RECTS + 1) * 4];
+	private int count;
+
+	//Reused to map the corners of reported areas
+	private double[] corners = new double[8];
+
+	/**
+	 * Forgets the damage of the last frame
+	 * @param width width of the canvas in pixels
+	 * @param height height of the canvas in pixels
+	 * @param toCanvas maps the coordinates responders report
+	 * in to pixels of the canvas
+	 */
+	public void reset(int width, int height, AffineTransform toCanvas)
+	{
+		this.width = width;
+		this.height = height;
+		this.toCanvas.setTransform(toCanvas);
+		full = false;
+		count = 0;
+	}
+
+	/**
+	 * Changes how the coordinates reported are mapped to the canvas,
+	 * for responders placed differently from the ones before
+	 * @param toCanvas maps the coordinates responders report
+	 * in to pixels of the canvas
+	 */
+	public void setTransform(AffineTransform toCanvas)
+	{
+		this.toCanvas.setTransform(toCanvas);
+	}
+
+	/**
+	 * Marks the whole canvas as damaged
+	 */
+	public void invalidateAll()
+	{
+		full = true;
+		count = 0;
+	}
+
+	/**
+	 * Adds an area that changed, in the coordinates of the responders
+	 */
+	public void add(double x0, double y0, double x1, double y1)
+	{
+		if(full)
+			return;
+		corners[0] = x0;
+		corners[1] = y0;
+		corners[2] = x1;
+		corners[3] = y0;
+		corners[4] = x0;
+		corners[5] = y1;
+		corners[6] = x1;
+		corners[7] = y1;
+		toCanvas.transform(corners, 0, corners, 0, 4);
+
+		double minX = Math.min(Math.min(corners[0], corners[2]), Math.min(corners[4], corners[6]));
+		double minY = Math.min(Math.min(corners[1], corners[3]), Math.min(corners[5], corners[7]));
+		double maxX = Math.max(Math.max(corners[0], corners[2]), Math.max(corners[4], corners[6]));
+		double maxY = Math.max(Math.max(corners[1], corners[3]), Math.max(corners[5], corners[7]));
+		addCanvas((int) Math.floor(minX), (int) Math.floor(minY),
+				(int) Math.ceil(maxX), (int) Math.ceil(maxY));
+	}
+
+	/**
+	 * Adds an area that changed, in pixels of the canvas
+	 */
+	public void addCanvas(int x0, int y0, int x1, int y1)
+	{
+		if(full)
+			return;
+		x0 = Math.max(x0 - PADDING, 0);
+		y0 = Math.max(y0 - PADDING, 0);
+		x1 = Math.min(x1 + PADDING, width);
+		y1 = Math.min(y1 + PADDING, height);
+
+		//Off the canvas
+		if(x0 >= x1 || y0 >= y1)
+			return;
+
+		//Absorb every rectangle the new one touches, which
+		//may make it touch others
+		boolean merged = true;
+		while(merged)
+		{
+			merged = false;
+			for(int i = 0; i < count; i++)
+			{
+				int r = i * 4;
+				if(x0 <= rects[r + 2] && rects[r] <= x1 && y0 <= rects[r + 3] && rects[r + 1] <= y1)
+				{
+					x0 = Math.min(x0, rects[r]);
+					y0 = Math.min(y0, rects[r + 1]);
+					x1 = Math.max(x1, rects[r + 2]);
+					y1 = Math.max(y1, rects[r + 3]);
+					remove(i);
+					merged = true;
+					break;
+				}
+			}
+		}
+
+		int r = count * 4;
+		rects[r] = x0;
+		rects[r + 1] = y0;
+		rects[r + 2] = x1;
+		rects[r + 3] = y1;
+		count++;
+
+		if(count > MAX_RECTS)
+			mergeCheapestPair();
+		if(getArea() > FULL_FRACTION * width * height)
+			invalidateAll();
+	}
+
+	/**
+	 * Merges the two rectangles whose union covers the least
+	 * area that neither of them did
+	 */
+	private void mergeCheapestPair()
+	{
+		int bestA = 0;
+		int bestB = 1;
+		long bestWaste = Long.MAX_VALUE;
+		for(int a = 0; a < count; a++)
+		{
+			for(int b = a + 1; b < count; b++)
+			{
+				long waste = unionArea(a, b) - area(a) - area(b);
+				if(waste < bestWaste)
+				{
+					bestWaste = waste;
+					bestA = a;
+					bestB = b;
+				}
+			}
+		}
+
+		int ra = bestA * 4;
+		int rb = bestB * 4;
+		int x0 = Math.min(rects[ra], rects[rb]);
+		int y0 = Math.min(rects[ra + 1], rects[rb + 1]);
+		int x1 = Math.max(rects[ra + 2], rects[rb + 2]);
+		int y1 = Math.max(rects[ra + 3], rects[rb + 3]);
+		remove(bestB);
+		remove(bestA);
+
+		//The union may now touch other rectangles
+		addCanvas(x0 + PADDING, y0 + PADDING, x1 - PADDING, y1 - PADDING);
+	}
+
+	private void remove(int i)
+	{
+		count--;
+		System.arraycopy(rects, (i + 1) * 4, rects, i * 4, (count - i) * 4);
+	}
+
+	private long area(int i)
+	{
+		int r = i * 4;
+		return (long) (rects[r + 2] - rects[r]) * (rects[r + 3] - rects[r + 1]);
+	}
+
+	private long unionArea(int a, int b)
+	{
+		int ra = a * 4;
+		int rb = b * 4;
+		long w = Math.max(rects[ra + 2], rects[rb + 2]) - Math.min(rects[ra], rects[rb]);
+		long h = Math.max(rects[ra + 3], rects[rb + 3]) - Math.min(rects[ra + 1], rects[rb + 1]);
+		return w * h;
+	}
+
+	/**
+	 * @return whether the whole canvas has to be repainted
+	 */
+	public boolean isFull()
+	{
+		return full;
+	}
+
+	/**
+	 * @return whether nothing has to be repainted
+	 */
+	public boolean isEmpty()
+	{
+		return !full && count == 0;
+	}
+
+	/**
+	 * @return the amount of damaged rectangles, 0 when the
+	 * whole canvas is damaged
+	 */
+	public int getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Gets a damaged rectangle
+	 * @param i index of the rectangle
+	 * @param out receives the rectangle in pixels of the canvas
+	 */
+	public void getRect(int i, Rectangle out)
+	{
+		int r = i * 4;
+		out.setBounds(rects[r], rects[r + 1], rects[r + 2] - rects[r], rects[r + 3] - rects[r + 1]);
+	}
+
+	/**
+	 * @return the amount of damaged pixels
+	 */
+	public long getArea()
+	{
+		if(full)
+			return (long) width * height;
+		long area = 0;
+		for(int i = 0; i < count; i++)
+			area += area(i);
+		return area;
+	}
+}
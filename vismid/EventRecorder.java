@@ -0,0 +1,238 @@
+package vismid;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+
+/**
+ * EventRecorder appends every MIDI message a Signaler receives, with the
+ * time it was received, to a compact binary log, so that a performance
+ * can be replayed exactly by an EventReplayer.
+ *
+ * The log is written through memory mapped segments of the file, and a
+ * message is recorded with an atomic increment and a few stores, without
+ * locking, allocating or calling into the system, so recording can be
+ * left on in production. Any amount of ports can record at once, each
+ * on the thread of its transmitter.
+ *
+ * The log starts with a header of 16 bytes: the magic number, the version
+ * and the wall clock time the recording started at. Every message then
+ * takes a record of 16 bytes: the nanoseconds since the recording started,
+ * the port, the status and data bytes, and the length of the message. The
+ * length is stored last, so a record still being written when the process
+ * dies reads as the end of the log. Records are in the order they were
+ * taken, which across ports may differ slightly from the order of their
+ * times.
+ *
+ * Only short messages are recorded, the only ones the Signaler acts on.
+ */
+public class EventRecorder implements AutoCloseable
+{
+	//"VMRL", as a big endian integer
+	static final int MAGIC = 0x564D524C;
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 16;
+	static final int RECORD_BYTES = 16;
+
+	//Offsets within a record
+	static final int NANOS = 0;
+	static final int PORT = 8;
+	static final int STATUS = 12;
+	static final int DATA1 = 13;
+	static final int DATA2 = 14;
+	static final int LENGTH = 15;
+
+	//Bytes mapped at once, a whole number of records after the header
+	static final int SEGMENT_BYTES = 1 << 24;
+
+	//Reservation counter value once closed, far enough from overflowing
+	//however many messages arrive after closing
+	private static final long CLOSED = Long.MAX_VALUE / 2;
+
+	private File file;
+	private FileChannel channel;
+	private long startNanos;
+
+	//Most records the log may hold and bytes they take,
+	//and records reserved so far
+	private long capacity;
+	private long limit;
+	private AtomicLong reserved = new AtomicLong();
+
+	//Mapped segments of the file, replaced as a whole when grown.
+	//A null entry is not mapped yet
+	private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+	//Records in the log and left out of it, once closed
+	private long recorded;
+	private long dropped;
+
+	/**
+	 * Creates a log, replacing any file of the same name, and starts
+	 * recording with no limit to its size
+	 * @param file file to write the log to
+	 */
+	public EventRecorder(File file) throws IOException
+	{
+		this(file, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Creates a log, replacing any file of the same name, and starts
+	 * recording. Messages that would make the log larger than the given
+	 * size are left out, so a recording left on cannot fill the disk
+	 * @param file file to write the log to
+	 * @param maxBytes most bytes the log may take
+	 */
+	public EventRecorder(File file, long maxBytes) throws IOException
+	{
+		if(maxBytes < HEADER_BYTES)
+			throw new IllegalArgumentException("Log must hold at least its header: " + maxBytes);
+		this.file = file;
+		this.capacity = (maxBytes - HEADER_BYTES) / RECORD_BYTES;
+		this.limit = HEADER_BYTES + capacity * RECORD_BYTES;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		MappedByteBuffer first = segment(0);
+		if(first == null)
+			throw new IOException("Cannot map event log " + file);
+		first.putInt(0, MAGIC);
+		first.putInt(4, VERSION);
+		first.putLong(8, System.currentTimeMillis());
+		startNanos = System.nanoTime();
+	}
+
+	/**
+	 * Records a message received now. Safe to call from several
+	 * threads at once
+	 * @param port port the message was received on
+	 * @param message message received. Messages other than
+	 * short messages are not recorded
+	 * @return whether the message was recorded
+	 */
+	public boolean record(int port, MidiMessage message)
+	{
+		if(!(message instanceof ShortMessage))
+			return false;
+		ShortMessage sm = (ShortMessage) message;
+		long nanos = System.nanoTime() - startNanos;
+		long i = reserved.getAndIncrement();
+		if(i >= capacity)
+			return false;
+
+		long position = HEADER_BYTES + i * RECORD_BYTES;
+		int s = (int) (position / SEGMENT_BYTES);
+		int offset = (int) (position % SEGMENT_BYTES);
+		MappedByteBuffer b = segment(s);
+		if(b == null)
+			return false;
+
+		//Map the next segment ahead, so that writers
+		//seldom wait for the file to grow
+		if(offset == 0)
+			segment(s + 1);
+
+		b.putLong(offset + NANOS, nanos);
+		b.putInt(offset + PORT, port);
+		b.put(offset + STATUS, (byte) sm.getStatus());
+		b.put(offset + DATA1, (byte) sm.getData1());
+		b.put(offset + DATA2, (byte) sm.getData2());
+		b.put(offset + LENGTH, (byte) sm.getLength());
+		return true;
+	}
+
+	/**
+	 * Gets a mapped segment of the file, mapping it if needed
+	 * @return the segment, or null if the file cannot grow
+	 */
+	private MappedByteBuffer segment(int s)
+	{
+		MappedByteBuffer[] mapped = segments;
+		if(s < mapped.length && mapped[s] != null)
+			return mapped[s];
+		return map(s);
+	}
+
+	private synchronized MappedByteBuffer map(int s)
+	{
+		MappedByteBuffer[] mapped = segments;
+		if(s < mapped.length && mapped[s] != null)
+			return mapped[s];
+		if(!channel.isOpen())
+			return null;
+		long start = (long) s * SEGMENT_BYTES;
+		if(start >= limit)
+			return null;
+		try
+		{
+			MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(SEGMENT_BYTES, limit - start));
+			mapped = Arrays.copyOf(mapped, Math.max(mapped.length, s + 1));
+			mapped[s] = b;
+			segments = mapped;
+			return b;
+		}
+		catch(IOException e)
+		{
+			//Messages keep flowing whether or not they can be recorded
+			System.err.println("Cannot grow event log " + file + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * @return the amount of messages recorded so far
+	 */
+	public synchronized long getRecorded()
+	{
+		long r = reserved.get();
+		return r >= CLOSED ? recorded : Math.min(r, capacity);
+	}
+
+	/**
+	 * @return the amount of messages left out because the log was full
+	 * or closed
+	 */
+	public synchronized long getDropped()
+	{
+		long r = reserved.get();
+		return r >= CLOSED ? dropped + r - CLOSED : Math.max(r - capacity, 0);
+	}
+
+	/**
+	 * Stops recording, and cuts the file down to the records written.
+	 * Messages should no longer be sent to the recorder; those that still
+	 * are get left out
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if(!channel.isOpen())
+			return;
+		long end = reserved.getAndSet(CLOSED);
+		dropped = Math.max(end - capacity, 0);
+		recorded = end = Math.min(end, capacity);
+		for(MappedByteBuffer b: segments)
+			if(b != null)
+				b.force();
+
+		//Segments stay mapped until collected, which keeps some
+		//systems from shortening the file. The record past the
+		//last one is then empty, and marks the end of the log
+		try
+		{
+			channel.truncate(HEADER_BYTES + end * RECORD_BYTES);
+		}
+		catch(IOException e)
+		{
+			//The log is read up to its first empty record
+		}
+		channel.close();
+	}
+}
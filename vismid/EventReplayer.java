@@ -0,0 +1,327 @@
+package vismid;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+
+/**
+ * EventReplayer feeds a log written by an EventRecorder back into a
+ * Signaler, each message on the port it was received on, so that a
+ * performance can be shown again exactly as it was, as often as needed.
+ *
+ * Messages are sent at the times they were received, sped up by a given
+ * factor, or as fast as they can be sent. The same log replayed at the
+ * same speed sends the same messages in the same order; only how well
+ * their times are kept depends on the machine. A message recorded
+ * before the one ahead of it, on another port, is sent at once.
+ *
+ * Like MappedMidiFile, the log is memory mapped and read in place, so
+ * logs of any size are replayed in a fixed amount of heap. A Cursor walks
+ * the records, exposing them as primitive fields rather than as objects.
+ * Replaying sends from a single thread, which feeds every port, so no
+ * other transmitter may feed the ports of the log while it runs.
+ */
+public class EventReplayer implements Runnable
+{
+	//Speed at which messages are sent without waiting between them
+	public static final double AS_FAST_AS_POSSIBLE = Double.POSITIVE_INFINITY;
+
+	private long startMillis;
+	private List<ByteBuffer> segments = new ArrayList<>();
+
+	//Records up to the end of the log, and ports they were received on
+	private long records;
+	private int ports;
+
+	//Replay in progress, when started on a thread of its own
+	private Signaler signaler;
+	private double speed;
+	private volatile boolean running;
+	private volatile boolean stopped;
+	private volatile long sent;
+	private Thread thread;
+
+	/**
+	 * Maps a log and finds where it ends
+	 * @param file log written by an EventRecorder
+	 * @throws IOException if the file cannot be read or is not a log
+	 */
+	public EventReplayer(File file) throws IOException
+	{
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			long size = channel.size();
+			for(long position = 0; position < size; position += EventRecorder.SEGMENT_BYTES)
+				segments.add(channel.map(FileChannel.MapMode.READ_ONLY, position,
+						Math.min(EventRecorder.SEGMENT_BYTES, size - position)));
+			ByteBuffer header = segments.isEmpty() ? null : segments.get(0);
+			if(header == null || header.limit() < EventRecorder.HEADER_BYTES
+					|| header.getInt(0) != EventRecorder.MAGIC)
+				throw new IOException("Not an event log: " + file);
+			if(header.getInt(4) != EventRecorder.VERSION)
+				throw new IOException("Unknown event log version " + header.getInt(4) + ": " + file);
+			startMillis = header.getLong(8);
+		}
+
+		//The log ends at the end of the file, or at the first record
+		//never written, if the recording did not end by closing
+		Cursor c = cursor();
+		while(c.next())
+			ports = Math.max(ports, c.getPort() + 1);
+		records = c.index;
+	}
+
+	/**
+	 * @return the wall clock time the recording started at,
+	 * as in System.currentTimeMillis
+	 */
+	public long getStartMillis()
+	{
+		return startMillis;
+	}
+
+	/**
+	 * @return the amount of messages in the log
+	 */
+	public long getRecordCount()
+	{
+		return records;
+	}
+
+	/**
+	 * @return the amount of ports needed to replay the log,
+	 * counting from port 0
+	 */
+	public int getPortCount()
+	{
+		return ports;
+	}
+
+	/**
+	 * @return a new cursor before the first message of the log
+	 */
+	public Cursor cursor()
+	{
+		return new Cursor();
+	}
+
+	/**
+	 * Sends every message of the log to a Signaler on the calling
+	 * thread, returning once all are sent or the replay is stopped
+	 * @param signaler signaler to send the messages to
+	 * @param speed how many times faster than recorded the messages
+	 * are sent, or AS_FAST_AS_POSSIBLE
+	 * @return the amount of messages sent
+	 */
+	public long replay(Signaler signaler, double speed)
+	{
+		if(!(speed > 0))
+			throw new IllegalArgumentException("Speed must be positive: " + speed);
+		stopped = false;
+		return send(signaler, speed);
+	}
+
+	/**
+	 * Sends the messages of the log until all are sent or stopped
+	 */
+	private long send(Signaler signaler, double speed)
+	{
+		Receiver[] receivers = new Receiver[ports];
+		for(int p = 0; p < ports; p++)
+			receivers[p] = signaler.receiverForPort(p);
+
+		//Reused for every message, which ports only read while sending
+		ShortMessage message = new ShortMessage();
+		running = true;
+		sent = 0;
+		long count = 0;
+		long start = System.nanoTime();
+		Cursor c = cursor();
+		long origin = -1;
+		while(!stopped && c.next())
+		{
+			//Time is counted from the first message, so that
+			//the silence before it is not replayed
+			if(origin < 0)
+				origin = c.getNanos();
+			if(speed != AS_FAST_AS_POSSIBLE)
+			{
+				//Parking may end early, so wait until the time has come
+				long due = start + (long) ((c.getNanos() - origin) / speed);
+				long wait;
+				while(!stopped && (wait = due - System.nanoTime()) > 0)
+					LockSupport.parkNanos(wait);
+				if(stopped)
+					break;
+			}
+			try
+			{
+				message.setMessage(c.getStatus(), c.getData1(), c.getData2());
+			}
+			catch(InvalidMidiDataException e)
+			{
+				//Recorded from a valid ShortMessage, so
+				//this cannot happen unless the log is corrupt
+				continue;
+			}
+			receivers[c.getPort()].send(message, -1);
+			sent = ++count;
+		}
+		running = false;
+		return count;
+	}
+
+	/**
+	 * Starts replaying the log on a new thread
+	 * @param signaler signaler to send the messages to
+	 * @param speed how many times faster than recorded the messages
+	 * are sent, or AS_FAST_AS_POSSIBLE
+	 */
+	public void start(Signaler signaler, double speed)
+	{
+		if(!(speed > 0))
+			throw new IllegalArgumentException("Speed must be positive: " + speed);
+		this.signaler = signaler;
+		this.speed = speed;
+		stopped = false;
+		running = true;
+		thread = new Thread(this, "vismid-replay");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops replaying and waits for the message being sent
+	 */
+	public void stop() throws InterruptedException
+	{
+		stopped = true;
+		if(thread == null)
+			return;
+		thread.join();
+		thread = null;
+	}
+
+	/**
+	 * Replays the log as started
+	 */
+	@Override
+	public void run()
+	{
+		send(signaler, speed);
+	}
+
+	/**
+	 * @return whether a replay is in progress
+	 */
+	public boolean isRunning()
+	{
+		return running;
+	}
+
+	/**
+	 * @return the amount of messages sent by the replay
+	 * in progress, or the last one
+	 */
+	public long getSent()
+	{
+		return sent;
+	}
+
+	/**
+	 * Cursor walks the records of the log in the order they were taken.
+	 * After next() returns true, the fields of the cursor describe the
+	 * current message
+	 */
+	public class Cursor
+	{
+		//Index of the next record
+		private long index;
+
+		//Current message
+		private long nanos;
+		private int port;
+		private int status;
+		private int data1;
+		private int data2;
+
+		private Cursor()
+		{
+		}
+
+		/**
+		 * Moves to the next message
+		 * @return false once the end of the log is reached
+		 */
+		public boolean next()
+		{
+			long position = EventRecorder.HEADER_BYTES + index * EventRecorder.RECORD_BYTES;
+			int s = (int) (position / EventRecorder.SEGMENT_BYTES);
+			int offset = (int) (position % EventRecorder.SEGMENT_BYTES);
+			if(s >= segments.size())
+				return false;
+			ByteBuffer b = segments.get(s);
+			if(offset + EventRecorder.RECORD_BYTES > b.limit() || b.get(offset + EventRecorder.LENGTH) == 0)
+				return false;
+
+			nanos = b.getLong(offset + EventRecorder.NANOS);
+			port = b.getInt(offset + EventRecorder.PORT);
+			status = b.get(offset + EventRecorder.STATUS) & 0xFF;
+			data1 = b.get(offset + EventRecorder.DATA1) & 0xFF;
+			data2 = b.get(offset + EventRecorder.DATA2) & 0xFF;
+			index++;
+			return true;
+		}
+
+		/**
+		 * @return the time the current message was received at,
+		 * in nanoseconds since the recording started
+		 */
+		public long getNanos()
+		{
+			return nanos;
+		}
+
+		/**
+		 * @return the port the current message was received on
+		 */
+		public int getPort()
+		{
+			return port;
+		}
+
+		/**
+		 * @return the status byte of the current message, command and channel
+		 */
+		public int getStatus()
+		{
+			return status;
+		}
+
+		/**
+		 * @return the first data byte of the current message
+		 */
+		public int getData1()
+		{
+			return data1;
+		}
+
+		/**
+		 * @return the second data byte of the current message,
+		 * 0 for messages with fewer data bytes
+		 */
+		public int getData2()
+		{
+			return data2;
+		}
+	}
+}
@@ -0,0 +1,413 @@
+package vismid;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * FrameMetrics records how long frames take to render and how steadily
+ * they are rendered, how long each responder takes to draw, how long
+ * it takes for a received note to show up on screen, and how far from
+ * the time it was meant to be seen at.
+ *
+ * Everything is recorded into fixed size histograms by the thread that
+ * renders, so measuring does not allocate. The results can be read
+ * through JMX once registered, or drawn over the visualization.
+ */
+public class FrameMetrics implements FrameMetricsMBean
+{
+	//Name the metrics are registered under with JMX
+	public static final String OBJECT_NAME = "vismid:type=FrameMetrics";
+
+	//Amount of dispatched notes remembered until their frame ends
+	private static final int MAX_PENDING_EVENTS = 8192;
+
+	private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+	//Width of the overlay in pixels
+	public static final int OVERLAY_WIDTH = 300;
+
+	//Shade behind the overlay text so it stays readable
+	private static final Color OVERLAY_BACKGROUND = new Color(0, 0, 0, 160);
+
+	private LatencyHistogram intervals = new LatencyHistogram();
+	private LatencyHistogram jitter = new LatencyHistogram();
+	private LatencyHistogram renderTimes = new LatencyHistogram();
+	private LatencyHistogram eventLatency = new LatencyHistogram();
+	
+	//How far notes are shown from their presentation time, either way,
+	//along with the sum of the signed errors for their mean
+	private LatencyHistogram syncError = new LatencyHistogram();
+	private long syncErrorSum;
+	private LatencyHistogram[] drawTimes = new LatencyHistogram[0];
+
+	//Signaler whose lost notes are reported
+	private Signaler signaler;
+
+	//Time frames are meant to be apart, 0 if unknown
+	private volatile long targetInterval;
+
+	private long frameStart;
+	private long lastFrameStart;
+	private long frames;
+	private long droppedFrames;
+
+	//Responders left out of the last frame as they could not be seen
+	private volatile int culledResponders;
+
+	//Quality frames are drawn at, and how often it changed
+	private volatile RenderQuality quality = RenderQuality.FULL;
+	private volatile long qualityChanges;
+
+	//Times at which the notes dispatched for the current frame were
+	//received, and at which they were meant to be seen. When views
+	//share a Simulation, notes are dispatched on its thread while
+	//frames finish on another, so both hold the lock of the arrays
+	private final long[] pendingEvents = new long[MAX_PENDING_EVENTS];
+	private long[] pendingPresentations = new long[MAX_PENDING_EVENTS];
+	private int pendingCount;
+
+	//Font of the overlay, derived once from the first context drawn on
+	private Font overlayFont;
+	private int overlayHeight;
+
+	/**
+	 * Creates metrics for frames showing the notes of a Signaler
+	 * @param signaler signaler whose lost notes are reported
+	 */
+	public FrameMetrics(Signaler signaler)
+	{
+		this.signaler = signaler;
+	}
+
+	/**
+	 * Sets the time frames are meant to be apart, used to tell how
+	 * much frames deviate from the schedule and how many are dropped
+	 * @param nanos target frame interval in nanoseconds
+	 */
+	public void setTargetInterval(long nanos)
+	{
+		targetInterval = nanos;
+	}
+
+	/**
+	 * @return the time frames are meant to be apart in
+	 * nanoseconds, 0 if unknown
+	 */
+	public long getTargetInterval()
+	{
+		return targetInterval;
+	}
+
+	/**
+	 * Marks the start of a frame
+	 * @param now current System.nanoTime
+	 */
+	public void frameStarted(long now)
+	{
+		frameStart = now;
+		if(lastFrameStart != 0)
+		{
+			long interval = now - lastFrameStart;
+			intervals.record(interval);
+
+			long target = targetInterval;
+			if(target > 0)
+			{
+				jitter.record(Math.abs(interval - target));
+
+				//Every whole target interval missed is a frame
+				//that was not shown
+				if(interval > target * 3 / 2)
+					droppedFrames += (interval + target / 2) / target - 1;
+			}
+		}
+		lastFrameStart = now;
+	}
+
+	/**
+	 * Records how long a responder took to draw
+	 * @param index position of the responder in the drawing order
+	 * @param nanos time taken to draw
+	 */
+	public void responderDrawn(int index, long nanos)
+	{
+		//Only grows when responders are added
+		if(index >= drawTimes.length)
+		{
+			LatencyHistogram[] grown = Arrays.copyOf(drawTimes, index + 1);
+			for(int i = drawTimes.length; i < grown.length; i++)
+				grown[i] = new LatencyHistogram();
+			drawTimes = grown;
+		}
+		drawTimes[index].record(nanos);
+	}
+
+	/**
+	 * Records how many responders the current frame left out
+	 * @param count responders that could not be seen
+	 */
+	public void respondersCulled(int count)
+	{
+		culledResponders = count;
+	}
+
+	/**
+	 * Records that the frames are drawn at another quality from
+	 * the current frame on
+	 * @param quality new quality of the frames
+	 */
+	public void qualityChanged(RenderQuality quality)
+	{
+		this.quality = quality;
+		qualityChanges++;
+	}
+
+	/**
+	 * Remembers that a note is about to be shown by the current frame
+	 * @param eventNanos System.nanoTime at which the note was received
+	 * @param presentNanos System.nanoTime at which the note was
+	 * meant to be seen
+	 */
+	public void eventDispatched(long eventNanos, long presentNanos)
+	{
+		synchronized(pendingEvents)
+		{
+			//Too many notes for one frame, count the ones
+			//seen so far as shown now
+			if(pendingCount == pendingEvents.length)
+				recordLatencies(System.nanoTime());
+			pendingEvents[pendingCount] = eventNanos;
+			pendingPresentations[pendingCount++] = presentNanos;
+		}
+	}
+
+	/**
+	 * Marks the end of a frame. The notes dispatched during the
+	 * frame are considered shown from now on
+	 * @param now current System.nanoTime
+	 */
+	public void frameFinished(long now)
+	{
+		frames++;
+		renderTimes.record(now - frameStart);
+		synchronized(pendingEvents)
+		{
+			recordLatencies(now);
+		}
+	}
+
+	/**
+	 * Records the latency of every note dispatched since the last call.
+	 * Called holding the lock of the pending notes
+	 */
+	private void recordLatencies(long shown)
+	{
+		for(int i = 0; i < pendingCount; i++)
+		{
+			eventLatency.record(shown - pendingEvents[i]);
+			long error = shown - pendingPresentations[i];
+			syncError.record(Math.abs(error));
+			syncErrorSum += error;
+		}
+		pendingCount = 0;
+	}
+
+	/**
+	 * Registers these metrics with the platform MBean server
+	 */
+	public void register() throws JMException
+	{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(OBJECT_NAME);
+		if(server.isRegistered(name))
+			server.unregisterMBean(name);
+		server.registerMBean(this, name);
+	}
+
+	/**
+	 * Draws a summary of the metrics in the top left corner of
+	 * a graphical context, in device coordinates
+	 * @param g2d graphical context to draw on
+	 */
+	public void drawOverlay(Graphics2D g2d)
+	{
+		if(overlayFont == null)
+			overlayFont = g2d.getFont().deriveFont(Font.PLAIN, 11f);
+		g2d.setFont(overlayFont);
+		int line = g2d.getFontMetrics().getHeight();
+		overlayHeight = line * 5 + 4;
+		g2d.setColor(OVERLAY_BACKGROUND);
+		g2d.fillRect(0, 0, OVERLAY_WIDTH, overlayHeight);
+		g2d.setColor(Color.WHITE);
+		int y = line;
+		g2d.drawString(String.format("frame %.1f ms p99 %.1f  jitter p99 %.1f",
+				getFrameIntervalMeanMillis(), getFrameIntervalP99Millis(), getFrameJitterP99Millis()), 4, y);
+		y += line;
+		g2d.drawString(String.format("render %.2f ms p99 %.2f  dropped %d",
+				getRenderTimeMeanMillis(), getRenderTimeP99Millis(), droppedFrames), 4, y);
+		y += line;
+		g2d.drawString(String.format("note->pixel p50 %.1f ms p99 %.1f  lost %d",
+				getEventLatencyP50Millis(), getEventLatencyP99Millis(), getDroppedEvents()), 4, y);
+		y += line;
+		g2d.drawString(String.format("sync %+.1f ms p99 %.1f  offset %.0f ms",
+				getSyncErrorMeanMillis(), getSyncErrorP99Millis(), getPresentationOffsetMillis()), 4, y);
+		y += line;
+		g2d.drawString(String.format("quality %s  changes %d", quality, qualityChanges), 4, y);
+	}
+
+	/**
+	 * @return the height of the overlay in pixels, 0 until it is drawn
+	 */
+	public int getOverlayHeight()
+	{
+		return overlayHeight;
+	}
+
+	@Override
+	public long getFrameCount()
+	{
+		return frames;
+	}
+
+	@Override
+	public long getDroppedFrames()
+	{
+		return droppedFrames;
+	}
+
+	@Override
+	public long getDroppedEvents()
+	{
+		return signaler.droppedEvents();
+	}
+
+	@Override
+	public int getCulledResponders()
+	{
+		return culledResponders;
+	}
+
+	@Override
+	public String getQuality()
+	{
+		return quality.name();
+	}
+
+	@Override
+	public long getQualityChanges()
+	{
+		return qualityChanges;
+	}
+
+	@Override
+	public double getFrameIntervalMeanMillis()
+	{
+		return intervals.getMean() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getFrameIntervalP99Millis()
+	{
+		return intervals.getPercentile(0.99) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getFrameJitterP99Millis()
+	{
+		return jitter.getPercentile(0.99) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getRenderTimeMeanMillis()
+	{
+		return renderTimes.getMean() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getRenderTimeP99Millis()
+	{
+		return renderTimes.getPercentile(0.99) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getEventLatencyP50Millis()
+	{
+		return eventLatency.getPercentile(0.5) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getEventLatencyP99Millis()
+	{
+		return eventLatency.getPercentile(0.99) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getEventLatencyMaxMillis()
+	{
+		return eventLatency.getMax() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getSyncErrorMeanMillis()
+	{
+		long n = syncError.getCount();
+		return n == 0 ? 0 : syncErrorSum / (double) n / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getSyncErrorP99Millis()
+	{
+		return syncError.getPercentile(0.99) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getSyncErrorMaxMillis()
+	{
+		return syncError.getMax() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getPresentationOffsetMillis()
+	{
+		return signaler.getScheduler().getOffset() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public void setPresentationOffsetMillis(double millis)
+	{
+		signaler.getScheduler().setOffset((long) (millis * NANOS_PER_MILLI));
+	}
+
+	@Override
+	public double[] getResponderDrawMeanMillis()
+	{
+		LatencyHistogram[] times = drawTimes;
+		double[] means = new double[times.length];
+		for(int i = 0; i < times.length; i++)
+			means[i] = times[i].getMean() / NANOS_PER_MILLI;
+		return means;
+	}
+
+	@Override
+	public void reset()
+	{
+		intervals.reset();
+		jitter.reset();
+		renderTimes.reset();
+		eventLatency.reset();
+		syncError.reset();
+		syncErrorSum = 0;
+		for(LatencyHistogram h: drawTimes)
+			h.reset();
+		droppedFrames = 0;
+		frames = 0;
+		qualityChanges = 0;
+	}
+}
@@ -0,0 +1,101 @@
+package vismid;
+
+/**
+ * Management interface of FrameMetrics. Times are reported in
+ * milliseconds, percentiles are within about 6% of their true value.
+ */
+public interface FrameMetricsMBean
+{
+	/**
+	 * @return the amount of frames rendered
+	 */
+	public long getFrameCount();
+
+	/**
+	 * @return the amount of frames that should have been rendered
+	 * on schedule but were not
+	 */
+	public long getDroppedFrames();
+
+	/**
+	 * @return the amount of notes lost because too many arrived
+	 * between two frames
+	 */
+	public long getDroppedEvents();
+
+	/**
+	 * @return the amount of responders the last frame left
+	 * out because they could not be seen
+	 */
+	public int getCulledResponders();
+
+	/**
+	 * @return the name of the RenderQuality frames are drawn at
+	 */
+	public String getQuality();
+
+	/**
+	 * @return the amount of times the quality of the frames changed
+	 */
+	public long getQualityChanges();
+
+	public double getFrameIntervalMeanMillis();
+
+	public double getFrameIntervalP99Millis();
+
+	/**
+	 * @return the 99th percentile of how far frame intervals
+	 * deviate from the target interval
+	 */
+	public double getFrameJitterP99Millis();
+
+	public double getRenderTimeMeanMillis();
+
+	public double getRenderTimeP99Millis();
+
+	/**
+	 * @return the median time from a note being received to the end
+	 * of the first frame that shows it
+	 */
+	public double getEventLatencyP50Millis();
+
+	public double getEventLatencyP99Millis();
+
+	public double getEventLatencyMaxMillis();
+
+	/**
+	 * @return the mean of how much later notes are shown than they
+	 * are meant to be seen, negative when shown early
+	 */
+	public double getSyncErrorMeanMillis();
+
+	/**
+	 * @return the 99th percentile of how far notes are shown from
+	 * when they are meant to be seen, either way
+	 */
+	public double getSyncErrorP99Millis();
+
+	public double getSyncErrorMaxMillis();
+
+	/**
+	 * @return how long after being sent notes are meant to be seen
+	 */
+	public double getPresentationOffsetMillis();
+
+	/**
+	 * Sets how long after being sent notes are meant to be seen,
+	 * to line the visuals up with the audio while playing
+	 */
+	public void setPresentationOffsetMillis(double millis);
+
+	/**
+	 * @return the mean time each responder takes to draw,
+	 * in the order they are drawn
+	 */
+	public double[] getResponderDrawMeanMillis();
+
+	/**
+	 * Forgets everything recorded so far
+	 */
+	public void reset();
+}
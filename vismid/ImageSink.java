@@ -0,0 +1,127 @@
+package vismid;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * ImageSink renders the latest tick of a shared Simulation into an image
+ * without any window, at a size and frame rate of its own, and hands
+ * every frame to a listener, to be streamed or recorded alongside the
+ * canvases on screen.
+ *
+ * The sink draws through a Canvas of its own, which is never displayed,
+ * so it has the same view, quality and metrics as any other canvas. The
+ * image is kept from frame to frame, and only what changed is drawn.
+ */
+public class ImageSink implements Runnable
+{
+	/**
+	 * Receives the frames rendered by a sink
+	 */
+	public interface FrameListener
+	{
+		/**
+		 * Called on the thread of the sink after every frame
+		 * @param image the frame, reused for the next one
+		 */
+		public void frameRendered(BufferedImage image);
+	}
+
+	private Canvas canvas;
+	private BufferedImage image;
+	private Graphics2D g2d;
+	private FrameListener listener;
+
+	private long frameNanos;
+	private volatile boolean running;
+	private Thread thread;
+
+	/**
+	 * Creates a sink
+	 * @param simulation simulation to draw, whose ticks are run
+	 * by its own thread or another view
+	 * @param width width of the frames in pixels
+	 * @param height height of the frames in pixels
+	 * @param listener receives every frame
+	 */
+	public ImageSink(Simulation simulation, int width, int height, FrameListener listener)
+	{
+		if(width <= 0 || height <= 0)
+			throw new IllegalArgumentException("Size must be positive: " + width + "x" + height);
+		this.canvas = new Canvas(simulation);
+		this.canvas.setSize(width, height);
+		this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		this.g2d = image.createGraphics();
+		this.listener = listener;
+	}
+
+	/**
+	 * Renders a frame showing the latest tick, and hands it to the
+	 * listener. Called by the thread of the sink once started
+	 */
+	public void renderFrame()
+	{
+		int width = image.getWidth();
+		int height = image.getHeight();
+		canvas.advance(System.nanoTime(), width, height);
+		canvas.drawDamage(g2d, width, height);
+		listener.frameRendered(image);
+	}
+
+	/**
+	 * Starts rendering frames on a new thread
+	 * @param targetFps amount of frames to render per second
+	 */
+	public void start(int targetFps)
+	{
+		if(targetFps <= 0)
+			throw new IllegalArgumentException("Target FPS must be positive: " + targetFps);
+		frameNanos = 1_000_000_000L / targetFps;
+		canvas.getMetrics().setTargetInterval(frameNanos);
+		running = true;
+		thread = new Thread(this, "vismid-sink");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops rendering and waits for the current frame to finish
+	 */
+	public void stop() throws InterruptedException
+	{
+		running = false;
+		thread.join();
+	}
+
+	/**
+	 * Renders frames until stopped, sleeping between frames
+	 * so that each starts on schedule
+	 */
+	@Override
+	public void run()
+	{
+		long next = System.nanoTime();
+		while(running)
+		{
+			renderFrame();
+			next += frameNanos;
+			long wait = next - System.nanoTime();
+
+			//Start a new schedule rather than catching up
+			if(wait < -frameNanos)
+				next = System.nanoTime();
+			else if(wait > 0)
+				LockSupport.parkNanos(wait);
+		}
+	}
+
+	/**
+	 * @return the canvas the sink draws through, to set its
+	 * view, quality or render threads
+	 */
+	public Canvas getCanvas()
+	{
+		return canvas;
+	}
+}
@@ -0,0 +1,138 @@
+package vismid;
+
+import java.util.Arrays;
+
+/**
+ * LatencyHistogram records durations in nanoseconds into a fixed set of
+ * buckets, so that recording never allocates no matter how many values
+ * are recorded.
+ *
+ * Buckets are log-linear: every power of two is split into 16 buckets,
+ * so any recorded value is reported within about 6% of its true value.
+ * Values from 0 up to about 18 minutes can be told apart, longer ones
+ * are counted in the last bucket.
+ *
+ * A histogram is meant to be written by a single thread. Reading it from
+ * another thread, for example through JMX, gives values that may be
+ * slightly out of date but never invalid.
+ */
+public class LatencyHistogram
+{
+	//Amount of buckets every power of two is split into, as a power of two
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	//Largest power of two that has its own buckets, 2^40 ns is about 18 min
+	private static final int MAX_EXPONENT = 40;
+
+	private final long[] counts = new long[(MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS];
+	private long count;
+	private long sum;
+	private long max;
+
+	/**
+	 * Adds a value to the histogram. Negative values are counted as 0
+	 * @param nanos duration in nanoseconds
+	 */
+	public void record(long nanos)
+	{
+		if(nanos < 0)
+			nanos = 0;
+		counts[bucketOf(nanos)]++;
+		count++;
+		sum += nanos;
+		if(nanos > max)
+			max = nanos;
+	}
+
+	/**
+	 * @return the amount of recorded values
+	 */
+	public long getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * @return the mean of the recorded values in nanoseconds, 0 if empty
+	 */
+	public double getMean()
+	{
+		long n = count;
+		return n == 0 ? 0 : (double) sum / n;
+	}
+
+	/**
+	 * @return the largest recorded value in nanoseconds
+	 */
+	public long getMax()
+	{
+		return max;
+	}
+
+	/**
+	 * Finds the value below which a fraction of the recorded values fall
+	 * @param fraction fraction of the values, 0.99 for the 99th percentile
+	 * @return the upper bound of the bucket holding the percentile,
+	 * in nanoseconds, or 0 if nothing was recorded
+	 */
+	public long getPercentile(double fraction)
+	{
+		long n = count;
+		if(n == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(fraction * n);
+		long seen = 0;
+		for(int i = 0; i < counts.length; i++)
+		{
+			seen += counts[i];
+			if(seen >= Math.max(rank, 1))
+				return Math.min(upperBoundOf(i), max);
+		}
+		return max;
+	}
+
+	/**
+	 * Forgets every recorded value
+	 */
+	public void reset()
+	{
+		Arrays.fill(counts, 0);
+		count = 0;
+		sum = 0;
+		max = 0;
+	}
+
+	/**
+	 * Finds the bucket a value is counted in
+	 */
+	private static int bucketOf(long value)
+	{
+		//Small values get a bucket each
+		if(value < SUB_BUCKETS)
+			return (int) value;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if(exponent > MAX_EXPONENT)
+			return (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS - 1;
+
+		//The bits right after the highest one pick the
+		//bucket within the power of two
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Gets the largest value counted in a bucket
+	 */
+	private static long upperBoundOf(int bucket)
+	{
+		if(bucket < SUB_BUCKETS)
+			return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		int sub = bucket % SUB_BUCKETS;
+		long lower = (1L << exponent) + ((long) sub << (exponent - SUB_BITS));
+		return lower + (1L << (exponent - SUB_BITS)) - 1;
+	}
+}
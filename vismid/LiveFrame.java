@@ -0,0 +1,44 @@
+package vismid;
+
+import java.awt.Graphics2D;
+import java.awt.geom.Rectangle2D;
+
+/**
+ * LiveFrame is the frame of a responder that does not capture its state.
+ * It only copies the bounds of the responder, and draws the responder
+ * itself, as it is when drawn. Such responders show up in every view,
+ * but may be drawn partly updated while the simulation runs on a thread
+ * of its own, and have the whole canvas repainted every frame.
+ */
+class LiveFrame implements ResponderFrame
+{
+	private MidiResponder responder;
+	private Rectangle2D.Double bounds = new Rectangle2D.Double();
+	private boolean bounded;
+
+	LiveFrame(MidiResponder responder)
+	{
+		this.responder = responder;
+	}
+
+	@Override
+	public void capture()
+	{
+		Rectangle2D b = responder.getBounds();
+		bounded = b != null;
+		if(bounded)
+			bounds.setRect(b);
+	}
+
+	@Override
+	public Rectangle2D getBounds()
+	{
+		return bounded ? bounds : null;
+	}
+
+	@Override
+	public void draw(Graphics2D g2d, Rectangle2D visible, RenderQuality quality)
+	{
+		responder.drawResponse(g2d, visible);
+	}
+}
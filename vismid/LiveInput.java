@@ -0,0 +1,132 @@
+package vismid;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Sequencer;
+import javax.sound.midi.Synthesizer;
+import javax.sound.midi.Transmitter;
+
+/**
+ * LiveInput connects any number of MIDI input devices, such as keyboards
+ * and controllers, to a Signaler at the same time.
+ *
+ * Every device is given a port of its own, so its channels are addressed
+ * as port * 16 + channel and more than 16 channels can be played at once.
+ * Each device delivers its messages on its own thread straight into the
+ * queue of its port, so devices never wait on each other and the notes
+ * of every device keep their order and time stamps.
+ */
+public class LiveInput implements AutoCloseable
+{
+	private Signaler signaler;
+	private int nextPort;
+
+	//Devices opened by this input and their transmitters, by port
+	private List<MidiDevice> devices = new ArrayList<>();
+	private List<Transmitter> transmitters = new ArrayList<>();
+
+	/**
+	 * Creates an input that gives ports to devices in the
+	 * order they are opened, starting at firstPort
+	 * @param signaler signaler to send the notes of the devices to
+	 * @param firstPort port of the first device. Port 0 is the port
+	 * of the Signaler itself, used by the Sequencer
+	 */
+	public LiveInput(Signaler signaler, int firstPort)
+	{
+		this.signaler = signaler;
+		this.nextPort = firstPort;
+	}
+
+	/**
+	 * Finds every device of the system that can send MIDI messages,
+	 * leaving out sequencers and synthesizers
+	 * @return the devices, not opened
+	 */
+	public static List<MidiDevice> findInputDevices()
+	{
+		List<MidiDevice> inputs = new ArrayList<>();
+		for(MidiDevice.Info info: MidiSystem.getMidiDeviceInfo())
+		{
+			try
+			{
+				MidiDevice device = MidiSystem.getMidiDevice(info);
+				if(device.getMaxTransmitters() != 0
+						&& !(device instanceof Sequencer)
+						&& !(device instanceof Synthesizer))
+					inputs.add(device);
+			}
+			catch(MidiUnavailableException e)
+			{
+				//Devices that cannot be used are left out
+			}
+		}
+		return inputs;
+	}
+
+	/**
+	 * Opens a device and connects it to the next port
+	 * @param device device to open
+	 * @return the port the device sends to
+	 */
+	public synchronized int open(MidiDevice device) throws MidiUnavailableException
+	{
+		if(!device.isOpen())
+			device.open();
+		Transmitter transmitter = device.getTransmitter();
+		int port = nextPort++;
+		transmitter.setReceiver(signaler.receiverForPort(port));
+		devices.add(device);
+		transmitters.add(transmitter);
+		return port;
+	}
+
+	/**
+	 * Opens every input device of the system. Devices that
+	 * cannot be opened are skipped
+	 * @return the amount of devices opened
+	 */
+	public int openAll()
+	{
+		int opened = 0;
+		for(MidiDevice device: findInputDevices())
+		{
+			try
+			{
+				open(device);
+				opened++;
+			}
+			catch(MidiUnavailableException e)
+			{
+				System.err.println("Cannot open " + device.getDeviceInfo().getName() + ": " + e.getMessage());
+			}
+		}
+		return opened;
+	}
+
+	/**
+	 * @return the amount of ports in use, counting from the first one
+	 */
+	public synchronized int getPortCount()
+	{
+		return devices.size();
+	}
+
+	/**
+	 * Disconnects and closes every device opened by this input
+	 */
+	@Override
+	public synchronized void close()
+	{
+		for(Transmitter t: transmitters)
+			t.close();
+		for(MidiDevice d: devices)
+			d.close();
+		transmitters.clear();
+		devices.clear();
+	}
+}
@@ -0,0 +1,204 @@
+package vismid;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Transmitter;
+
+/**
+ * LoopbackMidiDevice is an in-process MIDI device that passes on every
+ * message sent to its receivers to the receivers of all its transmitters,
+ * like a virtual MIDI cable.
+ *
+ * It behaves like a hardware input as far as LiveInput is concerned, so
+ * live input can be driven and tested without any device connected.
+ * Messages are passed on right away, on the thread that sends them.
+ */
+public class LoopbackMidiDevice implements MidiDevice
+{
+	private Info info;
+	private volatile boolean open;
+	private long openedNanos;
+
+	private List<Receiver> receivers = new CopyOnWriteArrayList<>();
+	private List<LoopbackTransmitter> transmitters = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Creates a device
+	 * @param name name the device is listed under
+	 */
+	public LoopbackMidiDevice(String name)
+	{
+		this.info = new LoopbackInfo(name);
+	}
+
+	@Override
+	public Info getDeviceInfo()
+	{
+		return info;
+	}
+
+	@Override
+	public void open()
+	{
+		if(!open)
+		{
+			openedNanos = System.nanoTime();
+			open = true;
+		}
+	}
+
+	/**
+	 * Closes the device and every receiver and transmitter it gave out
+	 */
+	@Override
+	public void close()
+	{
+		open = false;
+		for(Receiver r: receivers)
+			r.close();
+		for(Transmitter t: transmitters)
+			t.close();
+	}
+
+	@Override
+	public boolean isOpen()
+	{
+		return open;
+	}
+
+	/**
+	 * @return the time since the device was opened in
+	 * microseconds, or -1 if it is closed
+	 */
+	@Override
+	public long getMicrosecondPosition()
+	{
+		return open ? (System.nanoTime() - openedNanos) / 1000 : -1;
+	}
+
+	@Override
+	public int getMaxReceivers()
+	{
+		return -1;
+	}
+
+	@Override
+	public int getMaxTransmitters()
+	{
+		return -1;
+	}
+
+	/**
+	 * @return a new receiver, whose messages are passed on
+	 * to every transmitter of this device
+	 */
+	@Override
+	public Receiver getReceiver()
+	{
+		Receiver r = new LoopbackReceiver();
+		receivers.add(r);
+		return r;
+	}
+
+	@Override
+	public List<Receiver> getReceivers()
+	{
+		return new ArrayList<>(receivers);
+	}
+
+	/**
+	 * @return a new transmitter, passing on every message
+	 * sent to the receivers of this device
+	 */
+	@Override
+	public Transmitter getTransmitter()
+	{
+		LoopbackTransmitter t = new LoopbackTransmitter();
+		transmitters.add(t);
+		return t;
+	}
+
+	@Override
+	public List<Transmitter> getTransmitters()
+	{
+		return new ArrayList<>(transmitters);
+	}
+
+	/**
+	 * Receiver passing its messages on to the transmitters
+	 */
+	private class LoopbackReceiver implements Receiver
+	{
+		private volatile boolean closed;
+
+		@Override
+		public void send(MidiMessage message, long timeStamp)
+		{
+			if(closed)
+				throw new IllegalStateException("Receiver is closed");
+
+			//Like hardware inputs, messages are dropped while the device is closed
+			if(!open)
+				return;
+			for(LoopbackTransmitter t: transmitters)
+				t.transmit(message, timeStamp);
+		}
+
+		@Override
+		public void close()
+		{
+			closed = true;
+			receivers.remove(this);
+		}
+	}
+
+	/**
+	 * Transmitter forwarding to the receiver it is connected to
+	 */
+	private class LoopbackTransmitter implements Transmitter
+	{
+		private volatile Receiver receiver;
+
+		void transmit(MidiMessage message, long timeStamp)
+		{
+			Receiver r = receiver;
+			if(r != null)
+				r.send(message, timeStamp);
+		}
+
+		@Override
+		public void setReceiver(Receiver receiver)
+		{
+			this.receiver = receiver;
+		}
+
+		@Override
+		public Receiver getReceiver()
+		{
+			return receiver;
+		}
+
+		@Override
+		public void close()
+		{
+			receiver = null;
+			transmitters.remove(this);
+		}
+	}
+
+	/**
+	 * Description of a loopback device
+	 */
+	private static class LoopbackInfo extends Info
+	{
+		LoopbackInfo(String name)
+		{
+			super(name, "vismid", "In-process MIDI loopback", "1.0");
+		}
+	}
+}
@@ -2,9 +2,14 @@ package vismid;
 
 import java.awt.BorderLayout;
 import java.awt.Color;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
+import javax.management.JMException;
 import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiSystem;
 import javax.sound.midi.MidiUnavailableException;
 import javax.sound.midi.Sequence;
 import javax.sound.midi.Sequencer;
@@ -17,20 +22,236 @@ import javax.swing.JFrame;
 
 public class Main
 {
+	//Frame rate of the active rendering mode unless
+	//one is given with --fps
+	private static final int DEFAULT_TARGET_FPS = 60;
+	
+	//Frame rate of an export, matching the 20 ms Timer
+	private static final int DEFAULT_EXPORT_FPS = 50;
+	
 	static Sequence sequence;
 	static Sequencer sequencer;
 	static Canvas canvas;
 	static JFrame frame;
 	private static Signaler signaler;
+	private static LiveInput liveInput;
+	private static EventReplayer replayer;
+	
+	//Simulation shared by every window, and the windows
+	//besides the main one, when there is more than one
+	private static Simulation simulation;
+	private static List<Canvas> views = new ArrayList<>();
+	private static List<JFrame> viewFrames = new ArrayList<>();
 	
-	public static void main (String[] args) throws InvalidMidiDataException, IOException, MidiUnavailableException
+	public static void main (String[] args) throws InvalidMidiDataException, IOException, MidiUnavailableException, InterruptedException
 	{
+		//Render a file to images without opening a window
+		if(option(args, "export") != null)
+		{
+			export(args);
+			return;
+		}
+		
 		setupFrame();
-		setupUIPanels();
-		setupChannelResponders();
+		setupUIPanels(args);
+		startRecording(args);
+		setupChannelResponders(canvas, signaler, Math.max(startLiveInput(args), openReplay(args)));
 		start();
+		startRendering(args);
+		startReplay(args);
+	}
+	
+	/**
+	 * Appends every message received to the log given by --record=FILE,
+	 * closing it when the application exits
+	 */
+	private static void startRecording(String[] args) throws IOException
+	{
+		String file = option(args, "record");
+		if(file == null)
+			return;
+		EventRecorder recorder = new EventRecorder(new File(file));
+		signaler.setRecorder(recorder);
+		Runtime.getRuntime().addShutdownHook(new Thread(() ->
+		{
+			signaler.setRecorder(null);
+			try
+			{
+				recorder.close();
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+			}
+		}, "vismid-record"));
+	}
+	
+	/**
+	 * Opens the log given by --replay=FILE, to be replayed once
+	 * the responders are set up
+	 * @return the amount of ports the log needs, or 1 without a log
+	 */
+	private static int openReplay(String[] args) throws IOException
+	{
+		String file = option(args, "replay");
+		if(file == null)
+			return 1;
+		replayer = new EventReplayer(new File(file));
+		System.out.println("Replaying " + replayer.getRecordCount() + " messages from " + file);
+		return replayer.getPortCount();
+	}
+	
+	/**
+	 * Sends the messages of the opened log again, at the speed given
+	 * by --replay-speed=N, 1 being as recorded, or --replay-speed=max
+	 * to send them as fast as possible
+	 */
+	private static void startReplay(String[] args)
+	{
+		if(replayer == null)
+			return;
+		String speed = option(args, "replay-speed");
+		replayer.start(signaler, speed == null ? 1
+				: "max".equals(speed) ? EventReplayer.AS_FAST_AS_POSSIBLE
+				: Double.parseDouble(speed));
+	}
+	
+	/**
+	 * Starts rendering the canvas. By default the canvas is repainted
+	 * by a Swing Timer. Passing --render=active renders it from a
+	 * dedicated thread instead, at the frame rate given by --fps=N.
+	 * Passing --threads=N draws every frame in tiles on N threads.
+	 * Quality is lowered and raised to hold the frame rate, unless
+	 * a quality is given with --quality=full|no_antialiasing|...
+	 * Every window is rendered the same way, while the simulation
+	 * they share runs --fps=N ticks per second
+	 */
+	private static void startRendering(String[] args)
+	{
+		startRendering(canvas, args);
+		for(Canvas view: views)
+			startRendering(view, args);
+		if(simulation != null)
+			simulation.start(intOption(args, "fps", DEFAULT_TARGET_FPS));
+		
+		//Expose the frame metrics of the main window over JMX
+		try
+		{
+			canvas.getMetrics().register();
+		}
+		catch(JMException e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Starts rendering a canvas as asked for by the options,
+	 * drawing its metrics on screen with --overlay=true
+	 */
+	private static void startRendering(Canvas c, String[] args)
+	{
+		c.setRenderThreads(intOption(args, "threads", 1));
+		String quality = option(args, "quality");
+		if(quality == null || "auto".equals(quality))
+			c.setQualityGovernor(new QualityGovernor());
+		else
+			c.setQuality(RenderQuality.valueOf(quality.toUpperCase()));
+		c.setMetricsOverlay("true".equals(option(args, "overlay")));
+		
+		if("active".equals(option(args, "render")))
+			c.startActiveRendering(intOption(args, "fps", DEFAULT_TARGET_FPS));
+		else
+			c.startTimer();
 	}
 	
+	/**
+	 * Renders the file given by --export=FILE into images in the
+	 * directory given by --out=DIR (default "frames"), using the
+	 * optional --fps=N, --width=N, --height=N, --format=png|rgb,
+	 * --threads=N and --quality=full|no_antialiasing|...
+	 */
+	private static void export(String[] args) throws InvalidMidiDataException, IOException, InterruptedException
+	{
+		signaler = createSignaler(args);
+		canvas = new Canvas(signaler);
+		canvas.setRenderThreads(intOption(args, "threads", 1));
+		String quality = option(args, "quality");
+		if(quality != null)
+			canvas.setQuality(RenderQuality.valueOf(quality.toUpperCase()));
+		setupChannelResponders(canvas, signaler);
+		
+		String out = option(args, "out");
+		String format = option(args, "format");
+		OfflineExporter exporter = new OfflineExporter(
+				MidiSystem.getSequence(new File(option(args, "export"))),
+				canvas,
+				signaler,
+				intOption(args, "width", canvas.getWidth()),
+				intOption(args, "height", canvas.getHeight()),
+				intOption(args, "fps", DEFAULT_EXPORT_FPS),
+				format == null ? OfflineExporter.Format.PNG : OfflineExporter.Format.valueOf(format.toUpperCase()),
+				new File(out == null ? "frames" : out));
+		
+		long start = System.nanoTime();
+		int frames = exporter.export();
+		System.out.printf("Exported %d frames in %.1f s%n", frames, (System.nanoTime() - start) / 1e9);
+	}
+	
+	/**
+	 * Finds the value of a --name=value command line option
+	 * @return the value, or null if the option was not given
+	 */
+	private static String option(String[] args, String name)
+	{
+		String prefix = "--" + name + "=";
+		for(String arg: args)
+			if(arg.startsWith(prefix))
+				return arg.substring(prefix.length());
+		return null;
+	}
+	
+	/**
+	 * Finds the value of a numeric command line option
+	 */
+	private static int intOption(String[] args, String name, int defaultValue)
+	{
+		String value = option(args, name);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+	
+	/**
+	 * Creates the Signaler. --overflow=drop_newest|drop_oldest|merge|block
+	 * sets what happens to notes arriving while a queue is full,
+	 * --coalesce=false signals responders of every note one by one, and
+	 * --sync-offset=MS shows notes that many milliseconds after they are
+	 * sent, the latency of the audio minus that of the display
+	 */
+	private static Signaler createSignaler(String[] args)
+	{
+		String overflow = option(args, "overflow");
+		Signaler s = new Signaler(Signaler.DEFAULT_QUEUE_CAPACITY, overflow == null 
+				? NoteEventQueue.OverflowPolicy.DROP_NEWEST
+				: NoteEventQueue.OverflowPolicy.valueOf(overflow.toUpperCase()));
+		s.setCoalescing(!"false".equals(option(args, "coalesce")));
+		s.getScheduler().setOffset(intOption(args, "sync-offset", 0) * 1_000_000L);
+		return s;
+	}
+	
+	/**
+	 * Opens every MIDI input device of the system when --live=true is
+	 * given, each on a port of its own after the port of the Sequencer
+	 * @return the amount of ports in use, counting the Sequencer's
+	 */
+	private static int startLiveInput(String[] args)
+	{
+		if(!"true".equals(option(args, "live")))
+			return 1;
+		liveInput = new LiveInput(signaler, 1);
+		int opened = liveInput.openAll();
+		System.out.println("Opened " + opened + " MIDI input devices");
+		return 1 + opened;
+	}
 	
 	/**
 	 * Sets up the frame for the graphical context of this application
@@ -49,16 +270,43 @@ public class Main
 		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		frame.pack();
 		frame.setVisible(true);
+		for(JFrame viewFrame: viewFrames)
+		{
+			viewFrame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+			viewFrame.pack();
+			viewFrame.setVisible(true);
+		}
 	}
 	
 	/*
 	 * Sets up the panels necessary to play and stop songs, as well as
-	 * visualize MIDI files
+	 * visualize MIDI files. Passing --views=N opens N windows, such as
+	 * one for a monitor and one for a projector, all drawing the same
+	 * simulation
 	 */
-	private static void setupUIPanels() throws MidiUnavailableException
+	private static void setupUIPanels(String[] args) throws MidiUnavailableException
 	{
-		canvas = new Canvas();
-		signaler = new Signaler();
+		signaler = createSignaler(args);
+		int count = intOption(args, "views", 1);
+		if(count > 1)
+		{
+			simulation = new Simulation(signaler);
+			canvas = new Canvas(simulation);
+			
+			//Notes are timed against the frames of the first view,
+			//as they are against those of the only one otherwise
+			signaler.setMetrics(canvas.getMetrics());
+			for(int v = 2; v <= count; v++)
+			{
+				Canvas view = new Canvas(simulation);
+				JFrame viewFrame = new JFrame("Simple MIDI Graphics " + v);
+				viewFrame.add(view);
+				views.add(view);
+				viewFrames.add(viewFrame);
+			}
+		}
+		else
+			canvas = new Canvas(signaler);
 		PlayPanel playPanel = new PlayPanel(signaler);
 		frame.add(canvas, BorderLayout.CENTER);
 		frame.add(playPanel, BorderLayout.SOUTH);
@@ -68,8 +316,22 @@ public class Main
 	 * Sets up 16 PulseGroups to reflect the typical
 	 * 16 channels in a midi file (although, there can
 	 * be more than 16 channels)
+	 * @param canvas canvas the groups are drawn on
+	 * @param signaler signaler the groups receive messages from
+	 */
+	static void setupChannelResponders(Canvas canvas, Signaler signaler)
+	{
+		setupChannelResponders(canvas, signaler, 1);
+	}
+	
+	/**
+	 * Sets up the 16 PulseGroups, each responding to its
+	 * channel on every port
+	 * @param canvas canvas the groups are drawn on
+	 * @param signaler signaler the groups receive messages from
+	 * @param ports amount of ports the groups respond to
 	 */
-	private static void setupChannelResponders()
+	static void setupChannelResponders(Canvas canvas, Signaler signaler, int ports)
 	{
 		//Amount units per group
 		int quant = 9;
@@ -97,8 +359,10 @@ public class Main
 			//Register this group to be drawn
 			canvas.addMidiResponder(pg);
 			
-			//Register this group to recieve messages
-			signaler.registerMidiResponder(pg, i);
+			//Register this group to recieve messages, from
+			//the same channel of every port
+			for(int p = 0; p < ports; p++)
+				signaler.registerMidiResponder(pg, p * Signaler.CHANNELS_PER_PORT + i);
 		}
 	}
 }
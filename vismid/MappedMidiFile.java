@@ -0,0 +1,489 @@
+package vismid;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.Sequence;
+
+/**
+ * MappedMidiFile reads a Standard MIDI File without loading it into a
+ * Sequence. The track chunks are memory mapped, and events are decoded
+ * only as they are reached, so files of any size are read in a fixed
+ * amount of heap.
+ *
+ * A Cursor walks the channel messages of every track at once in time
+ * order, merging the tracks with a heap keyed by tick. Tempo changes are
+ * applied as they are passed, so every event comes with its time in
+ * microseconds. Events are exposed as primitive fields of the cursor
+ * rather than as objects.
+ *
+ * A chunk is mapped in windows of at most 1 GB, since a single mapping
+ * cannot reach 2 GB. A track cut short, by a truncated file or a length
+ * running past its end, is read up to where its data ends.
+ */
+public class MappedMidiFile
+{
+	//Chunk types, as big endian integers
+	private static final int MTHD = 0x4D546864;
+	private static final int MTRK = 0x4D54726B;
+
+	//Meta event types that matter to the cursor
+	private static final int META_END_OF_TRACK = 0x2F;
+
+	//Most bytes of a chunk mapped at once
+	private static final int WINDOW_BYTES = 1 << 30;
+
+	private float divisionType;
+	private int resolution;
+
+	//Windows every track chunk is mapped in, in order
+	private List<ByteBuffer[]> tracks = new ArrayList<>();
+
+	/**
+	 * Maps a file and reads its header
+	 * @param file Standard MIDI File to read
+	 * @throws InvalidMidiDataException if the file is not a Standard MIDI File
+	 */
+	public MappedMidiFile(File file) throws IOException, InvalidMidiDataException
+	{
+		this(file, WINDOW_BYTES);
+	}
+
+	/**
+	 * Maps a file in windows of a given size, so that reading
+	 * across windows can be tested with small files
+	 * @param windowBytes most bytes of a chunk mapped at once
+	 */
+	MappedMidiFile(File file, int windowBytes) throws IOException, InvalidMidiDataException
+	{
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			long size = channel.size();
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, 14));
+			if(header.remaining() < 14 || header.getInt() != MTHD || header.getInt() < 6)
+				throw new InvalidMidiDataException("Not a Standard MIDI File: " + file);
+			header.getShort();
+			header.getShort();
+			int division = header.getShort();
+			if(division < 0)
+			{
+				//SMPTE frames per second and ticks per frame
+				int fps = -(division >> 8);
+				divisionType = fps == 29 ? Sequence.SMPTE_30DROP : fps;
+				resolution = division & 0xFF;
+			}
+			else
+			{
+				divisionType = Sequence.PPQ;
+				resolution = division;
+			}
+
+			//Map every track chunk on its own, skipping unknown chunks
+			ByteBuffer lengths = ByteBuffer.allocate(8);
+			long position = 8 + (header.getInt(4) & 0xFFFFFFFFL);
+			while(position + 8 <= size)
+			{
+				lengths.clear();
+				channel.read(lengths, position);
+				int type = lengths.getInt(0);
+				long length = lengths.getInt(4) & 0xFFFFFFFFL;
+				position += 8;
+				if(type == MTRK)
+					tracks.add(map(channel, position, Math.min(length, size - position), windowBytes));
+				position += length;
+			}
+		}
+	}
+
+	/**
+	 * Maps a chunk in consecutive windows
+	 */
+	private static ByteBuffer[] map(FileChannel channel, long position, long length, int windowBytes) throws IOException
+	{
+		ByteBuffer[] windows = new ByteBuffer[(int) Math.max((length + windowBytes - 1) / windowBytes, 1)];
+		for(int w = 0; w < windows.length; w++)
+		{
+			long offset = (long) w * windowBytes;
+			windows[w] = channel.map(FileChannel.MapMode.READ_ONLY, position + offset, Math.min(windowBytes, length - offset));
+		}
+		return windows;
+	}
+
+	/**
+	 * @return the amount of tracks of the file
+	 */
+	public int getTrackCount()
+	{
+		return tracks.size();
+	}
+
+	/**
+	 * @return the division type, as in Sequence
+	 */
+	public float getDivisionType()
+	{
+		return divisionType;
+	}
+
+	/**
+	 * @return the ticks per quarter note, or per SMPTE frame
+	 */
+	public int getResolution()
+	{
+		return resolution;
+	}
+
+	/**
+	 * @return a new cursor before the first event of the file
+	 */
+	public Cursor cursor()
+	{
+		return new Cursor();
+	}
+
+	/**
+	 * Cursor walks the channel messages of every track in time order.
+	 * After next() returns true, the fields of the cursor describe the
+	 * current event. Messages at the same tick come in track order
+	 */
+	public class Cursor
+	{
+		//Reading position of every track, as the window being read
+		//and its index, each with its own view of the mapped chunk
+		//so cursors do not disturb one another
+		private ByteBuffer[][] windows;
+		private int[] window;
+		private ByteBuffer[] buffers;
+		private long[] trackTicks;
+		private int[] runningStatus;
+
+		//Tracks with events left, as a binary heap ordered
+		//by the tick of their next event then by track
+		private int[] heap;
+		private int heapSize;
+
+		//Tempo segment the cursor is in
+		private long tempoTick;
+		private double tempoMicros;
+		private double microsPerTick;
+
+		//Current event
+		private long tick;
+		private long micros;
+		private int status;
+		private int data1;
+		private int data2;
+
+		private Cursor()
+		{
+			int n = tracks.size();
+			windows = new ByteBuffer[n][];
+			window = new int[n];
+			buffers = new ByteBuffer[n];
+			trackTicks = new long[n];
+			runningStatus = new int[n];
+			heap = new int[n];
+			if(divisionType == Sequence.PPQ)
+				microsPerTick = (double) TempoMap.DEFAULT_MICROS_PER_QUARTER / resolution;
+			else
+				microsPerTick = 1_000_000.0 / (divisionType * resolution);
+
+			for(int t = 0; t < n; t++)
+			{
+				ByteBuffer[] mapped = tracks.get(t);
+				windows[t] = new ByteBuffer[mapped.length];
+				for(int w = 0; w < mapped.length; w++)
+					windows[t][w] = mapped[w].duplicate();
+				buffers[t] = windows[t][0];
+				if(readDelta(t))
+					push(t);
+			}
+		}
+
+		/**
+		 * Moves to the next channel message
+		 * @return false once every track has ended
+		 */
+		public boolean next()
+		{
+			while(heapSize > 0)
+			{
+				int t = heap[0];
+				long at = trackTicks[t];
+				boolean channelMessage = readEvent(t, at);
+
+				//Move the track on to its next event
+				if(readDelta(t))
+					siftDown(0);
+				else
+					removeTop();
+
+				if(channelMessage)
+				{
+					tick = at;
+					micros = toMicros(at);
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Reads the delta time before the next event of a track
+		 * @return false if the track has ended
+		 */
+		private boolean readDelta(int t)
+		{
+			if(!hasRemaining(t))
+				return false;
+			trackTicks[t] += readVariableLength(t);
+			return hasRemaining(t);
+		}
+
+		/**
+		 * Reads the event of a track at its reading position. Tempo
+		 * changes are applied, other meta and system exclusive events
+		 * are skipped. An event cut short by the end of the track
+		 * ends the track
+		 * @return true if the event is a channel message, now the
+		 * current event of the cursor
+		 */
+		private boolean readEvent(int t, long at)
+		{
+			int first = read(t);
+			if(first == 0xFF)
+			{
+				int type = read(t);
+				long length = readVariableLength(t);
+				if(type == TempoMap.TEMPO_META_TYPE && length == 3 && divisionType == Sequence.PPQ)
+				{
+					int a = read(t);
+					int b = read(t);
+					int c = read(t);
+					if(c < 0)
+						return false;
+					setTempo(at, a << 16 | b << 8 | c);
+				}
+				else if(type == META_END_OF_TRACK)
+					end(t);
+				else
+					skip(t, length);
+				return false;
+			}
+			if(first == 0xF0 || first == 0xF7)
+			{
+				skip(t, readVariableLength(t));
+				return false;
+			}
+
+			//A data byte continues the last status of the track
+			int s;
+			int d1;
+			if(first < 0x80)
+			{
+				s = runningStatus[t];
+				if(s == 0)
+				{
+					//Corrupt track, stop reading it
+					end(t);
+					return false;
+				}
+				d1 = first;
+			}
+			else
+			{
+				s = runningStatus[t] = first;
+				d1 = read(t);
+			}
+
+			//Program changes and channel pressure have a single data byte
+			int command = s & 0xF0;
+			int d2 = command == 0xC0 || command == 0xD0 ? 0 : read(t);
+			if(d1 < 0 || d2 < 0)
+				return false;
+			status = s;
+			data1 = d1 & 0x7F;
+			data2 = d2 & 0x7F;
+			return true;
+		}
+
+		/**
+		 * @return whether a track has bytes left to read
+		 */
+		private boolean hasRemaining(int t)
+		{
+			while(!buffers[t].hasRemaining())
+			{
+				if(window[t] + 1 >= windows[t].length)
+					return false;
+				buffers[t] = windows[t][++window[t]];
+			}
+			return true;
+		}
+
+		/**
+		 * Reads the next byte of a track
+		 * @return the byte, or -1 once the track has ended
+		 */
+		private int read(int t)
+		{
+			return hasRemaining(t) ? buffers[t].get() & 0xFF : -1;
+		}
+
+		/**
+		 * Skips bytes of a track, up to its end
+		 */
+		private void skip(int t, long length)
+		{
+			while(length > 0 && hasRemaining(t))
+			{
+				ByteBuffer b = buffers[t];
+				int n = (int) Math.min(length, b.remaining());
+				b.position(b.position() + n);
+				length -= n;
+			}
+		}
+
+		/**
+		 * Ends a track, whatever it has left
+		 */
+		private void end(int t)
+		{
+			window[t] = windows[t].length - 1;
+			buffers[t] = windows[t][window[t]];
+			buffers[t].position(buffers[t].limit());
+		}
+
+		/**
+		 * Starts a new tempo segment at a tick
+		 */
+		private void setTempo(long at, int microsPerQuarter)
+		{
+			tempoMicros += (at - tempoTick) * microsPerTick;
+			tempoTick = at;
+			microsPerTick = (double) microsPerQuarter / resolution;
+		}
+
+		private long toMicros(long at)
+		{
+			return (long) (tempoMicros + (at - tempoTick) * microsPerTick);
+		}
+
+		private long readVariableLength(int t)
+		{
+			long value = 0;
+			for(int i = 0; i < 4 && hasRemaining(t); i++)
+			{
+				int c = read(t);
+				value = (value << 7) | (c & 0x7F);
+				if(c < 0x80)
+					break;
+			}
+			return value;
+		}
+
+		private boolean before(int a, int b)
+		{
+			return trackTicks[a] < trackTicks[b] || (trackTicks[a] == trackTicks[b] && a < b);
+		}
+
+		private void push(int t)
+		{
+			int i = heapSize++;
+			while(i > 0 && before(t, heap[(i - 1) / 2]))
+			{
+				heap[i] = heap[(i - 1) / 2];
+				i = (i - 1) / 2;
+			}
+			heap[i] = t;
+		}
+
+		private void removeTop()
+		{
+			heap[0] = heap[--heapSize];
+			if(heapSize > 0)
+				siftDown(0);
+		}
+
+		private void siftDown(int i)
+		{
+			int t = heap[i];
+			while(true)
+			{
+				int child = 2 * i + 1;
+				if(child >= heapSize)
+					break;
+				if(child + 1 < heapSize && before(heap[child + 1], heap[child]))
+					child++;
+				if(!before(heap[child], t))
+					break;
+				heap[i] = heap[child];
+				i = child;
+			}
+			heap[i] = t;
+		}
+
+		/**
+		 * @return the tick of the current event
+		 */
+		public long getTick()
+		{
+			return tick;
+		}
+
+		/**
+		 * @return the time of the current event in microseconds
+		 */
+		public long getMicros()
+		{
+			return micros;
+		}
+
+		/**
+		 * @return the status byte of the current event, command and channel
+		 */
+		public int getStatus()
+		{
+			return status;
+		}
+
+		/**
+		 * @return the command of the current event, as in ShortMessage
+		 */
+		public int getCommand()
+		{
+			return status & 0xF0;
+		}
+
+		/**
+		 * @return the channel of the current event
+		 */
+		public int getChannel()
+		{
+			return status & 0x0F;
+		}
+
+		/**
+		 * @return the first data byte of the current event
+		 */
+		public int getData1()
+		{
+			return data1;
+		}
+
+		/**
+		 * @return the second data byte of the current event,
+		 * 0 for messages with a single data byte
+		 */
+		public int getData2()
+		{
+			return data2;
+		}
+	}
+}
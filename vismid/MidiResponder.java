@@ -2,6 +2,7 @@ package vismid;
 
 import java.awt.Graphics2D;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
 
 import javax.sound.midi.ShortMessage;
 
@@ -12,6 +13,16 @@ import javax.sound.midi.ShortMessage;
  * 
  * Transformations are additional to creating dynamic changes to each
  * responder's graphical representation
+ * 
+ * Animation is advanced by update in steps of fixed length, independently
+ * of how often the responder is drawn. Before each frame, interpolate is
+ * called with how far the frame lies between the last two steps, so that
+ * drawResponse only draws the resulting state and never changes it.
+ * 
+ * The resulting state is then captured into a ResponderFrame, which is
+ * what canvases draw, so that several of them can draw a tick while the
+ * responder is already simulating the next one. Responders that do not
+ * create frames of their own are drawn as they are with drawResponse
  * @author Miguel Guerrero
  *
  */
@@ -29,12 +40,75 @@ public interface MidiResponder
 	 */
 	public void signalOff(ShortMessage sm);
 	
+	/**
+	 * Signals every note the channel received during a frame at once.
+	 * Called instead of signalOn and signalOff when the Signaler
+	 * coalesces notes. By default the notes are replayed one by one,
+	 * responders whose work does not depend on single notes should
+	 * react to the summary as a whole
+	 * @param signal summary of the notes, only valid during the call
+	 */
+	public default void signal(ChannelSignal signal)
+	{
+		signal.replay(this);
+	}
+	
+	/**
+	 * Advances the animation of this MidiResponse by one step
+	 * @param elapsedNanos time covered by the step, in nanoseconds
+	 */
+	public default void update(long elapsedNanos){}
+	
+	/**
+	 * Prepares the state to draw for the next frame, between the state
+	 * before the last update and the current one
+	 * @param alpha from 0 for the state before the last update,
+	 * to 1 for the current state
+	 */
+	public default void interpolate(double alpha){}
+	
+	/**
+	 * Gets the area this MidiResponse draws in, as of the last call to
+	 * interpolate, so that it is not drawn where it cannot show up.
+	 * By default the area is unknown
+	 * @return the bounds in the coordinates the responder is drawn in,
+	 * which must not be modified, or null if unknown
+	 */
+	public default Rectangle2D getBounds()
+	{
+		return null;
+	}
+	
 	/**
 	 * Renders this MidiResponse onto a graphical context
 	 * @param g2d
 	 */
 	public void drawResponse(Graphics2D g2d);
 	
+	/**
+	 * Draws the response, knowing which part of it can be seen.
+	 * Responders made of many parts may leave out those outside the
+	 * visible area. By default the whole response is drawn
+	 * @param g2d graphical context to draw on
+	 * @param visible area that can be seen, in the coordinates
+	 * of this responder. Only valid during the call
+	 */
+	public default void drawResponse(Graphics2D g2d, Rectangle2D visible)
+	{
+		drawResponse(g2d);
+	}
+	
+	/**
+	 * Creates a frame to capture the state of this MidiResponse into.
+	 * Called once for every snapshot of the scene the responder is
+	 * kept in. By default the frame draws the responder itself
+	 * @return a frame whose capture copies the current state
+	 */
+	public default ResponderFrame createFrame()
+	{
+		return new LiveFrame(this);
+	}
+	
 	/**
 	 * Transform the geometric representation of this MidiResponse
 	 * @param at
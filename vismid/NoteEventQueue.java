@@ -0,0 +1,400 @@
+package vismid;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.midi.ShortMessage;
+
+/**
+ * NoteEventQueue is a bounded ring buffer used to hand note events from
+ * the thread that receives MIDI (the Sequencer's transmitter) over to the
+ * thread that renders the visualization.
+ *
+ * Events are stored as primitives in parallel arrays so that offering an
+ * event never allocates. The queue supports exactly one producer thread
+ * and one consumer thread. What happens when the queue is full is set by
+ * its OverflowPolicy. By default the newest event is dropped rather than
+ * making the producer wait, so that audio timing is never held up by a
+ * slow frame.
+ */
+public class NoteEventQueue
+{
+	/**
+	 * What offer() does with an event when the queue is full
+	 */
+	public enum OverflowPolicy
+	{
+		//The event is dropped
+		DROP_NEWEST,
+		
+		//The event takes the place of the oldest one, which is dropped
+		DROP_OLDEST,
+		
+		//The event is merged into a summary holding the last state of
+		//each note, on or off, and the velocity it went on at. The
+		//summary is drained after the queued events, so the final
+		//state of every note is kept but not its time stamps
+		MERGE,
+		
+		//The producer waits for room, for up to MAX_BLOCK_NANOS,
+		//and then drops the event. Meant for producers that are not
+		//played live, such as file players and exports
+		BLOCK
+	}
+	
+	//Longest the producer waits for room under the BLOCK policy
+	public static final long MAX_BLOCK_NANOS = 100_000_000L;
+	
+	//Time the producer sleeps between checks for room
+	private static final long BLOCK_PARK_NANOS = 50_000L;
+	
+	//Amount of channels of the summaries of the MERGE policy.
+	//A queue holds the notes of a single port
+	private static final int MERGE_CHANNELS = 16;
+	private static final int MERGE_NOTES = MERGE_CHANNELS * 128;
+	
+	private final int capacity;
+	private final int mask;
+
+	//Event storage, one slot per index
+	private final int[] channels;
+	private final int[] commands;
+	private final int[] notes;
+	private final int[] velocities;
+	private final long[] timeStamps;
+
+	//Next slot to be read. Only advanced by the consumer
+	private final AtomicLong head = new AtomicLong();
+
+	//Next slot to be written. Only advanced by the producer
+	private final AtomicLong tail = new AtomicLong();
+
+	//The producer's last known value of head, so that it only
+	//has to touch the consumer's counter when the queue looks full
+	private long cachedHead;
+
+	private final OverflowPolicy policy;
+	
+	//Amount of events rejected because the queue was full,
+	//written by the producer
+	private volatile long dropped;
+	
+	//Amount of events overwritten under the DROP_OLDEST policy,
+	//written by the consumer
+	private volatile long overwritten;
+	
+	//Summary of the MERGE policy, indexed by (channel % 16) * 128 + note,
+	//with bits of the 128 notes of a channel as pairs of longs. Notes
+	//are listed in the order they first entered the summary. Written by
+	//the producer and taken by the consumer, both holding its lock,
+	//which is only contended while the queue overflows
+	private long[] mergedListed;
+	private long[] mergedOn;
+	private int[] mergedVelocities;
+	private int[] mergedOrder;
+	private int mergedCount;
+	private int[] mergedChannels;
+	private volatile boolean merged;
+	
+	//Copy of the summary the consumer passes on, once the lock is released
+	private int[] drainedOrder;
+	private int[] drainedVelocities;
+	private int[] drainedChannels;
+
+	/**
+	 * Creates a queue able to hold at least the requested amount
+	 * of events, dropping new events when full. The capacity is
+	 * rounded up to a power of two.
+	 * @param requestedCapacity minimum amount of pending events
+	 */
+	public NoteEventQueue(int requestedCapacity)
+	{
+		this(requestedCapacity, OverflowPolicy.DROP_NEWEST);
+	}
+	
+	/**
+	 * Creates a queue able to hold at least the requested amount
+	 * of events. The capacity is rounded up to a power of two.
+	 * @param requestedCapacity minimum amount of pending events
+	 * @param policy what to do with events offered when full
+	 */
+	public NoteEventQueue(int requestedCapacity, OverflowPolicy policy)
+	{
+		if(requestedCapacity <= 0)
+			throw new IllegalArgumentException("Capacity must be positive: " + requestedCapacity);
+
+		capacity = Integer.highestOneBit(requestedCapacity - 1 | 1) << 1;
+		mask = capacity - 1;
+		channels = new int[capacity];
+		commands = new int[capacity];
+		notes = new int[capacity];
+		velocities = new int[capacity];
+		timeStamps = new long[capacity];
+		
+		this.policy = policy;
+		if(policy == OverflowPolicy.MERGE)
+		{
+			mergedListed = new long[MERGE_CHANNELS * 2];
+			mergedOn = new long[MERGE_CHANNELS * 2];
+			mergedVelocities = new int[MERGE_NOTES];
+			mergedOrder = new int[MERGE_NOTES];
+			mergedChannels = new int[MERGE_CHANNELS];
+			drainedOrder = new int[MERGE_NOTES];
+			drainedVelocities = new int[MERGE_NOTES];
+			drainedChannels = new int[MERGE_CHANNELS];
+		}
+	}
+
+	/**
+	 * Adds an event to the queue. Must only be called from the
+	 * producer thread.
+	 * @return true if the event was queued, false if it was dropped
+	 * or merged because the queue was full
+	 */
+	public boolean offer(int channel, int command, int note, int velocity, long timeStamp)
+	{
+		long t = tail.get();
+
+		if(policy == OverflowPolicy.DROP_OLDEST)
+		{
+			//The slot may still be read by the consumer. The fence keeps
+			//the tail published by the last offer, which already counts
+			//the slot as written over, ahead of the writes to the slot,
+			//so a consumer reading any of them also sees that tail
+			if(t >= capacity)
+				VarHandle.storeStoreFence();
+		}
+		
+		//Only re-read the consumer's position when the
+		//cached one says there is no room left
+		else if(t - cachedHead >= capacity)
+		{
+			cachedHead = head.get();
+			if(t - cachedHead >= capacity && !waitForRoom(t))
+			{
+				if(policy == OverflowPolicy.MERGE)
+					merge(channel, command, note, velocity);
+				else
+					dropped++;
+				return false;
+			}
+		}
+
+		int i = (int) t & mask;
+		channels[i] = channel;
+		commands[i] = command;
+		notes[i] = note;
+		velocities[i] = velocity;
+		timeStamps[i] = timeStamp;
+
+		//Publish the slot. The ordered store makes the writes
+		//above visible to the consumer before the new tail
+		tail.lazySet(t + 1);
+		return true;
+	}
+
+	/**
+	 * Waits for the consumer to make room under the BLOCK policy
+	 * @return true if there is room for the event at t
+	 */
+	private boolean waitForRoom(long t)
+	{
+		if(policy != OverflowPolicy.BLOCK)
+			return false;
+		long deadline = System.nanoTime() + MAX_BLOCK_NANOS;
+		do
+		{
+			LockSupport.parkNanos(BLOCK_PARK_NANOS);
+			cachedHead = head.get();
+			if(t - cachedHead < capacity)
+				return true;
+		}
+		while(System.nanoTime() - deadline < 0);
+		return false;
+	}
+	
+	/**
+	 * Records an event as the last state of its note in the summary
+	 */
+	private void merge(int channel, int command, int note, int velocity)
+	{
+		int c = channel % MERGE_CHANNELS;
+		int key = c * 128 + (note & 127);
+		int word = key >> 6;
+		long bit = 1L << (key & 63);
+		synchronized(mergedOrder)
+		{
+			mergedChannels[c] = channel;
+			if((mergedListed[word] & bit) == 0)
+			{
+				mergedListed[word] |= bit;
+				mergedOrder[mergedCount++] = key;
+			}
+			if(command == ShortMessage.NOTE_ON && velocity != 0)
+			{
+				mergedOn[word] |= bit;
+				mergedVelocities[key] = velocity;
+			}
+			else
+				mergedOn[word] &= ~bit;
+			merged = true;
+		}
+	}
+
+	/**
+	 * Passes every event that was queued before this call to the
+	 * handler, in the order they were offered. Must only be called
+	 * from the consumer thread.
+	 * 
+	 * Under the MERGE policy, the summary of the events that did not
+	 * fit follows, as one event per note giving its last state: a note
+	 * on at the velocity it last went on at, or a note off. Notes are
+	 * in the order they first overflowed
+	 * @param handler receives each event
+	 * @return the amount of events drained
+	 */
+	public int drain(NoteEventHandler handler)
+	{
+		long h = head.get();
+		long t = tail.get();
+		
+		if(policy == OverflowPolicy.DROP_OLDEST)
+			return drainOverwritten(handler, h, t);
+
+		for(long n = h; n < t; n++)
+		{
+			int i = (int) n & mask;
+			handler.onNote(channels[i], commands[i], notes[i], velocities[i], timeStamps[i]);
+		}
+
+		//Free all of the drained slots at once
+		head.lazySet(t);
+		int count = (int) (t - h);
+		if(merged)
+			count += drainMerged(handler);
+		return count;
+	}
+	
+	/**
+	 * Drains under the DROP_OLDEST policy, where the producer
+	 * may be writing over the slots being read
+	 */
+	private int drainOverwritten(NoteEventHandler handler, long h, long t)
+	{
+		//Events written over since the last drain are lost
+		long lost = 0;
+		if(t - h > capacity)
+		{
+			lost = t - h - capacity;
+			h = t - capacity;
+		}
+		
+		int count = 0;
+		for(long n = h; n < t; n++)
+		{
+			int i = (int) n & mask;
+			int channel = channels[i];
+			int command = commands[i];
+			int note = notes[i];
+			int velocity = velocities[i];
+			long timeStamp = timeStamps[i];
+			
+			//The slot was read whole unless the producer had moved on
+			//to writing over it, which it publishes before doing so
+			VarHandle.loadLoadFence();
+			if(tail.get() - n >= capacity)
+			{
+				lost++;
+				continue;
+			}
+			handler.onNote(channel, command, note, velocity, timeStamp);
+			count++;
+		}
+		
+		head.lazySet(t);
+		if(lost > 0)
+			overwritten += lost;
+		return count;
+	}
+	
+	/**
+	 * Passes the summaries of the MERGE policy on to a handler
+	 * @return the amount of events passed on
+	 */
+	private int drainMerged(NoteEventHandler handler)
+	{
+		//Take the summary under the lock, so the producer is only ever
+		//held up for a copy and not for the handler
+		int count;
+		synchronized(mergedOrder)
+		{
+			merged = false;
+			count = mergedCount;
+			mergedCount = 0;
+			for(int n = 0; n < count; n++)
+			{
+				int key = mergedOrder[n];
+				long bit = 1L << (key & 63);
+				boolean on = (mergedOn[key >> 6] & bit) != 0;
+				drainedOrder[n] = key;
+				drainedVelocities[n] = on ? mergedVelocities[key] : 0;
+				mergedListed[key >> 6] &= ~bit;
+				mergedOn[key >> 6] &= ~bit;
+			}
+			System.arraycopy(mergedChannels, 0, drainedChannels, 0, MERGE_CHANNELS);
+		}
+		
+		long now = System.nanoTime();
+		for(int n = 0; n < count; n++)
+		{
+			int key = drainedOrder[n];
+			int velocity = drainedVelocities[n];
+			handler.onNote(drainedChannels[key >> 7], velocity != 0 ? ShortMessage.NOTE_ON : ShortMessage.NOTE_OFF,
+					key & 127, velocity, now);
+		}
+		return count;
+	}
+
+	/**
+	 * @return the amount of events currently waiting to be drained
+	 */
+	public int size()
+	{
+		//Under DROP_OLDEST the producer may be ahead by more than the capacity
+		return (int) Math.min(tail.get() - head.get(), capacity);
+	}
+
+	/**
+	 * @return the maximum amount of pending events
+	 */
+	public int capacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * @return what the queue does with events offered when full
+	 */
+	public OverflowPolicy policy()
+	{
+		return policy;
+	}
+
+	/**
+	 * @return the amount of events lost because the queue was full.
+	 * Events merged under the MERGE policy are not counted
+	 */
+	public long dropped()
+	{
+		return dropped + overwritten;
+	}
+
+	/**
+	 * Receives events drained from a NoteEventQueue
+	 */
+	public interface NoteEventHandler
+	{
+		public void onNote(int channel, int command, int note, int velocity, long timeStamp);
+	}
+}
@@ -0,0 +1,326 @@
+package vismid;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+/**
+ * NoteTimeline is an index of every note event of a Sequence, organized
+ * by channel. For each channel, the tick, time in microseconds, note,
+ * velocity and on/off state of its events are kept in primitive arrays
+ * sorted by time, so any point of the song can be found by binary search
+ * instead of scanning or replaying the tracks.
+ *
+ * The notes that are sounding are recorded at regular intervals, so the
+ * set of active notes at any time only needs the events since the closest
+ * earlier checkpoint to be replayed.
+ */
+public class NoteTimeline
+{
+	//Amount of channels of a MIDI file
+	public static final int CHANNELS = 16;
+
+	//Amount of events between two recordings of the active notes
+	private static final int CHECKPOINT_INTERVAL = 1024;
+
+	//Event storage, indexed by channel then by event
+	private long[][] ticks;
+	private long[][] micros;
+	private byte[][] notes;
+	private byte[][] velocities;
+	private boolean[][] on;
+
+	//Active notes before every CHECKPOINT_INTERVAL-th event of each
+	//channel, as 128 bit sets stored in pairs of longs
+	private long[][] checkpoints;
+
+	//Time of the end of the sequence
+	private long lengthMicros;
+
+	/**
+	 * Builds the index of a sequence. Tracks are read in parallel
+	 * @param sequence sequence to index
+	 */
+	public NoteTimeline(Sequence sequence)
+	{
+		TempoMap tempo = new TempoMap(sequence);
+		Track[] tracks = sequence.getTracks();
+		lengthMicros = tempo.toMicroseconds(sequence.getTickLength());
+
+		//Split the notes of every track by channel
+		ChannelEvents[][] perTrack = IntStream.range(0, tracks.length)
+				.parallel()
+				.mapToObj(t -> readTrack(tracks[t], tempo))
+				.toArray(ChannelEvents[][]::new);
+
+		ticks = new long[CHANNELS][];
+		micros = new long[CHANNELS][];
+		notes = new byte[CHANNELS][];
+		velocities = new byte[CHANNELS][];
+		on = new boolean[CHANNELS][];
+		checkpoints = new long[CHANNELS][];
+
+		//Merge the tracks of every channel, in parallel as well
+		IntStream.range(0, CHANNELS).parallel().forEach(c -> mergeChannel(c, perTrack));
+	}
+
+	/**
+	 * @return the time of the end of the sequence in microseconds
+	 */
+	public long getLengthMicros()
+	{
+		return lengthMicros;
+	}
+
+	/**
+	 * @return the amount of note events of a channel
+	 */
+	public int size(int channel)
+	{
+		return ticks[channel].length;
+	}
+
+	/**
+	 * @return the tick of an event
+	 */
+	public long getTick(int channel, int index)
+	{
+		return ticks[channel][index];
+	}
+
+	/**
+	 * @return the time of an event in microseconds
+	 */
+	public long getMicros(int channel, int index)
+	{
+		return micros[channel][index];
+	}
+
+	/**
+	 * @return the note of an event
+	 */
+	public int getNote(int channel, int index)
+	{
+		return notes[channel][index];
+	}
+
+	/**
+	 * @return the velocity of an event
+	 */
+	public int getVelocity(int channel, int index)
+	{
+		return velocities[channel][index];
+	}
+
+	/**
+	 * @return whether an event turns its note on
+	 */
+	public boolean isOn(int channel, int index)
+	{
+		return on[channel][index];
+	}
+
+	/**
+	 * Finds the first event of a channel that happens after a time
+	 * @param channel channel to search
+	 * @param time time in microseconds
+	 * @return index of the first event later than the time, or the
+	 * size of the channel if there is none
+	 */
+	public int seek(int channel, long time)
+	{
+		long[] m = micros[channel];
+		int low = 0;
+		int high = m.length;
+
+		//Upper bound, so that every event at the
+		//time itself is before the index
+		while(low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if(m[mid] <= time)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Gets the notes of a channel that are sounding at a time
+	 * @param channel channel to look at
+	 * @param time time in microseconds
+	 * @param active receives the active notes as a 128 bit set, bit n
+	 * of active[n / 64] being set when note n is sounding
+	 */
+	public void getActiveNotes(int channel, long time, long[] active)
+	{
+		int end = seek(channel, time);
+		int checkpoint = end / CHECKPOINT_INTERVAL;
+		active[0] = checkpoints[channel][checkpoint * 2];
+		active[1] = checkpoints[channel][checkpoint * 2 + 1];
+
+		//Replay the events since the checkpoint
+		for(int i = checkpoint * CHECKPOINT_INTERVAL; i < end; i++)
+			apply(active, notes[channel][i], on[channel][i]);
+	}
+
+	/**
+	 * Reads the notes of a track into one list per channel
+	 */
+	private static ChannelEvents[] readTrack(Track track, TempoMap tempo)
+	{
+		ChannelEvents[] channels = new ChannelEvents[CHANNELS];
+		for(int c = 0; c < CHANNELS; c++)
+			channels[c] = new ChannelEvents();
+
+		for(int i = 0; i < track.size(); i++)
+		{
+			MidiEvent event = track.get(i);
+			MidiMessage message = event.getMessage();
+			if(!(message instanceof ShortMessage))
+				continue;
+
+			ShortMessage sm = (ShortMessage) message;
+			int com = sm.getCommand();
+			if(com != ShortMessage.NOTE_ON && com != ShortMessage.NOTE_OFF)
+				continue;
+
+			//A note on with no velocity is a note off
+			boolean isOn = com == ShortMessage.NOTE_ON && sm.getData2() != 0;
+			long tick = event.getTick();
+			channels[sm.getChannel()].add(tick, tempo.toMicroseconds(tick), sm.getData1(), sm.getData2(), isOn);
+		}
+		return channels;
+	}
+
+	/**
+	 * Merges the events of a channel from every track into a single
+	 * time ordered array, and records its checkpoints
+	 */
+	private void mergeChannel(int channel, ChannelEvents[][] perTrack)
+	{
+		ChannelEvents merged = mergeTracks(perTrack, channel, 0, perTrack.length);
+
+		int n = merged.size;
+		ticks[channel] = Arrays.copyOf(merged.ticks, n);
+		micros[channel] = Arrays.copyOf(merged.micros, n);
+		notes[channel] = Arrays.copyOf(merged.notes, n);
+		velocities[channel] = Arrays.copyOf(merged.velocities, n);
+		on[channel] = Arrays.copyOf(merged.on, n);
+
+		long[] cp = new long[(n / CHECKPOINT_INTERVAL + 1) * 2];
+		long[] active = new long[2];
+		for(int i = 0; i < n; i++)
+		{
+			if(i % CHECKPOINT_INTERVAL == 0)
+			{
+				cp[i / CHECKPOINT_INTERVAL * 2] = active[0];
+				cp[i / CHECKPOINT_INTERVAL * 2 + 1] = active[1];
+			}
+			apply(active, merged.notes[i], merged.on[i]);
+		}
+		if(n % CHECKPOINT_INTERVAL == 0)
+		{
+			cp[n / CHECKPOINT_INTERVAL * 2] = active[0];
+			cp[n / CHECKPOINT_INTERVAL * 2 + 1] = active[1];
+		}
+		checkpoints[channel] = cp;
+	}
+
+	/**
+	 * Merges the events of a channel of a range of tracks, pairing
+	 * tracks up so that every event is copied a logarithmic
+	 * amount of times
+	 */
+	private static ChannelEvents mergeTracks(ChannelEvents[][] perTrack, int channel, int from, int to)
+	{
+		if(to - from == 0)
+			return new ChannelEvents();
+		if(to - from == 1)
+			return perTrack[from][channel];
+		int mid = (from + to) >>> 1;
+		return mergeTracks(perTrack, channel, from, mid).merge(mergeTracks(perTrack, channel, mid, to));
+	}
+
+	/**
+	 * Applies a note event to a set of active notes
+	 */
+	private static void apply(long[] active, int note, boolean isOn)
+	{
+		if(isOn)
+			active[note >> 6] |= 1L << note;
+		else
+			active[note >> 6] &= ~(1L << note);
+	}
+
+	/**
+	 * Growable, time ordered list of the note events of one channel
+	 */
+	private static class ChannelEvents
+	{
+		long[] ticks = new long[16];
+		long[] micros = new long[16];
+		byte[] notes = new byte[16];
+		byte[] velocities = new byte[16];
+		boolean[] on = new boolean[16];
+		int size;
+
+		void add(long tick, long time, int note, int velocity, boolean isOn)
+		{
+			if(size == ticks.length)
+				grow(size * 2);
+			ticks[size] = tick;
+			micros[size] = time;
+			notes[size] = (byte) note;
+			velocities[size] = (byte) velocity;
+			on[size] = isOn;
+			size++;
+		}
+
+		void grow(int capacity)
+		{
+			ticks = Arrays.copyOf(ticks, capacity);
+			micros = Arrays.copyOf(micros, capacity);
+			notes = Arrays.copyOf(notes, capacity);
+			velocities = Arrays.copyOf(velocities, capacity);
+			on = Arrays.copyOf(on, capacity);
+		}
+
+		/**
+		 * Merges two ordered lists. Events of this list come
+		 * first when both have events at the same tick
+		 */
+		ChannelEvents merge(ChannelEvents other)
+		{
+			if(other.size == 0)
+				return this;
+			if(size == 0)
+				return other;
+
+			ChannelEvents result = new ChannelEvents();
+			result.grow(size + other.size);
+			int i = 0;
+			int j = 0;
+			while(i < size || j < other.size)
+			{
+				if(j == other.size || (i < size && ticks[i] <= other.ticks[j]))
+				{
+					result.add(ticks[i], micros[i], notes[i], velocities[i], on[i]);
+					i++;
+				}
+				else
+				{
+					result.add(other.ticks[j], other.micros[j], other.notes[j], other.velocities[j], other.on[j]);
+					j++;
+				}
+			}
+			return result;
+		}
+	}
+}
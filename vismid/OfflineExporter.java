@@ -0,0 +1,256 @@
+package vismid;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+/**
+ * OfflineExporter renders the visualization of a Sequence into a series
+ * of images, as fast as the machine allows rather than in real time.
+ *
+ * The song is simulated on a clock derived from the sequence's ticks and
+ * tempo changes. Before every frame, the notes that would have been played
+ * up to that frame are sent to the Signaler, and the Canvas is rendered
+ * into an image, with the animation advanced to the time of the frame
+ * rather than to the time it is rendered at. Simulating and rendering
+ * happen in order on the calling thread, while encoding and writing the
+ * images is spread over a pool of worker threads.
+ */
+public class OfflineExporter
+{
+	/**
+	 * Formats frames can be written in
+	 */
+	public enum Format
+	{
+		//Compressed PNG image per frame
+		PNG("png"),
+
+		//Headerless 24 bit RGB pixels per frame, row by row
+		RGB("rgb");
+
+		private String extension;
+
+		private Format(String extension)
+		{
+			this.extension = extension;
+		}
+	}
+
+	//Amount of notes sent to the Signaler before they are
+	//dispatched, so that dense frames never overflow its queue
+	private static final int DISPATCH_BATCH = 1024;
+
+	private Sequence sequence;
+	private Canvas canvas;
+	private Signaler signaler;
+	private int width;
+	private int height;
+	private int fps;
+	private Format format;
+	private File outputDirectory;
+	private int threads;
+
+	/**
+	 * Creates an exporter for a sequence
+	 * @param sequence song to visualize
+	 * @param canvas canvas with the responders to render
+	 * @param signaler signaler the responders of the canvas are registered to
+	 * @param width width of each frame in pixels
+	 * @param height height of each frame in pixels
+	 * @param fps amount of frames per second of song
+	 * @param format format of the written frames
+	 * @param outputDirectory directory frames are written to
+	 */
+	public OfflineExporter(Sequence sequence, Canvas canvas, Signaler signaler,
+			int width, int height, int fps, Format format, File outputDirectory)
+	{
+		if(width <= 0 || height <= 0 || fps <= 0)
+			throw new IllegalArgumentException("Invalid export size or frame rate");
+		this.sequence = sequence;
+		this.canvas = canvas;
+		this.signaler = signaler;
+		this.width = width;
+		this.height = height;
+		this.fps = fps;
+		this.format = format;
+		this.outputDirectory = outputDirectory;
+		this.threads = Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Renders and writes every frame of the sequence
+	 * @return the amount of frames written
+	 */
+	public int export() throws IOException, InterruptedException
+	{
+		if(!outputDirectory.isDirectory() && !outputDirectory.mkdirs())
+			throw new IOException("Cannot create " + outputDirectory);
+
+		//Notes are sent at the time of their frame, which is when they
+		//are meant to be seen, so none may be held back or read ahead
+		signaler.getScheduler().setOffset(0);
+		signaler.getScheduler().unfollow();
+
+		TempoMap tempo = new TempoMap(sequence);
+		List<MidiEvent> notes = collectNotes();
+		long length = tempo.toMicroseconds(sequence.getTickLength());
+		int frames = (int) (length * fps / 1_000_000) + 1;
+
+		//Images are recycled through this pool, which also keeps the
+		//simulation from getting too far ahead of the writers
+		BlockingQueue<BufferedImage> pool = new ArrayBlockingQueue<>(threads * 2);
+		for(int i = 0; i < threads * 2; i++)
+			pool.add(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB));
+
+		ExecutorService writers = Executors.newFixedThreadPool(threads);
+		ArrayDeque<Future<?>> pending = new ArrayDeque<>();
+		try
+		{
+			int next = 0;
+			for(int frame = 0; frame < frames; frame++)
+			{
+				//Send every note played up to this frame
+				long time = frame * 1_000_000L / fps;
+				int sent = 0;
+				while(next < notes.size())
+				{
+					MidiEvent event = notes.get(next);
+					long micros = tempo.toMicroseconds(event.getTick());
+					if(micros > time)
+						break;
+					signaler.send(event.getMessage(), micros);
+					next++;
+					if(++sent % DISPATCH_BATCH == 0)
+						signaler.dispatchPending();
+				}
+
+				BufferedImage image = pool.take();
+				Graphics2D g2d = image.createGraphics();
+				try
+				{
+					canvas.render(g2d, width, height, time * 1000);
+				}
+				finally
+				{
+					g2d.dispose();
+				}
+
+				File file = new File(outputDirectory,
+						String.format("frame_%06d.%s", frame, format.extension));
+				pending.add(writers.submit(() ->
+				{
+					try
+					{
+						write(image, file);
+					}
+					finally
+					{
+						pool.add(image);
+					}
+					return null;
+				}));
+
+				//Surface write errors as they happen
+				while(!pending.isEmpty() && pending.peekFirst().isDone())
+					checkWritten(pending.pollFirst());
+			}
+
+			for(Future<?> f: pending)
+				checkWritten(f);
+			return frames;
+		}
+		finally
+		{
+			writers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Gathers the note on and off events of every track,
+	 * ordered by tick
+	 */
+	private List<MidiEvent> collectNotes()
+	{
+		List<MidiEvent> notes = new ArrayList<>();
+		for(Track track: sequence.getTracks())
+		{
+			for(int i = 0; i < track.size(); i++)
+			{
+				MidiEvent event = track.get(i);
+				if(!(event.getMessage() instanceof ShortMessage))
+					continue;
+				int com = ((ShortMessage) event.getMessage()).getCommand();
+				if(com == ShortMessage.NOTE_ON || com == ShortMessage.NOTE_OFF)
+					notes.add(event);
+			}
+		}
+
+		//The sort is stable, so notes at the same tick
+		//keep the order of their tracks
+		notes.sort((a, b) -> Long.compare(a.getTick(), b.getTick()));
+		return notes;
+	}
+
+	/**
+	 * Encodes a frame into a file
+	 */
+	private void write(BufferedImage image, File file) throws IOException
+	{
+		if(format == Format.PNG)
+		{
+			ImageIO.write(image, "png", file);
+			return;
+		}
+
+		int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		byte[] rgb = new byte[pixels.length * 3];
+		for(int i = 0; i < pixels.length; i++)
+		{
+			rgb[i * 3] = (byte) (pixels[i] >> 16);
+			rgb[i * 3 + 1] = (byte) (pixels[i] >> 8);
+			rgb[i * 3 + 2] = (byte) pixels[i];
+		}
+		try(OutputStream out = new BufferedOutputStream(new FileOutputStream(file)))
+		{
+			out.write(rgb);
+		}
+	}
+
+	/**
+	 * Waits for a frame to be written, rethrowing its failure
+	 */
+	private static void checkWritten(Future<?> written) throws IOException, InterruptedException
+	{
+		try
+		{
+			written.get();
+		}
+		catch(ExecutionException e)
+		{
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Failed to write frame", e.getCause());
+		}
+	}
+}
@@ -5,13 +5,19 @@ import javax.swing.JTextField;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
 
 import javax.sound.midi.MidiSystem;
 import javax.sound.midi.MidiUnavailableException;
-import javax.sound.midi.Sequence;
+import javax.sound.midi.Receiver;
 import javax.sound.midi.Sequencer;
 import javax.swing.JButton;
 import javax.swing.JFileChooser;
+import javax.swing.JProgressBar;
+import javax.swing.SwingUtilities;
 
 import java.io.File;
 import java.awt.GridLayout;
@@ -23,16 +29,52 @@ import java.awt.GridLayout;
  * MidiResponses are mapped to the same Midi Transmitter.
  * Otherwise, a MIDI might play but observers of the the
  * Signaler will not receive a response.
+ * 
+ * Several files can be selected at once and are played
+ * one after the other as a playlist. Files are parsed in
+ * the background, with their progress shown, and kept in
+ * a SequenceCache. While a file plays, the next one of the
+ * playlist is prefetched so that moving on is instant.
+ * 
+ * While a loaded file plays, the Signaler reads its notes
+ * from the file's NoteTimeline, ahead of the Sequencer, so
+ * they are shown in time with the audio.
  * @author Miguel Guerrero
  *
  */
 public class PlayPanel extends JPanel
 {
+	//Files at least this large are streamed rather than loaded
+	public static final long STREAMING_THRESHOLD_BYTES = 32L * 1024 * 1024;
+	
+	//Type of the meta message sent at the end of a sequence
+	private static final int END_OF_TRACK_META_TYPE = 0x2F;
+	
 	private JTextField fieldMessage;
 	private JTextField fieldSelected;
+	private JProgressBar progressBar;
 	private JFileChooser fileChooserDialog = new JFileChooser();
-	private File selectedMidiFile = null;
 	private Sequencer sequencer;
+	private Signaler signaler;
+	
+	//Plays files too large to be loaded as a Sequence
+	private StreamingPlayer streamingPlayer;
+	
+	//Parses files in the background and keeps them
+	private SequenceCache cache = new SequenceCache();
+	private SequenceLoader loader = new SequenceLoader(cache);
+	
+	//Load in progress, and a count of the loads started so that
+	//the outcome of a load no longer wanted is ignored
+	private Future<?> currentLoad;
+	private int loadCount;
+	
+	//Files selected, and the one playing or to be played
+	private List<File> playlist = new ArrayList<>();
+	private int playlistIndex;
+	
+	//Index of the notes of the loaded sequence
+	private NoteTimeline timeline;
 	
 	/**
 	 * Creates the panel.
@@ -45,9 +87,48 @@ public class PlayPanel extends JPanel
 		setupPlayPanel();
 		setupMessageField();
 		fileChooserDialog.setFileFilter(new FileNameExtensionFilter("MIDI", "mid"));
+		fileChooserDialog.setMultiSelectionEnabled(true);
+		this.signaler = signaler;
 		sequencer = MidiSystem.getSequencer();
 		sequencer.getTransmitter().setReceiver(signaler);
 		sequencer.open();
+		streamingPlayer = new StreamingPlayer(signaler, openSynthesizer());
+		
+		//Move on to the next file of the playlist when one ends
+		sequencer.addMetaEventListener((meta) ->
+		{
+			if(meta.getType() == END_OF_TRACK_META_TYPE)
+				SwingUtilities.invokeLater(this::playNext);
+		});
+	}
+	
+	/**
+	 * Plays the next file of the playlist, if any,
+	 * once the current one has ended
+	 */
+	private void playNext()
+	{
+		if(playlistIndex + 1 < playlist.size())
+		{
+			playlistIndex++;
+			play();
+		}
+	}
+	
+	/**
+	 * @return a receiver of the default synthesizer for the
+	 * streaming player, or null if there is none
+	 */
+	private static Receiver openSynthesizer()
+	{
+		try
+		{
+			return MidiSystem.getReceiver();
+		}
+		catch(MidiUnavailableException e)
+		{
+			return null;
+		}
 	}
 	
 	/**
@@ -72,36 +153,175 @@ public class PlayPanel extends JPanel
 		JPanel panelPlay = new JPanel();
 		add(panelPlay);
 		JButton btnPlay = new JButton("Play");
-		btnPlay.addActionListener((ae) -> 
+		btnPlay.addActionListener((ae) -> play());
+		panelPlay.add(btnPlay);
+		
+		JButton btnStop = new JButton("Stop");
+		btnStop.addActionListener((ae) -> 
+		{
+			stop();
+			fieldMessage.setText("Stopped");
+		});
+		panelPlay.add(btnStop);
+		
+		JButton btnNext = new JButton("Next");
+		btnNext.addActionListener((ae) -> 
+		{
+			if(playlist.isEmpty())
+				return;
+			playlistIndex = (playlistIndex + 1) % playlist.size();
+			play();
+		});
+		panelPlay.add(btnNext);
+		
+		progressBar = new JProgressBar(0, 100);
+		progressBar.setStringPainted(true);
+		panelPlay.add(progressBar);
+	}
+	
+	/**
+	 * Stops what is playing or loading
+	 */
+	private void stop()
+	{
+		//Only one of the two players sends to the Signaler at a time
+		sequencer.stop();
+		streamingPlayer.stop();
+		signaler.getScheduler().unfollow();
+		if(currentLoad != null)
+			currentLoad.cancel(true);
+		loadCount++;
+	}
+	
+	/**
+	 * Plays the current file of the playlist, once loaded
+	 */
+	private void play()
+	{
+		if(playlist.isEmpty())
+		{
+			fieldMessage.setText("No MIDI selected");
+			return;
+		}
+		stop();
+		File file = playlist.get(playlistIndex);
+		try
+		{
+			if(file.length() >= STREAMING_THRESHOLD_BYTES)
+			{
+				//Large files are played straight from disk, without a timeline.
+				//The end of a stream no longer wanted is ignored, as for loads
+				timeline = null;
+				int stream = loadCount;
+				streamingPlayer.play(file, () -> SwingUtilities.invokeLater(() ->
+				{
+					if(stream == loadCount)
+						playNext();
+				}));
+				progressBar.setValue(100);
+				fieldMessage.setText("Streaming " + file.getName());
+				return;
+			}
+		}
+		
+		catch(Exception e)
+		{
+			e.printStackTrace();
+			fieldMessage.setText("Cannot play " + file.getName() + ": " + e.getMessage());
+			return;
+		}
+		
+		int load = loadCount;
+		fieldMessage.setText("Loading " + file.getName());
+		currentLoad = loader.load(file, new SequenceLoader.Listener()
 		{
-			try
+			@Override
+			public void progress(double fraction)
+			{
+				SwingUtilities.invokeLater(() ->
+				{
+					if(load == loadCount)
+						progressBar.setValue((int) (fraction * 100));
+				});
+			}
+			
+			@Override
+			public void loaded(SequenceCache.Entry entry)
 			{
-				if(selectedMidiFile == null)
+				SwingUtilities.invokeLater(() ->
 				{
-					fieldMessage.setText("No MIDI selected");
-					return;
-				}
-				Sequence sequence = MidiSystem.getSequence(selectedMidiFile);
-				sequencer.setSequence(sequence);
-				sequencer.start();
+					if(load == loadCount)
+						start(file, entry);
+				});
 			}
 			
-			catch(Exception e)
+			@Override
+			public void failed(Exception e)
 			{
-				e.printStackTrace();
+				SwingUtilities.invokeLater(() ->
+				{
+					if(load != loadCount)
+						return;
+					e.printStackTrace();
+					fieldMessage.setText("Cannot load " + file.getName() + ": " + e.getMessage());
+				});
 			}
 		});
+	}
+	
+	/**
+	 * Starts playing a loaded file, and prefetches
+	 * the next file of the playlist
+	 */
+	private void start(File file, SequenceCache.Entry entry)
+	{
+		try
+		{
+			timeline = entry.getTimeline();
+			sequencer.setSequence(entry.getSequence());
+			signaler.getScheduler().follow(timeline, 
+					() -> sequencer.isRunning() ? sequencer.getMicrosecondPosition() : -1);
+			sequencer.start();
+			fieldMessage.setText("Playing " + file.getName()
+					+ " (" + (playlistIndex + 1) + "/" + playlist.size() + ")");
+		}
 		
-		panelPlay.add(btnPlay);
+		catch(Exception e)
+		{
+			e.printStackTrace();
+			fieldMessage.setText("Cannot play " + file.getName() + ": " + e.getMessage());
+			return;
+		}
 		
-		JButton btnStop = new JButton("Stop");
-		btnStop.addActionListener((ae) -> sequencer.stop()); 
-		panelPlay.add(btnStop);
+		if(playlistIndex + 1 < playlist.size())
+		{
+			File next = playlist.get(playlistIndex + 1);
+			if(next.length() < STREAMING_THRESHOLD_BYTES)
+				loader.prefetch(next);
+		}
+	}
+
+	/**
+	 * @return the index of the notes of the sequence last
+	 * loaded, or null if none has been played yet or the
+	 * file was streamed
+	 */
+	public NoteTimeline getTimeline()
+	{
+		return timeline;
+	}
+
+	/**
+	 * @return the cache of the sequences loaded by this panel
+	 */
+	public SequenceCache getCache()
+	{
+		return cache;
 	}
 
 	/**
-	 * Sets up the panel needed to find a MIDI
-	 * file on disk
+	 * Sets up the panel needed to find MIDI
+	 * files on disk
 	 */
 	private void setupFindPanel()
 	{
@@ -111,15 +331,24 @@ public class PlayPanel extends JPanel
 		JButton btnFileFind = new JButton("Find MIDI");
 		btnFileFind.addActionListener((ae) -> 
 		{
-			fileChooserDialog.showOpenDialog(this);
-			selectedMidiFile = fileChooserDialog.getSelectedFile();
-			if(selectedMidiFile == null)
+			if(fileChooserDialog.showOpenDialog(this) != JFileChooser.APPROVE_OPTION
+					|| fileChooserDialog.getSelectedFiles().length == 0)
 			{
 				fieldMessage.setText("File selection cancelled");
 				return;
 			}
-			fieldSelected.setText(selectedMidiFile.getPath());
-			fieldMessage.setText("Selected MIDI: " + selectedMidiFile.getName());
+			playlist = new ArrayList<>(Arrays.asList(fileChooserDialog.getSelectedFiles()));
+			playlistIndex = 0;
+			File first = playlist.get(0);
+			fieldSelected.setText(first.getPath());
+			if(playlist.size() == 1)
+				fieldMessage.setText("Selected MIDI: " + first.getName());
+			else
+				fieldMessage.setText("Selected " + playlist.size() + " MIDI files");
+			
+			//Start parsing while the user gets to the Play button
+			if(first.length() < STREAMING_THRESHOLD_BYTES)
+				loader.prefetch(first);
 		});
 		
 		panelFind.add(btnFileFind);
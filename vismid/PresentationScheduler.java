@@ -0,0 +1,344 @@
+package vismid;
+
+import java.util.function.LongSupplier;
+
+import javax.sound.midi.ShortMessage;
+
+/**
+ * PresentationScheduler decides at which frame the notes received by a
+ * Signaler are shown, so the visuals line up with what is heard rather
+ * than with when the notes happen to arrive.
+ *
+ * Every note carries the System.nanoTime at which it was sent. A note is
+ * meant to be seen at that time plus the presentation offset, which
+ * stands for how much later the synthesizer is heard than the display is
+ * seen. Notes are held until the frame closest to that time, so a frame
+ * shows the notes due within half a frame interval of it.
+ *
+ * A negative offset asks for notes to be seen before they are sent, which
+ * only the notes of a file can be. While following a NoteTimeline, the
+ * notes of port 0 are read from the timeline ahead of the Sequencer's
+ * position instead of being taken from the Sequencer, so they can be
+ * released exactly when due whatever the offset.
+ *
+ * Held notes take at most a given amount of room, however large the
+ * offset. Notes that arrive while it is full are handled by the same
+ * OverflowPolicy as the queues of the Signaler's ports. The MERGE and
+ * BLOCK policies keep every note, so there the oldest held note is passed
+ * on early, losing its timing; the producer cannot be made to wait, as it
+ * is the thread releasing the notes.
+ *
+ * A jump of the followed Sequencer's position, back or forward, makes the
+ * timeline be read on from the new position, rather than releasing every
+ * note skipped over at once.
+ *
+ * Only used by the rendering thread, apart from the offset and the
+ * timeline to follow, which can be changed from any thread.
+ */
+public class PresentationScheduler
+{
+	//Notes held before growing, enough for about 100 ms of a dense file
+	private static final int INITIAL_CAPACITY = 1024;
+
+	//Most notes held by default, enough for several seconds of a dense file
+	public static final int DEFAULT_MAX_HELD = 1 << 16;
+
+	//Amount the position of the Sequencer may move by between two
+	//releases before it is considered a jump, as its position is
+	//slightly unsteady and frames are sometimes late
+	private static final long JUMP_MICROS = 500_000;
+
+	private volatile long offset;
+	private volatile Follow follow;
+
+	//Notes held until due, in the order they were received, in a
+	//ring starting at first. The capacity is a power of two
+	private int[] channels;
+	private int[] commands;
+	private int[] notes;
+	private int[] velocities;
+	private long[] times;
+	private int first;
+	private int held;
+
+	//Most notes held, and what to do with notes beyond them
+	private final int maxHeld;
+	private final NoteEventQueue.OverflowPolicy policy;
+
+	//Receives the notes passed on early under the MERGE and BLOCK
+	//policies, and the amount passed on since the last release
+	private final NoteEventQueue.NoteEventHandler early;
+	private int passedEarly;
+
+	//Amount of notes dropped because too many were held
+	private volatile long dropped;
+
+	/**
+	 * Creates a scheduler holding up to DEFAULT_MAX_HELD notes,
+	 * dropping new notes beyond them
+	 */
+	public PresentationScheduler()
+	{
+		this(DEFAULT_MAX_HELD, NoteEventQueue.OverflowPolicy.DROP_NEWEST, null);
+	}
+
+	/**
+	 * Creates a scheduler
+	 * @param maxHeld most notes held at once, rounded up to a power of two
+	 * @param policy what to do with notes that arrive while full
+	 * @param early receives the notes passed on before they are due
+	 * under the MERGE and BLOCK policies. If null, they are dropped
+	 */
+	public PresentationScheduler(int maxHeld, NoteEventQueue.OverflowPolicy policy,
+			NoteEventQueue.NoteEventHandler early)
+	{
+		if(maxHeld <= 0)
+			throw new IllegalArgumentException("Most notes held must be positive: " + maxHeld);
+		this.maxHeld = Integer.highestOneBit(maxHeld - 1 | 1) << 1;
+		this.policy = policy;
+		this.early = early;
+		int capacity = Math.min(INITIAL_CAPACITY, this.maxHeld);
+		channels = new int[capacity];
+		commands = new int[capacity];
+		notes = new int[capacity];
+		velocities = new int[capacity];
+		times = new long[capacity];
+	}
+
+	/**
+	 * Sets how long after it was sent a note is meant to be seen
+	 * @param nanos presentation offset in nanoseconds, the audio
+	 * latency minus the display latency. May be negative
+	 */
+	public void setOffset(long nanos)
+	{
+		offset = nanos;
+	}
+
+	/**
+	 * @return the presentation offset in nanoseconds
+	 */
+	public long getOffset()
+	{
+		return offset;
+	}
+
+	/**
+	 * Takes the notes of port 0 from a timeline rather than from the
+	 * Sequencer playing it
+	 * @param timeline index of the notes of the sequence being played
+	 * @param positionMicros gives the position of the Sequencer in
+	 * microseconds, or a negative value while it is not playing
+	 */
+	public void follow(NoteTimeline timeline, LongSupplier positionMicros)
+	{
+		follow = new Follow(timeline, positionMicros);
+	}
+
+	/**
+	 * Goes back to taking the notes of port 0 as they are received
+	 */
+	public void unfollow()
+	{
+		follow = null;
+	}
+
+	/**
+	 * @return whether the notes of port 0 are taken from a timeline
+	 */
+	public boolean isFollowing()
+	{
+		return follow != null;
+	}
+
+	/**
+	 * @return whether notes received now have to be held, rather than
+	 * being dispatched as they are drained
+	 */
+	boolean isHolding()
+	{
+		return offset > 0 || held > 0;
+	}
+
+	/**
+	 * @return the amount of notes held
+	 */
+	public int size()
+	{
+		return held;
+	}
+
+	/**
+	 * @return the amount of notes dropped because too many were held
+	 */
+	public long dropped()
+	{
+		return dropped;
+	}
+
+	/**
+	 * Holds a received note until it is due
+	 */
+	void hold(int channel, int command, int note, int velocity, long eventNanos)
+	{
+		if(held == times.length)
+		{
+			if(held < maxHeld)
+				grow();
+			else if(policy == NoteEventQueue.OverflowPolicy.DROP_NEWEST)
+			{
+				dropped++;
+				return;
+			}
+			else
+			{
+				//Make room by letting go of the oldest note
+				int i = first;
+				first = first + 1 & times.length - 1;
+				held--;
+				if(policy == NoteEventQueue.OverflowPolicy.DROP_OLDEST || early == null)
+					dropped++;
+				else
+				{
+					early.onNote(channels[i], commands[i], notes[i], velocities[i], times[i]);
+					passedEarly++;
+				}
+			}
+		}
+		int i = first + held & times.length - 1;
+		channels[i] = channel;
+		commands[i] = command;
+		notes[i] = note;
+		velocities[i] = velocity;
+		times[i] = eventNanos;
+		held++;
+	}
+
+	/**
+	 * Doubles the room for held notes, moving them to the start
+	 */
+	private void grow()
+	{
+		int capacity = times.length * 2;
+		channels = unroll(channels, capacity);
+		commands = unroll(commands, capacity);
+		notes = unroll(notes, capacity);
+		velocities = unroll(velocities, capacity);
+		long[] t = new long[capacity];
+		System.arraycopy(times, first, t, 0, times.length - first);
+		System.arraycopy(times, 0, t, times.length - first, first);
+		times = t;
+		first = 0;
+	}
+
+	private int[] unroll(int[] ring, int capacity)
+	{
+		int[] a = new int[capacity];
+		System.arraycopy(ring, first, a, 0, ring.length - first);
+		System.arraycopy(ring, 0, a, ring.length - first, first);
+		return a;
+	}
+
+	/**
+	 * Passes on every held note due by a time, keeping the others
+	 * in order
+	 * @param horizon latest System.nanoTime a released note may be
+	 * meant to be seen at
+	 * @param handler receives the notes due
+	 * @return the amount of notes released, counting those
+	 * passed on early since the last call
+	 */
+	int release(long horizon, NoteEventQueue.NoteEventHandler handler)
+	{
+		long due = horizon - offset;
+		int mask = times.length - 1;
+		int kept = 0;
+		for(int n = 0; n < held; n++)
+		{
+			int i = first + n & mask;
+			if(times[i] - due <= 0)
+				handler.onNote(channels[i], commands[i], notes[i], velocities[i], times[i]);
+			else
+			{
+				int k = first + kept & mask;
+				channels[k] = channels[i];
+				commands[k] = commands[i];
+				notes[k] = notes[i];
+				velocities[k] = velocities[i];
+				times[k] = times[i];
+				kept++;
+			}
+		}
+		int released = held - kept + passedEarly;
+		held = kept;
+		passedEarly = 0;
+		return released;
+	}
+
+	/**
+	 * Passes on the notes of the followed timeline that are due by a
+	 * time. Each note carries the System.nanoTime at which the Sequencer
+	 * sends it, estimated from its position
+	 * @param now current System.nanoTime
+	 * @param horizon latest System.nanoTime a released note may be
+	 * meant to be seen at
+	 * @param handler receives the notes due
+	 * @return the amount of notes released
+	 */
+	int releaseTimeline(long now, long horizon, NoteEventQueue.NoteEventHandler handler)
+	{
+		Follow f = follow;
+		if(f == null)
+			return 0;
+		long position = f.positionMicros.getAsLong();
+		if(position < 0)
+			return 0;
+
+		//Latest time of the song whose notes are due
+		long target = position + (horizon - offset - now) / 1000;
+		NoteTimeline timeline = f.timeline;
+		if(f.released >= 0 && Math.abs(target - f.released) > JUMP_MICROS)
+		{
+			//The song was rewound or skipped ahead, carry on from
+			//where it is now rather than from where it was
+			for(int c = 0; c < NoteTimeline.CHANNELS; c++)
+				f.cursors[c] = timeline.seek(c, target);
+			f.released = target;
+			return 0;
+		}
+
+		int released = 0;
+		for(int c = 0; c < NoteTimeline.CHANNELS; c++)
+		{
+			int i = f.cursors[c];
+			int end = timeline.size(c);
+			for(; i < end && timeline.getMicros(c, i) <= target; i++)
+			{
+				long sent = now + (timeline.getMicros(c, i) - position) * 1000;
+				handler.onNote(c, timeline.isOn(c, i) ? ShortMessage.NOTE_ON : ShortMessage.NOTE_OFF,
+						timeline.getNote(c, i), timeline.getVelocity(c, i), sent);
+				released++;
+			}
+			f.cursors[c] = i;
+		}
+		f.released = Math.max(f.released, target);
+		return released;
+	}
+
+	/**
+	 * A timeline being followed, and how far its notes were released
+	 */
+	private static class Follow
+	{
+		final NoteTimeline timeline;
+		final LongSupplier positionMicros;
+		final int[] cursors = new int[NoteTimeline.CHANNELS];
+		long released = -1;
+
+		Follow(NoteTimeline timeline, LongSupplier positionMicros)
+		{
+			this.timeline = timeline;
+			this.positionMicros = positionMicros;
+		}
+	}
+}
@@ -1,31 +1,59 @@
 package vismid;
 import java.awt.Color;
 import java.awt.Graphics2D;
-import java.awt.Shape;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Ellipse2D;
-import java.util.ArrayList;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
 
 import javax.sound.midi.ShortMessage;
 
 /**
  * Pulser is a basic implementation of MidiResponder. 
  * Every time a Pulser is signaled, it enters an active state
- * for so many ticks. A tick represents a unit of drawing time, or frames.
- * In it's active state, the pulser increases its size using
- * an AffineTransform, and shrinks back to original scale.
+ * for so many ticks. A tick represents 20 ms of animation, however
+ * often the pulser is drawn.
+ * In it's active state, the pulser increases its size, and
+ * shrinks back to original scale. Each scale is drawn from an
+ * image in the shared SpriteCache, with the vertical flip of the
+ * canvas undone so that it is copied without allocating.
  * @author Miguel Guerrero
  */
 public class Pulser implements MidiResponder
 {
+	//Amount of ticks a pulser stays active once signaled,
+	//shared with PulserGroup
+	static final int PULSE_TICKS = 10;
+
+	//Length of a tick
+	private static final double TICK_NANOS = 20_000_000.0;
+	
 	public int x;
 	public int y;
 	private boolean isActive;
-	private int ticks = 0;
-	private Shape baseRepr;
-	private ArrayList<Shape> pulses = new ArrayList<>();
+	
+	//Remaining active ticks, now and before the last update
+	private double ticks = 0;
+	private double lastTicks = 0;
+	
+	//Scale step this pulser is drawn with
+	private int step;
+	
+	private Ellipse2D.Double baseRepr;
 	Color color;
-	private AffineTransform scale;
+	
+	//Diameter of the base representation
+	private int size;
+	
+	//Image of this pulser at every tick, fetched from
+	//the sprite cache when first needed
+	private BufferedImage[] sprites = new BufferedImage[PULSE_TICKS + 1];
+	private int spriteGeneration;
+	
+	//Image drawn for the current scale step, and the area it covers
+	private BufferedImage sprite;
+	private Rectangle2D.Double bounds = new Rectangle2D.Double();
 	
 	public Pulser(int x, int y, int size, Color color)
 	{
@@ -34,66 +62,83 @@ public class Pulser implements MidiResponder
 		this.isActive = false;
 		this.baseRepr = new Ellipse2D.Double(x - size / 2, y - size / 2, size, size);
 		this.color = color;
-		
-		//Pre-setup the scaling matrix for this pulser
-		setupTransform();
+		this.size = size;
+		fetchSprite();
 	}
 	
 	/**
-	 * Creates a scaling matrix that scales according to the amount
-	 * of ticks this pulser has in its active state
-	 * 
-	 * Scaling occurs about the local coordinates of this pulser
+	 * Draws the current state of the pulser
 	 */
-	private void setupTransform()
+	public void drawResponse(Graphics2D g2d)
 	{
-		//Get the center coordinates of this pulser
-		double tx = baseRepr.getBounds2D().getCenterX();
-		double ty = baseRepr.getBounds2D().getCenterY();
-		
-		//Concatenate the matrices necessary to scale about
-		//one's center
-		scale = AffineTransform.getTranslateInstance(tx, 
-				ty);
-		scale.scale(1 + ticks, 1 + ticks);
-		scale.translate(-tx, -ty);
+		//The image is centered on this pulser, so it
+		//grows about its center. Vertical coordinates
+		//are negated while the flip is undone
+		int half = sprite.getWidth() / 2;
+		g2d.scale(1, -1);
+		g2d.drawImage(sprite, x - half, half - y - sprite.getHeight(), null);
+		g2d.scale(1, -1);
 	}
 	
 	/**
-	 * Ticks the pulser and draws the resulting state
+	 * Gets the image of the current scale step. Each tick reflects a
+	 * different magnitude of change, which has its own pre-rendered image
 	 */
-	public void drawResponse(Graphics2D g2d)
+	private void fetchSprite()
 	{
-		//Decrement tick and deactivate pulser
-		//if needed
-		tick();
-		g2d.setColor(this.color);
-		
-		//Draw the base representation of this pulser
-		//if it is not active
-		if(!isActive)
-		{ 
-			g2d.fill(baseRepr);
-		}
-		
-		//Create the transform necessary to represent the 
-		//state of this pulser. Each tick reflects a different
-		//magnitude of change
-		else
+		SpriteCache cache = SpriteCache.getShared();
+		int generation = cache.getGeneration();
+		if(generation != spriteGeneration)
 		{
-			setupTransform();
-			g2d.fill(scale.createTransformedShape(baseRepr));
+			Arrays.fill(sprites, null);
+			spriteGeneration = generation;
 		}
+		sprite = sprites[step];
+		if(sprite == null)
+			sprite = sprites[step] = cache.getSprite(this.color, size, step);
+		
+		int half = sprite.getWidth() / 2;
+		bounds.setRect(x - half, y - half, sprite.getWidth(), sprite.getHeight());
 	}
 	
 	/**
 	 * Ticks this Pulser, advancing its state
 	 */
-	private void tick()
+	@Override
+	public void update(long elapsedNanos)
 	{
+		lastTicks = ticks;
 		if(isActive)
-			if(--ticks <= 0) 
+		{
+			ticks -= elapsedNanos / TICK_NANOS;
+			if(ticks <= 0)
+			{
+				ticks = 0;
 				isActive = false;
+			}
+		}
+	}
+	
+	/**
+	 * Picks the scale to draw between the last two ticks
+	 */
+	@Override
+	public void interpolate(double alpha)
+	{
+		step = (int) Math.round(lastTicks + (ticks - lastTicks) * alpha);
+		fetchSprite();
+	}
+	
+	@Override
+	public Rectangle2D getBounds()
+	{
+		return bounds;
+	}
+	
+	@Override
+	public ResponderFrame createFrame()
+	{
+		return new Frame(this);
 	}
 
 	/**
@@ -102,7 +147,7 @@ public class Pulser implements MidiResponder
 	public void signalOn(ShortMessage sm)
 	{
 		this.isActive = true;
-		this.ticks = 10;
+		this.ticks = this.lastTicks = PULSE_TICKS;
 	}
 
 	/**
@@ -111,6 +156,17 @@ public class Pulser implements MidiResponder
 	 */
 	public void signalOff(ShortMessage sm){}
 
+	/**
+	 * Activates this Pulser once however many
+	 * notes went on during the frame
+	 */
+	@Override
+	public void signal(ChannelSignal signal)
+	{
+		if(signal.getOnCount() > 0)
+			signalOn(null);
+	}
+
 	/**
 	 * Mutates the current's base representation of 
 	 * this pulser. Coordinates reflect the bounding box
@@ -119,10 +175,89 @@ public class Pulser implements MidiResponder
 	@Override
 	public void transform(AffineTransform at)
 	{
-		this.baseRepr = at.createTransformedShape(baseRepr);
+		//The bounds of a transformed circle are centered on its
+		//transformed center, and as wide as the radius times the
+		//length of the first row of the transform
+		double cx = baseRepr.getCenterX();
+		double cy = baseRepr.getCenterY();
+		double r = baseRepr.getWidth() / 2;
+		double tx = at.getScaleX() * cx + at.getShearX() * cy + at.getTranslateX();
+		double ty = at.getShearY() * cx + at.getScaleY() * cy + at.getTranslateY();
+		double hw = r * Math.hypot(at.getScaleX(), at.getShearX());
+		double hh = r * Math.hypot(at.getShearY(), at.getScaleY());
+		baseRepr.setFrame(tx - hw, ty - hh, 2 * hw, 2 * hh);
 		
 		//Reposition this pulser so that it reflects it transformed shape
-		x = (int) baseRepr.getBounds2D().getCenterX();
-		y = (int) baseRepr.getBounds2D().getCenterY();
+		x = (int) baseRepr.getCenterX();
+		y = (int) baseRepr.getCenterY();
+		size = (int) Math.round(baseRepr.getWidth());
+		Arrays.fill(sprites, null);
+		fetchSprite();
+	}
+	
+	/**
+	 * What a pulser draws for one tick: its image and center
+	 */
+	private static class Frame implements ResponderFrame
+	{
+		private final Pulser pulser;
+		private BufferedImage sprite;
+		private int x;
+		private int y;
+		
+		//Top left corner and size of the area the image covers
+		private int left;
+		private int top;
+		private int size;
+		private Rectangle2D.Double bounds = new Rectangle2D.Double();
+		
+		Frame(Pulser pulser)
+		{
+			this.pulser = pulser;
+		}
+		
+		@Override
+		public void capture()
+		{
+			Pulser p = pulser;
+			sprite = p.sprite;
+			x = p.x;
+			y = p.y;
+			
+			//Same size and corner as the image drawn
+			size = Math.max(p.size * (1 + p.step), 1);
+			left = x - size / 2;
+			top = y - size / 2;
+			bounds.setRect(p.bounds);
+		}
+		
+		@Override
+		public Rectangle2D getBounds()
+		{
+			return bounds;
+		}
+		
+		@Override
+		public void draw(Graphics2D g2d, Rectangle2D visible, RenderQuality quality)
+		{
+			int half = sprite.getWidth() / 2;
+			g2d.scale(1, -1);
+			g2d.drawImage(sprite, x - half, half - y - sprite.getHeight(), null);
+			g2d.scale(1, -1);
+		}
+		
+		/**
+		 * Reports where the image of the pulser was and now is,
+		 * if it moved or changed size
+		 */
+		@Override
+		public void reportDamage(ResponderFrame last, DamageTracker damage)
+		{
+			Frame before = (Frame) last;
+			if(size == before.size && left == before.left && top == before.top)
+				return;
+			damage.add(before.left, before.top, before.left + before.size, before.top + before.size);
+			damage.add(left, top, left + size, top + size);
+		}
 	}
 }
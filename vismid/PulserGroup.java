@@ -1,32 +1,116 @@
 package vismid;
 
 import java.awt.Color;
-import java.awt.GradientPaint;
 import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.geom.AffineTransform;
-import java.util.LinkedList;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.sound.midi.ShortMessage;
 
 /**
- * PularGroup represents a collection of Pulser objects as a single unit.
- * This is essentially a way of unifying a set of Pulser objects to represent
+ * PularGroup represents a collection of pulsers as a single unit.
+ * This is essentially a way of unifying a set of pulsers to represent
  * a response to a channel.
- * 
+ *
  * For aesthetic, a pulser group is organized in a circle, and every
- * pulser in the group shares the same attributes of size and color
+ * pulser in the group shares the same attributes of size and color.
+ *
+ * The state of the pulsers is kept in primitive arrays rather than in
+ * individual Pulser objects. The position of every pulser is derived from
+ * its position at a group angle of zero and a single rotation angle, so
+ * rotating the group never creates geometry and never accumulates error
+ * no matter how long it runs. Pulsers are drawn by copying pre-rendered
+ * images from the shared SpriteCache.
+ *
+ * Once its sprites are cached, a group allocates nothing to be signaled,
+ * updated or drawn. Links fade from the group color to white over the
+ * first 100 units above the center, in bands of solid color, since any
+ * paint other than a solid color is allocated anew by Java2D at every
+ * draw. The segments of every band are gathered into a path of its own,
+ * reused from tick to tick, so each band is drawn with a single call.
+ * Antialiased links are drawn segment by segment instead, which Java2D
+ * fills as thin parallelograms without allocating, where a path goes
+ * through its general rasterizer, slower and allocating at every draw.
+ * Sprites are copied with the vertical flip of the canvas undone,
+ * which Java2D does without allocating, and which leaves the symmetric
+ * sprites unchanged.
+ *
+ * What is drawn is kept in a Frame of its own, which interpolate fills
+ * and snapshots of the scene copy, so that drawing a group never reads
+ * the state the simulation is changing.
+ *
+ * Pulses and rotation are measured in ticks of 20 ms, the frame interval
+ * they were originally tuned for, and advance by the time each update
+ * covers, so the group animates at the same speed at any frame rate.
  * @author Miguel Guerrero
  */
 public class PulserGroup implements MidiResponder
 {
-	private LinkedList<Pulser> group;
-	
-	private AffineTransform rot;
+	//Length of a tick
+	private static final double TICK_NANOS = 20_000_000.0;
+
+	private static final double TWO_PI = 2 * Math.PI;
+
+	//Height over which links fade to white, and amount of bands of
+	//solid color the fade is made of
+	private static final int LINK_FADE_HEIGHT = 100;
+	private static final int LINK_BANDS = 20;
+
+	Color color;
+
+	//Amount of pulsers in the group
+	private int num;
+
+	//Positions of the pulsers at a group angle of zero,
+	//interleaved as x0, y0, x1, y1...
+	private double[] base;
+
+	//Positions of the pulsers at the group angle being drawn
+	private double[] xs;
+	private double[] ys;
+
+	//Remaining active ticks of each pulser, 0 when inactive, now
+	//and before the last update
+	private double[] ticks;
+	private double[] lastTicks;
+
+	//Radius of a pulser that is not active
+	private double baseRadius;
+	private int unitSize;
+
+	//Rotation of the whole group about the center, kept within [0, 2pi),
+	//now and before the last update
+	private double angle;
+	private double lastAngle;
+
+	//Rotation applied to the group every tick
+	private double step;
 	private int dir;
 	private int frames;
+
+	//Colors of the links below the fade, of every band of the fade,
+	//and above it, for every group color. Groups of the same color
+	//share theirs
+	private static final Map<Color, Color[]> LINK_COLORS = new ConcurrentHashMap<>();
+	private Color[] linkColors;
+
+	//Image of a pulser at every scale step, fetched from the
+	//sprite cache when first needed
+	private BufferedImage[] sprites = new BufferedImage[Pulser.PULSE_TICKS + 1];
+	private int spriteGeneration;
+
+	//What the group draws as of the last interpolation
+	private Frame live;
+
 	/**
-	 * Constructs a PulserGroup specified by the amount of pulsers 
-	 * in the group, the size of each pulser, the 
+	 * Constructs a PulserGroup specified by the amount of pulsers
+	 * in the group, the size of each pulser, the
 	 * @param num numbers of pulser objects
 	 * @param unitSize size of each pulser in pixels
 	 * @param diameter size of the circle
@@ -36,58 +120,201 @@ public class PulserGroup implements MidiResponder
 	 */
 	public PulserGroup(int num, int unitSize, int diameter, Color color, double offset, boolean reverse)
 	{
-		//Represent the group as a linked list
-		group = new LinkedList<>();
-		
+		this.num = num;
+		this.color = color;
+		this.baseRadius = unitSize / 2.0;
+		this.unitSize = unitSize;
+		this.linkColors = LINK_COLORS.computeIfAbsent(color, PulserGroup::fadeColors);
+		base = new double[num * 2];
+		xs = new double[num];
+		ys = new double[num];
+		ticks = new double[num];
+		lastTicks = new double[num];
+		live = new Frame(this);
 
-		//Get the interval to evenly spread the number 
-		//of pulsers in the group over a circle 
+		//Get the interval to evenly spread the number
+		//of pulsers in the group over a circle
 		double a = 2 * Math.PI / num;
 		for(int i = 0; i < num; i++)
 		{
-			//Instantiate each pulser in sequence and
-			//as having a position on a circle, offset by
-			//some angrad
-			int x = (int) (diameter * Math.cos(a * i + offset));
-			int y = (int) (diameter * Math.sin(a * i + offset));
-			group.add(new Pulser(x, y, unitSize, color));
+			//Place each pulser in sequence as having a
+			//position on a circle, offset by some angrad
+			base[2 * i] = diameter * Math.cos(a * i + offset);
+			base[2 * i + 1] = diameter * Math.sin(a * i + offset);
 		}
-		
-		//Sets up the rotation matrix to rotate each pulser about
+
+		//Sets up the rotation to rotate each pulser about
 		//the center
 		dir = reverse ? -1 : 1;
-		rot = AffineTransform.getRotateInstance(dir * 0.0025);
+		step = dir * 0.0025;
+		interpolate(1);
 	}
-	
+
 	/**
 	 * Signals every pulser in the group that a note has been
 	 * received.
 	 */
 	@Override
 	public void signalOn(ShortMessage sm)
-	{	
-		//Propagate the message to the entire group
-		for(MidiResponder m: group) 
-			m.signalOn(sm);
+	{
+		//Activate the entire group. The pulse starts at full
+		//size rather than growing in from the last update
+		for(int i = 0; i < num; i++)
+			ticks[i] = lastTicks[i] = Pulser.PULSE_TICKS;
 	}
 
 	/**
-	 * Cascades a signal to every pulser in the group
-	 * with a message that a Off message has been received.
-	 * 
+	 * Signals the group that a Off message has been received.
+	 *
 	 * For this group, the rate of rotation is perodic, and every signal
 	 * off results in a faster -> slower -> faster rotation
 	 */
 	@Override
 	public void signalOff(ShortMessage sm)
 	{
-		//Accelerate rotation of 
+		//Accelerate rotation of
 		frames++;
-		rot = AffineTransform.getRotateInstance(0.05 * Math.cos(
-				Math.toRadians(dir * 3 * frames % 360)));
-		//Send the short message to each member of the group
-		for(MidiResponder m: group) 
-			m.signalOff(sm);
+		step = 0.05 * Math.cos(Math.toRadians(dir * 3 * frames % 360));
+	}
+
+	/**
+	 * Signals the group every note of a frame at once. The group
+	 * ends up as it would after each note one by one, but only
+	 * activates its pulsers and computes its rotation once
+	 */
+	@Override
+	public void signal(ChannelSignal signal)
+	{
+		if(signal.getOnCount() > 0)
+			signalOn(null);
+		if(signal.getOffCount() > 0)
+		{
+			frames += signal.getOffCount();
+			step = 0.05 * Math.cos(Math.toRadians(dir * 3 * frames % 360));
+		}
+	}
+
+	/**
+	 * Shrinks the active pulsers back towards their original
+	 * size, and rotates the group
+	 */
+	@Override
+	public void update(long elapsedNanos)
+	{
+		double elapsed = elapsedNanos / TICK_NANOS;
+		for(int i = 0; i < num; i++)
+		{
+			lastTicks[i] = ticks[i];
+			ticks[i] = Math.max(ticks[i] - elapsed, 0);
+		}
+
+		//Apply a subtle rotation on this entire group about
+		//the center. Pulsers will look like they are traveling
+		//in a circle
+		lastAngle = angle;
+		angle += step * elapsed;
+		if(angle >= TWO_PI || angle < 0)
+		{
+			//Wrap both angles so the rotation between
+			//them stays the same
+			double wrap = Math.floor(angle / TWO_PI) * TWO_PI;
+			angle -= wrap;
+			lastAngle -= wrap;
+		}
+	}
+
+	/**
+	 * Places and sizes the pulsers between their last two states,
+	 * and links them up
+	 */
+	@Override
+	public void interpolate(double alpha)
+	{
+		SpriteCache cache = SpriteCache.getShared();
+		int generation = cache.getGeneration();
+		if(generation != spriteGeneration)
+		{
+			//Sprites kept across evictions are let go once the cache is cleared
+			Arrays.fill(sprites, null);
+			spriteGeneration = generation;
+		}
+
+		Frame f = live;
+		for(int i = 0; i < num; i++)
+		{
+			//A pulser grows by its base size for every tick
+			//it has left
+			double t = lastTicks[i] + (ticks[i] - lastTicks[i]) * alpha;
+			int scale = f.scales[i] = (int) Math.round(t);
+
+			//Fetch the sprites here, so that drawing only reads
+			if(sprites[scale] == null)
+				sprites[scale] = cache.getSprite(color, unitSize, scale);
+		}
+		updatePositions(lastAngle + (angle - lastAngle) * alpha);
+
+		double minX = Double.MAX_VALUE;
+		double minY = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE;
+		double maxY = -Double.MAX_VALUE;
+		int[] b = f.linkBounds;
+		b[0] = b[1] = Integer.MAX_VALUE;
+		b[2] = b[3] = Integer.MIN_VALUE;
+		for(int i = 0; i < num; i++)
+		{
+			BufferedImage sprite = f.images[i] = sprites[f.scales[i]];
+			double r = baseRadius * (1 + f.scales[i]);
+			int left = f.lefts[i] = (int) Math.round(xs[i] - r);
+			int top = f.tops[i] = (int) Math.round(ys[i] - r);
+			int x = f.linkXs[i] = (int) xs[i];
+			int y = f.linkYs[i] = (int) ys[i];
+			b[0] = Math.min(b[0], x);
+			b[1] = Math.min(b[1], y);
+			b[2] = Math.max(b[2], x);
+			b[3] = Math.max(b[3], y);
+
+			//The links end within the pulsers
+			int size = sprite.getWidth();
+			minX = Math.min(minX, left);
+			minY = Math.min(minY, top);
+			maxX = Math.max(maxX, left + size);
+			maxY = Math.max(maxY, top + size);
+		}
+		f.bounds.setRect(minX - 1, minY - 1, maxX - minX + 2, maxY - minY + 2);
+		f.buildLinks();
+	}
+
+	/**
+	 * @return the colors of the links of a group color, from the
+	 * color itself below the fade to white above it
+	 */
+	private static Color[] fadeColors(Color color)
+	{
+		Color[] colors = new Color[LINK_BANDS + 2];
+		colors[0] = color;
+		for(int band = 0; band < LINK_BANDS; band++)
+		{
+			//Color at the middle of the band
+			double t = (band + 0.5) / LINK_BANDS;
+			colors[band + 1] = new Color(
+					(int) Math.round(color.getRed() + (255 - color.getRed()) * t),
+					(int) Math.round(color.getGreen() + (255 - color.getGreen()) * t),
+					(int) Math.round(color.getBlue() + (255 - color.getBlue()) * t));
+		}
+		colors[LINK_BANDS + 1] = Color.WHITE;
+		return colors;
+	}
+
+	@Override
+	public Rectangle2D getBounds()
+	{
+		return live.bounds;
+	}
+
+	@Override
+	public ResponderFrame createFrame()
+	{
+		return new Frame(this);
 	}
 
 	/**
@@ -97,43 +324,308 @@ public class PulserGroup implements MidiResponder
 	@Override
 	public void drawResponse(Graphics2D g2d)
 	{
-		int size = group.size();
-		for(int i = 0; i <= group.size(); i++)
-		{
-			//Apply a modulo so that the first and last
-			//pulsers in the group can link to each other with
-			//having to account for the edge case outside of the
-			//loop
-			Pulser a = group.get(i % size);
-			Pulser b = group.get((i + 2) % size);
-			
-			g2d.setPaint(new GradientPaint(0, 0, a.color, 0, 100, Color.WHITE));
-			
-			//Draw a line between two neighboring pulsers
-			g2d.drawLine(
-					(int) a.x, (int) a.y, 
-					(int) b.x, (int) b.y);
-		}
-
-		//Draw every pulser in the group
-		for(Pulser pulsar: group) 
-			pulsar.drawResponse(g2d);
-		
-		//Apply a subtle rotation transformation on this
-		//entire group about the center
-		//Pulser will look like they are traveling in a circle
-		transform(this.rot);
+		live.draw(g2d, null, RenderQuality.FULL);
 	}
-	
+
 	/**
-	 * Transform the entire group using the provided
-	 * AffineTransform
+	 * Draws the group, leaving out the pulsers that cannot be seen
+	 */
+	@Override
+	public void drawResponse(Graphics2D g2d, Rectangle2D visible)
+	{
+		live.draw(g2d, visible, RenderQuality.FULL);
+	}
+
+	/**
+	 * Recomputes the position of every pulser from its
+	 * position at angle zero and a group angle
+	 */
+	private void updatePositions(double angle)
+	{
+		double cos = Math.cos(angle);
+		double sin = Math.sin(angle);
+		for(int i = 0; i < num; i++)
+		{
+			double bx = base[2 * i];
+			double by = base[2 * i + 1];
+			xs[i] = bx * cos - by * sin;
+			ys[i] = bx * sin + by * cos;
+		}
+	}
+
+	/**
+	 * Transform the layout of the entire group using the provided
+	 * AffineTransform. The transformation is applied to the positions
+	 * the group rotates from, so it persists as the group rotates.
 	 */
 	public void transform(AffineTransform at)
 	{
-		//Pass the transformation to each member of 
-		//the group
-		for(Pulser pulser: group)
-			pulser.transform(at);
+		at.transform(base, 0, base, 0, num);
+		interpolate(1);
+	}
+
+	/**
+	 * @return the band of the fade a vertical coordinate lies in,
+	 * -1 below the fade and LINK_BANDS above it
+	 */
+	private static int fadeBand(int y)
+	{
+		if(y < 0)
+			return -1;
+		if(y >= LINK_FADE_HEIGHT)
+			return LINK_BANDS;
+		return y * LINK_BANDS / LINK_FADE_HEIGHT;
+	}
+
+	/**
+	 * What a group draws for one tick: the scale step, corner and image
+	 * of every pulser, and the ends of the links
+	 */
+	private static class Frame implements ResponderFrame
+	{
+		//Group the frame is of, and how many pulsers it has
+		private final PulserGroup group;
+		private final int num;
+
+		//Scale step, top left corner and image of each pulser
+		private final int[] scales;
+		private final int[] lefts;
+		private final int[] tops;
+		private final BufferedImage[] images;
+
+		//Pixel coordinates of the pulsers the links are drawn
+		//between, and their bounds as left, bottom, right, top
+		private final int[] linkXs;
+		private final int[] linkYs;
+		private final int[] linkBounds = new int[4];
+
+		//Links gathered by color of the fade, indexed by band + 1: into
+		//one path per color, and as the ends of every segment, x1, y1,
+		//x2, y2, for antialiased drawing. Solid links are gathered into
+		//a path of their own. All have the vertical axis negated, and
+		//are built on the thread running the simulation, only read
+		//while drawing
+		private final Path2D.Float[] bandPaths = new Path2D.Float[LINK_BANDS + 2];
+		private final int[][] bandSegments = new int[LINK_BANDS + 2][];
+		private final int[] bandLengths = new int[LINK_BANDS + 2];
+		private final Path2D.Float solidPath;
+
+		//Area covered by the pulsers and links
+		private final Rectangle2D.Double bounds = new Rectangle2D.Double();
+
+		Frame(PulserGroup group)
+		{
+			this.group = group;
+			this.num = group.num;
+			scales = new int[num];
+			lefts = new int[num];
+			tops = new int[num];
+			images = new BufferedImage[num];
+			linkXs = new int[num];
+			linkYs = new int[num];
+			solidPath = new Path2D.Float(Path2D.WIND_NON_ZERO, num * 2);
+			for(int band = 0; band < bandPaths.length; band++)
+			{
+				bandPaths[band] = new Path2D.Float(Path2D.WIND_NON_ZERO, 8);
+				bandSegments[band] = new int[16];
+			}
+		}
+
+		@Override
+		public void capture()
+		{
+			Frame f = group.live;
+			System.arraycopy(f.scales, 0, scales, 0, num);
+			System.arraycopy(f.lefts, 0, lefts, 0, num);
+			System.arraycopy(f.tops, 0, tops, 0, num);
+			System.arraycopy(f.images, 0, images, 0, num);
+			System.arraycopy(f.linkXs, 0, linkXs, 0, num);
+			System.arraycopy(f.linkYs, 0, linkYs, 0, num);
+			System.arraycopy(f.linkBounds, 0, linkBounds, 0, 4);
+			bounds.setRect(f.bounds);
+			buildLinks();
+		}
+
+		@Override
+		public Rectangle2D getBounds()
+		{
+			return bounds;
+		}
+
+		/**
+		 * Reports the pulsers that moved or changed size, and the
+		 * links if any of them moved
+		 */
+		@Override
+		public void reportDamage(ResponderFrame last, DamageTracker damage)
+		{
+			Frame before = (Frame) last;
+			boolean linksMoved = false;
+			for(int i = 0; i < num; i++)
+			{
+				if(scales[i] != before.scales[i] || lefts[i] != before.lefts[i] || tops[i] != before.tops[i])
+				{
+					//Both where the pulser was and where it is now
+					addSprite(damage, before.lefts[i], before.tops[i], before.scales[i]);
+					addSprite(damage, lefts[i], tops[i], scales[i]);
+				}
+				if(linkXs[i] != before.linkXs[i] || linkYs[i] != before.linkYs[i])
+					linksMoved = true;
+			}
+			if(linksMoved)
+			{
+				int[] b = before.linkBounds;
+				damage.add(b[0], b[1], b[2], b[3]);
+				damage.add(linkBounds[0], linkBounds[1], linkBounds[2], linkBounds[3]);
+			}
+		}
+
+		/**
+		 * Reports the area covered by the sprite of a pulser
+		 */
+		private void addSprite(DamageTracker damage, int left, int top, int scale)
+		{
+			int size = group.unitSize * (1 + scale);
+			damage.add(left, top, left + size, top + size);
+		}
+
+		/**
+		 * Draws the pulsers and their links. Links are drawn in solid
+		 * colors or not at all, and every other pulser is left out,
+		 * as the quality goes down
+		 * @param visible area that can be seen, or null to draw
+		 * every pulser
+		 */
+		@Override
+		public void draw(Graphics2D g2d, Rectangle2D visible, RenderQuality quality)
+		{
+			//Undo the flip of the canvas, vertical coordinates are negated
+			g2d.scale(1, -1);
+			drawLinks(g2d, quality.getLinks());
+
+			//Draw every pulser in the group, or some of
+			//them at lower quality
+			int stride = quality.getPulserStride();
+			for(int i = 0; i < num; i += stride)
+			{
+				BufferedImage sprite = images[i];
+				if(visible == null || visible.intersects(lefts[i], tops[i], sprite.getWidth(), sprite.getHeight()))
+					g2d.drawImage(sprite, lefts[i], -tops[i] - sprite.getHeight(), null);
+			}
+			g2d.scale(1, -1);
+		}
+
+		/**
+		 * Gathers the link of every pulser to its second neighbor into
+		 * the paths, cutting faded links where they cross into another
+		 * band. Paths and segments keep their storage, so once grown
+		 * this allocates nothing
+		 */
+		private void buildLinks()
+		{
+			solidPath.reset();
+			for(int band = 0; band < bandPaths.length; band++)
+			{
+				bandPaths[band].reset();
+				bandLengths[band] = 0;
+			}
+			for(int i = 0; i < num; i++)
+			{
+				//Apply a modulo so that the last pulsers in the
+				//group can link to the first ones without
+				//having to account for the edge case outside of the
+				//loop
+				int b = (i + 2) % num;
+				solidPath.moveTo(linkXs[i], -linkYs[i]);
+				solidPath.lineTo(linkXs[b], -linkYs[b]);
+				if(linkYs[i] <= linkYs[b])
+					addLink(linkXs[i], linkYs[i], linkXs[b], linkYs[b]);
+				else
+					addLink(linkXs[b], linkYs[b], linkXs[i], linkYs[i]);
+			}
+		}
+
+		/**
+		 * Adds a link to the path of every band of the fade it crosses
+		 * @param x1 horizontal coordinate of the lower end
+		 * @param y1 vertical coordinate of the lower end
+		 * @param x2 horizontal coordinate of the upper end
+		 * @param y2 vertical coordinate of the upper end
+		 */
+		private void addLink(int x1, int y1, int x2, int y2)
+		{
+			int from = fadeBand(y1);
+			int to = fadeBand(y2);
+			int x = x1;
+			int y = y1;
+			for(int band = from; band < to; band++)
+			{
+				//End the segment where the next band starts
+				int top = (band + 1) * LINK_FADE_HEIGHT / LINK_BANDS;
+				int end = x1 + (int) Math.round((double) (x2 - x1) * (top - y1) / (y2 - y1));
+				addSegment(band + 1, x, y, end, top);
+				x = end;
+				y = top;
+			}
+			addSegment(to + 1, x, y, x2, y2);
+		}
+
+		private void addSegment(int path, int x1, int y1, int x2, int y2)
+		{
+			bandPaths[path].moveTo(x1, -y1);
+			bandPaths[path].lineTo(x2, -y2);
+			int[] segments = bandSegments[path];
+			int n = bandLengths[path];
+			if(n + 4 > segments.length)
+				segments = bandSegments[path] = Arrays.copyOf(segments, segments.length * 2);
+			segments[n] = x1;
+			segments[n + 1] = -y1;
+			segments[n + 2] = x2;
+			segments[n + 3] = -y2;
+			bandLengths[path] = n + 4;
+		}
+
+		/**
+		 * Draws the links, on a graphical context whose vertical
+		 * coordinates are negated, with one call per color, or one
+		 * per segment when antialiased
+		 */
+		private void drawLinks(Graphics2D g2d, RenderQuality.LinkStyle style)
+		{
+			if(style == RenderQuality.LinkStyle.NONE)
+				return;
+			boolean antialiased = g2d.getRenderingHint(RenderingHints.KEY_ANTIALIASING) == RenderingHints.VALUE_ANTIALIAS_ON;
+			if(style == RenderQuality.LinkStyle.SOLID)
+			{
+				g2d.setColor(group.color);
+				if(!antialiased)
+					g2d.draw(solidPath);
+				else
+				{
+					for(int i = 0; i < num; i++)
+					{
+						int b = (i + 2) % num;
+						g2d.drawLine(linkXs[i], -linkYs[i], linkXs[b], -linkYs[b]);
+					}
+				}
+				return;
+			}
+			Color[] linkColors = group.linkColors;
+			for(int band = 0; band < bandPaths.length; band++)
+			{
+				int n = bandLengths[band];
+				if(n == 0)
+					continue;
+				g2d.setColor(linkColors[band]);
+				if(!antialiased)
+					g2d.draw(bandPaths[band]);
+				else
+				{
+					int[] segments = bandSegments[band];
+					for(int i = 0; i < n; i += 4)
+						g2d.drawLine(segments[i], segments[i + 1], segments[i + 2], segments[i + 3]);
+				}
+			}
+		}
 	}
 }
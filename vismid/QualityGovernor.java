@@ -0,0 +1,193 @@
+package vismid;
+
+import java.util.Arrays;
+
+/**
+ * QualityGovernor picks the RenderQuality of the Canvas from how long
+ * its frames take to render, so that the frame rate holds when the load
+ * spikes, with dense passages, big windows or many responders, and the
+ * visualization looks its best again once the load is gone.
+ *
+ * Render times are kept over a moving window of frames. Whenever the
+ * mean of a full window goes over most of the target frame interval,
+ * quality is stepped down a level. Quality is only stepped back up after
+ * the mean has stayed well under the interval for several windows, and
+ * the window is started over at every change, so a level is judged by
+ * its own frames alone. A step up that turns out too costly is undone,
+ * and the next one is waited for twice as long, so the governor settles
+ * instead of going back and forth between two levels.
+ *
+ * The mean render time last seen at every level is remembered. A level
+ * stepped down to is stepped back up from if it costs clearly more than
+ * the level above did, and is not stepped down to again until the level
+ * above costs as much as it was seen to, as drawing at a lower
+ * resolution and scaling up may cost more than it saves when the scene
+ * is sparse or images cannot be scaled in hardware.
+ *
+ * Only used by the rendering thread, apart from the level, which can be
+ * read from any thread.
+ */
+public class QualityGovernor
+{
+	//Amount of frames the mean render time is taken over
+	private static final int WINDOW = 30;
+
+	//Fractions of the target interval the mean render time steps
+	//quality down above, and lets it step back up below. The gap
+	//between them keeps a level from flipping on small changes
+	private static final double DOWN_FRACTION = 0.8;
+	private static final double UP_FRACTION = 0.4;
+
+	//How much more than the level above a level stepped down
+	//to has to cost to be stepped back up from, so that noise
+	//does not send the governor back and forth
+	private static final double COSTLIER_FACTOR = 1.1;
+
+	//Frames with headroom needed before stepping up, at first
+	//and after steps up were undone over and over
+	private static final int MIN_UP_DELAY = 2 * WINDOW;
+	private static final int MAX_UP_DELAY = 64 * WINDOW;
+
+	//Frames a level reached by stepping up has to hold for
+	//before the wait for the next step up is shortened again
+	private static final int PROBE_FRAMES = 4 * WINDOW;
+
+	//Render times of the last frames, as a ring
+	private long[] times = new long[WINDOW];
+	private int next;
+	private int count;
+	private long sum;
+
+	private volatile RenderQuality quality = RenderQuality.FULL;
+
+	//Mean render time last seen at every level, 0 if never seen,
+	//and the one of the level stepped down from until the new
+	//level is judged
+	private long[] costs = new long[RenderQuality.values().length];
+	private long steppedDownFrom;
+
+	//Frames in a row with headroom, and how many are needed
+	private int headroom;
+	private int upDelay = MIN_UP_DELAY;
+
+	//Whether the last change stepped up and the level has not
+	//held for long yet, and the frames rendered since the change
+	private boolean probing;
+	private int sinceChange;
+
+	/**
+	 * Records how long a frame took to render, and changes the
+	 * level when the window of frames calls for it
+	 * @param renderNanos time the frame took to render
+	 * @param targetInterval time frames are meant to be apart,
+	 * 0 if unknown to leave the level as it is
+	 * @return the level to render the next frame at
+	 */
+	public RenderQuality frameRendered(long renderNanos, long targetInterval)
+	{
+		sum += renderNanos - times[next];
+		times[next] = renderNanos;
+		next = (next + 1) % WINDOW;
+		if(count < WINDOW)
+			count++;
+		sinceChange++;
+		if(targetInterval <= 0 || count < WINDOW)
+			return quality;
+
+		long mean = sum / WINDOW;
+		costs[quality.ordinal()] = mean;
+		long before = steppedDownFrom;
+		steppedDownFrom = 0;
+		if(before > 0 && mean > before * COSTLIER_FACTOR)
+		{
+			//Stepping down made frames more costly
+			change(quality.higher());
+			return quality;
+		}
+
+		if(mean > targetInterval * DOWN_FRACTION)
+		{
+			//A level reached by stepping up that cannot hold
+			//is tried again later and later
+			if(probing)
+				upDelay = Math.min(upDelay * 2, MAX_UP_DELAY);
+			probing = false;
+			headroom = 0;
+			RenderQuality lower = quality.lower();
+			long cost = costs[lower.ordinal()];
+			if(lower != quality && (cost == 0 || cost <= mean))
+			{
+				change(lower);
+				steppedDownFrom = mean;
+			}
+			return quality;
+		}
+
+		if(probing && sinceChange >= PROBE_FRAMES)
+		{
+			probing = false;
+			upDelay = Math.max(upDelay / 2, MIN_UP_DELAY);
+		}
+		if(mean < targetInterval * UP_FRACTION)
+		{
+			if(++headroom >= upDelay && quality != RenderQuality.FULL)
+			{
+				headroom = 0;
+				probing = true;
+				change(quality.higher());
+			}
+		}
+		else
+			headroom = 0;
+		return quality;
+	}
+
+	/**
+	 * Moves to a level and starts the window over
+	 */
+	private void change(RenderQuality level)
+	{
+		if(level != quality)
+		{
+			//Only the level reached by a step down is judged against
+			//the one it left. A step up is judged like any level, so
+			//that undoing it makes the next one wait longer
+			if(level.ordinal() < quality.ordinal())
+				steppedDownFrom = 0;
+			quality = level;
+			clearWindow();
+		}
+	}
+
+	private void clearWindow()
+	{
+		Arrays.fill(times, 0);
+		next = 0;
+		count = 0;
+		sum = 0;
+		sinceChange = 0;
+	}
+
+	/**
+	 * Starts over from a level, forgetting the frames rendered so far
+	 * @param level level to render the next frame at
+	 */
+	public void reset(RenderQuality level)
+	{
+		quality = level;
+		clearWindow();
+		headroom = 0;
+		probing = false;
+		upDelay = MIN_UP_DELAY;
+		Arrays.fill(costs, 0);
+		steppedDownFrom = 0;
+	}
+
+	/**
+	 * @return the level frames are rendered at
+	 */
+	public RenderQuality getQuality()
+	{
+		return quality;
+	}
+}
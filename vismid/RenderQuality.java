@@ -0,0 +1,108 @@
+package vismid;
+
+/**
+ * RenderQuality is how much of the visualization the Canvas draws, and
+ * how well. The levels are ordered from the best looking to the cheapest
+ * to draw, each one giving up a little more than the one before, so that
+ * a QualityGovernor can step through them as the load changes.
+ */
+public enum RenderQuality
+{
+	//Everything drawn, with antialiased links
+	FULL(true, LinkStyle.FADED, 1, 1),
+
+	//Links drawn without antialiasing
+	NO_ANTIALIASING(false, LinkStyle.FADED, 1, 1),
+
+	//Links drawn in the group color only
+	SOLID_LINKS(false, LinkStyle.SOLID, 1, 1),
+
+	//No links between the pulsers
+	NO_LINKS(false, LinkStyle.NONE, 1, 1),
+
+	//Every other pulser of a group left out
+	FEWER_PULSERS(false, LinkStyle.NONE, 2, 1),
+
+	//Drawn at half the resolution of the canvas, then scaled up
+	LOW_RESOLUTION(false, LinkStyle.NONE, 2, 0.5);
+
+	/**
+	 * How the pulsers of a group are linked up
+	 */
+	public enum LinkStyle
+	{
+		//Fading from the group color to white
+		FADED,
+
+		//In the group color
+		SOLID,
+
+		//Not drawn
+		NONE
+	}
+
+	private static final RenderQuality[] LEVELS = values();
+
+	private final boolean antialiased;
+	private final LinkStyle links;
+	private final int pulserStride;
+	private final double resolution;
+
+	private RenderQuality(boolean antialiased, LinkStyle links, int pulserStride, double resolution)
+	{
+		this.antialiased = antialiased;
+		this.links = links;
+		this.pulserStride = pulserStride;
+		this.resolution = resolution;
+	}
+
+	/**
+	 * @return whether lines are antialiased
+	 */
+	public boolean isAntialiased()
+	{
+		return antialiased;
+	}
+
+	/**
+	 * @return how the pulsers of a group are linked up
+	 */
+	public LinkStyle getLinks()
+	{
+		return links;
+	}
+
+	/**
+	 * @return how many pulsers of a group are passed over for every
+	 * one drawn, 1 to draw them all
+	 */
+	public int getPulserStride()
+	{
+		return pulserStride;
+	}
+
+	/**
+	 * @return the fraction of the resolution of the canvas the scene
+	 * is drawn at before being scaled up, 1 to draw it as it is
+	 */
+	public double getResolution()
+	{
+		return resolution;
+	}
+
+	/**
+	 * @return the next cheaper level, or this one if it is the cheapest
+	 */
+	public RenderQuality lower()
+	{
+		return LEVELS[Math.min(ordinal() + 1, LEVELS.length - 1)];
+	}
+
+	/**
+	 * @return the next better looking level, or this one if it is the best
+	 */
+	public RenderQuality higher()
+	{
+		return LEVELS[Math.max(ordinal() - 1, 0)];
+	}
+}
@@ -0,0 +1,53 @@
+package vismid;
+
+import java.awt.Graphics2D;
+import java.awt.geom.Rectangle2D;
+
+/**
+ * ResponderFrame holds what a MidiResponder draws for one simulation
+ * tick, apart from the responder itself, so that any amount of canvases
+ * can draw it while the responder goes on to the next tick.
+ *
+ * Frames are created by their responder, once per SceneSnapshot they are
+ * kept in, and filled again every time the snapshot is reused. Once
+ * captured, a frame is only read, and may be drawn from several threads
+ * at once, each with a graphical context of its own.
+ */
+public interface ResponderFrame
+{
+	/**
+	 * Copies the state of the responder as of its last interpolation.
+	 * Called on the thread running the simulation
+	 */
+	public void capture();
+
+	/**
+	 * Gets the area this frame draws in, so that it is not drawn
+	 * where it cannot show up
+	 * @return the bounds in the coordinates of the responder, which
+	 * must not be modified, or null if unknown
+	 */
+	public Rectangle2D getBounds();
+
+	/**
+	 * Draws the frame onto a graphical context
+	 * @param g2d graphical context to draw on
+	 * @param visible area that can be seen, in the coordinates of
+	 * the responder. Only valid during the call
+	 * @param quality quality to draw at
+	 */
+	public void draw(Graphics2D g2d, Rectangle2D visible, RenderQuality quality);
+
+	/**
+	 * Reports the areas whose drawing changed since a frame of the same
+	 * responder drawn before, both where it was and where it now is,
+	 * so that only those are repainted. By default the whole canvas is
+	 * reported
+	 * @param last frame drawn before
+	 * @param damage collects the changed areas
+	 */
+	public default void reportDamage(ResponderFrame last, DamageTracker damage)
+	{
+		damage.invalidateAll();
+	}
+}
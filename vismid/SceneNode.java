@@ -0,0 +1,301 @@
+package vismid;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * SceneNode is a node of the retained scene the Canvas draws. A node may
+ * hold a MidiResponder and any amount of child nodes, and places both
+ * with a transform relative to its parent, so a whole branch can be moved
+ * or scaled without touching the geometry of its responders.
+ *
+ * Every tick, the nodes cache their transform to world coordinates and
+ * their bounds in world coordinates, covering their responder and all of
+ * their children, and are captured into a SceneSnapshot. Drawing the
+ * snapshot skips every branch whose bounds lie outside the visible area
+ * before any call is made to the graphical context, and responders are
+ * told which part of them is visible.
+ *
+ * The scene may be edited on any thread while the Simulation runs ticks
+ * on its own. As with the observers of the Signaler, the children of a
+ * node are an array replaced as a whole on every change, and a tick
+ * walks the arrays it found when it started, so it always sees a whole
+ * scene, either before or after an edit.
+ */
+public class SceneNode
+{
+	private static final SceneNode[] NO_CHILDREN = new SceneNode[0];
+
+	private MidiResponder responder;
+	private volatile SceneNode[] children = NO_CHILDREN;
+	private volatile SceneNode parent;
+
+	//Children as of the start of the tick being run
+	private SceneNode[] ticked = NO_CHILDREN;
+
+	//Position of the node relative to its parent
+	private AffineTransform local = new AffineTransform();
+
+	//Cached each tick: transform to world coordinates, its inverse,
+	//the bounds of the branch in world coordinates and the amount
+	//of responders in the branch
+	private AffineTransform world = new AffineTransform();
+	private AffineTransform inverse = new AffineTransform();
+	private boolean invertible = true;
+	private Rectangle2D.Double worldBounds = new Rectangle2D.Double();
+	private boolean unbounded;
+	private boolean empty;
+	private int responderCount;
+
+	//Transform to world coordinates as of the tick before
+	private AffineTransform lastWorld = new AffineTransform();
+
+	//Index of the responder in the order of drawing, for the metrics
+	private int index = -1;
+
+	//Reused for the bounds of the responder in world coordinates
+	private Rectangle2D.Double responderBounds = new Rectangle2D.Double();
+
+	/**
+	 * Creates a node holding no responder, to group others
+	 */
+	public SceneNode()
+	{
+	}
+
+	/**
+	 * Creates a node holding a responder
+	 * @param responder responder drawn by the node
+	 */
+	public SceneNode(MidiResponder responder)
+	{
+		this.responder = responder;
+	}
+
+	/**
+	 * Adds a child, drawn after this node and its earlier children
+	 * @param child node without a parent
+	 */
+	public synchronized void add(SceneNode child)
+	{
+		if(child.parent != null)
+			throw new IllegalArgumentException("Node already has a parent");
+		child.parent = this;
+		SceneNode[] c = Arrays.copyOf(children, children.length + 1);
+		c[c.length - 1] = child;
+		children = c;
+	}
+
+	/**
+	 * Removes a child
+	 * @return whether the node was a child of this one
+	 */
+	public synchronized boolean remove(SceneNode child)
+	{
+		SceneNode[] c = children;
+		for(int i = 0; i < c.length; i++)
+		{
+			if(c[i] != child)
+				continue;
+			SceneNode[] left = new SceneNode[c.length - 1];
+			System.arraycopy(c, 0, left, 0, i);
+			System.arraycopy(c, i + 1, left, i, left.length - i);
+			children = left;
+			child.parent = null;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Finds the node holding a responder within this branch
+	 * @return the node, or null if there is none
+	 */
+	public SceneNode find(MidiResponder m)
+	{
+		if(responder == m)
+			return this;
+		SceneNode[] c = children;
+		for(int i = 0; i < c.length; i++)
+		{
+			SceneNode found = c[i].find(m);
+			if(found != null)
+				return found;
+		}
+		return null;
+	}
+
+	/**
+	 * Adds the responders of this branch to a list, in the order
+	 * they are drawn, and numbers the nodes holding them. Called
+	 * first every tick, fixing the children the tick walks
+	 */
+	void collect(List<MidiResponder> responders)
+	{
+		if(responder != null)
+		{
+			index = responders.size();
+			responders.add(responder);
+		}
+		ticked = children;
+		for(int i = 0; i < ticked.length; i++)
+			ticked[i].collect(responders);
+	}
+
+	/**
+	 * Caches the transform and bounds of this branch in world
+	 * coordinates. Called once per tick, after the responders
+	 * have been interpolated
+	 * @param parentWorld transform of the parent to world coordinates
+	 * @return whether a node of the branch moved since the last tick
+	 */
+	boolean updateBounds(AffineTransform parentWorld)
+	{
+		world.setTransform(parentWorld);
+		world.concatenate(local);
+		boolean moved = !world.equals(lastWorld);
+		if(moved)
+		{
+			lastWorld.setTransform(world);
+			inverse.setTransform(world);
+			try
+			{
+				inverse.invert();
+				invertible = true;
+			}
+			catch(NoninvertibleTransformException e)
+			{
+				//A node scaled to nothing shows nothing
+				invertible = false;
+			}
+		}
+
+		unbounded = false;
+		empty = true;
+		responderCount = 0;
+		if(responder != null)
+		{
+			responderCount = 1;
+			Rectangle2D b = responder.getBounds();
+			if(b == null)
+				unbounded = true;
+			else
+			{
+				transformBounds(world, b.getX(), b.getY(), b.getWidth(), b.getHeight(), responderBounds);
+				include(responderBounds);
+			}
+		}
+
+		for(int i = 0; i < ticked.length; i++)
+		{
+			SceneNode child = ticked[i];
+			moved |= child.updateBounds(world);
+			unbounded |= child.unbounded;
+			responderCount += child.responderCount;
+			if(!child.empty)
+				include(child.worldBounds);
+		}
+		return moved;
+	}
+
+	/**
+	 * Adds an area in world coordinates to the bounds
+	 */
+	private void include(Rectangle2D r)
+	{
+		if(empty)
+			worldBounds.setRect(r);
+		else
+			Rectangle2D.union(worldBounds, r, worldBounds);
+		empty = false;
+	}
+
+	/**
+	 * Maps a rectangle through a transform
+	 * @param at transform to apply
+	 * @param out set to the bounding box of the transformed rectangle
+	 */
+	static void transformBounds(AffineTransform at, double x, double y, double w, double h, Rectangle2D.Double out)
+	{
+		//The center moves with the transform, and the half extents
+		//grow by the absolute values of the linear part
+		double cx = x + w / 2;
+		double cy = y + h / 2;
+		double tx = at.getScaleX() * cx + at.getShearX() * cy + at.getTranslateX();
+		double ty = at.getShearY() * cx + at.getScaleY() * cy + at.getTranslateY();
+		double hw = (Math.abs(at.getScaleX()) * w + Math.abs(at.getShearX()) * h) / 2;
+		double hh = (Math.abs(at.getShearY()) * w + Math.abs(at.getScaleY()) * h) / 2;
+		out.setRect(tx - hw, ty - hh, 2 * hw, 2 * hh);
+	}
+
+	/**
+	 * Adds this branch to a snapshot, in drawing order, with the
+	 * frames of its responders. Called once per tick, after the
+	 * bounds have been updated
+	 */
+	void capture(SceneSnapshot snapshot)
+	{
+		int i = snapshot.addNode(responder, world, inverse, invertible, index,
+				responder != null && responder.getBounds() != null ? responderBounds : null);
+		for(int c = 0; c < ticked.length; c++)
+			ticked[c].capture(snapshot);
+		snapshot.endBranch(i, worldBounds, unbounded, empty, responderCount);
+	}
+
+	/**
+	 * @return the responder of this node, or null
+	 */
+	public MidiResponder getResponder()
+	{
+		return responder;
+	}
+
+	/**
+	 * @return the parent of this node, or null for a root
+	 */
+	public SceneNode getParent()
+	{
+		return parent;
+	}
+
+	/**
+	 * @return the children of this node as of now, not to be modified
+	 */
+	public List<SceneNode> getChildren()
+	{
+		return Collections.unmodifiableList(Arrays.asList(children));
+	}
+
+	/**
+	 * @return the transform placing this node within its parent,
+	 * which may be changed between frames
+	 */
+	public AffineTransform getTransform()
+	{
+		return local;
+	}
+
+	/**
+	 * Places this node within its parent. The geometry of its
+	 * responders is left as it is
+	 * @param at transform from the coordinates of this node
+	 * to those of its parent
+	 */
+	public void setTransform(AffineTransform at)
+	{
+		local.setTransform(at);
+	}
+
+	/**
+	 * @return the bounds of this branch in world coordinates as of
+	 * the last tick, empty if it has nothing bounded to draw
+	 */
+	public Rectangle2D getWorldBounds()
+	{
+		return worldBounds;
+	}
+}
@@ -0,0 +1,354 @@
+package vismid;
+
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SceneSnapshot is the scene of a Simulation as of one tick: every node
+ * in drawing order, with its transform and bounds in world coordinates,
+ * and the frame its responder captured. Canvases draw snapshots rather
+ * than the scene itself, so any amount of them can draw the same tick,
+ * on as many threads, while the simulation goes on to the next one.
+ *
+ * Snapshots are pooled by the simulation and counted: the simulation
+ * holds the latest one, and every canvas the one it is drawing. A
+ * snapshot nobody holds is filled again for a later tick, keeping the
+ * frames of its responders, so capturing a tick allocates nothing once
+ * the pool has grown to the amount of canvases. The count is only ever
+ * raised from above zero, so a snapshot being filled cannot be taken.
+ *
+ * The nodes are kept flat in arrays, each branch followed by the index
+ * past its last node, so a branch that cannot be seen is skipped at once.
+ */
+public class SceneSnapshot
+{
+	//Initial amount of nodes, enough for the 16 groups set up by Main
+	private static final int INITIAL_CAPACITY = 32;
+
+	//Holders of this snapshot, 0 while free to be filled
+	private final AtomicInteger references = new AtomicInteger();
+
+	//Number of the tick this snapshot was captured at
+	private long tick;
+
+	private int count;
+
+	//Responder of every node, null for nodes grouping others,
+	//and the frame it captured
+	private MidiResponder[] responders = new MidiResponder[0];
+	private ResponderFrame[] frames = new ResponderFrame[0];
+
+	//Transform of every node to world coordinates, and its inverse
+	private AffineTransform[] worlds = new AffineTransform[0];
+	private AffineTransform[] inverses = new AffineTransform[0];
+	private boolean[] invertible = new boolean[0];
+
+	//Bounds of every branch in world coordinates, whether it holds
+	//anything unbounded or nothing bounded, index past its last node
+	//and amount of responders in it
+	private Rectangle2D.Double[] branchBounds = new Rectangle2D.Double[0];
+	private boolean[] unbounded = new boolean[0];
+	private boolean[] empty = new boolean[0];
+	private int[] ends = new int[0];
+	private int[] responderCounts = new int[0];
+
+	//Bounds of the responder of every node in world coordinates, and
+	//its index in the order of drawing for the metrics
+	private Rectangle2D.Double[] responderBounds = new Rectangle2D.Double[0];
+	private int[] indices = new int[0];
+
+	SceneSnapshot()
+	{
+		grow(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Starts capturing a tick, forgetting the nodes of the last one
+	 * @param tick number of the tick
+	 */
+	void begin(long tick)
+	{
+		this.tick = tick;
+		count = 0;
+	}
+
+	/**
+	 * Adds a node after the ones added so far, and has its responder
+	 * capture its frame. The frames of the nodes of the last tick are
+	 * reused while they hold the same responders
+	 * @return index of the node, to end its branch at
+	 */
+	int addNode(MidiResponder responder, AffineTransform world, AffineTransform inverse,
+			boolean invertible, int index, Rectangle2D responderBounds)
+	{
+		if(count == worlds.length)
+			grow(count * 2);
+		int i = count++;
+		if(responders[i] != responder)
+		{
+			responders[i] = responder;
+			frames[i] = responder == null ? null : responder.createFrame();
+		}
+		if(frames[i] != null)
+			frames[i].capture();
+		worlds[i].setTransform(world);
+		inverses[i].setTransform(inverse);
+		this.invertible[i] = invertible;
+		indices[i] = index;
+		if(responderBounds != null)
+			this.responderBounds[i].setRect(responderBounds);
+		return i;
+	}
+
+	/**
+	 * Ends the branch of a node after the nodes added so far
+	 * @param i index of the node
+	 * @param bounds bounds of the branch in world coordinates
+	 */
+	void endBranch(int i, Rectangle2D bounds, boolean unbounded, boolean empty, int responderCount)
+	{
+		branchBounds[i].setRect(bounds);
+		this.unbounded[i] = unbounded;
+		this.empty[i] = empty;
+		ends[i] = count;
+		responderCounts[i] = responderCount;
+	}
+
+	/**
+	 * Ends capturing, letting go of the responders
+	 * of nodes the tick no longer has
+	 */
+	void end()
+	{
+		Arrays.fill(responders, count, responders.length, null);
+		Arrays.fill(frames, count, frames.length, null);
+	}
+
+	private void grow(int capacity)
+	{
+		int old = worlds.length;
+		responders = Arrays.copyOf(responders, capacity);
+		frames = Arrays.copyOf(frames, capacity);
+		worlds = Arrays.copyOf(worlds, capacity);
+		inverses = Arrays.copyOf(inverses, capacity);
+		invertible = Arrays.copyOf(invertible, capacity);
+		branchBounds = Arrays.copyOf(branchBounds, capacity);
+		unbounded = Arrays.copyOf(unbounded, capacity);
+		empty = Arrays.copyOf(empty, capacity);
+		ends = Arrays.copyOf(ends, capacity);
+		responderCounts = Arrays.copyOf(responderCounts, capacity);
+		responderBounds = Arrays.copyOf(responderBounds, capacity);
+		indices = Arrays.copyOf(indices, capacity);
+		for(int i = old; i < capacity; i++)
+		{
+			worlds[i] = new AffineTransform();
+			inverses[i] = new AffineTransform();
+			branchBounds[i] = new Rectangle2D.Double();
+			responderBounds[i] = new Rectangle2D.Double();
+		}
+	}
+
+	/**
+	 * Marks this snapshot as the latest of its simulation,
+	 * held by the simulation alone
+	 */
+	void publish()
+	{
+		references.set(1);
+	}
+
+	/**
+	 * Takes hold of this snapshot, unless it was let go of by everyone
+	 * and may be being filled again
+	 * @return whether this snapshot is now held
+	 */
+	boolean retain()
+	{
+		for(;;)
+		{
+			int r = references.get();
+			if(r == 0)
+				return false;
+			if(references.compareAndSet(r, r + 1))
+				return true;
+		}
+	}
+
+	/**
+	 * Lets go of this snapshot, once drawn and no longer needed
+	 * to tell what the next one changed
+	 */
+	public void release()
+	{
+		references.decrementAndGet();
+	}
+
+	/**
+	 * @return whether nobody holds this snapshot
+	 */
+	boolean isFree()
+	{
+		return references.get() == 0;
+	}
+
+	/**
+	 * @return the number of the tick this snapshot was captured at
+	 */
+	public long getTick()
+	{
+		return tick;
+	}
+
+	/**
+	 * @return the amount of nodes in the scene
+	 */
+	public int size()
+	{
+		return count;
+	}
+
+	/**
+	 * @return whether anything of the scene may lie within
+	 * an area in world coordinates
+	 */
+	public boolean intersects(double x, double y, double w, double h)
+	{
+		return count > 0 && intersects(0, x, y, w, h);
+	}
+
+	private boolean intersects(int i, double x, double y, double w, double h)
+	{
+		return unbounded[i] || (!empty[i] && branchBounds[i].intersects(x, y, w, h));
+	}
+
+	/**
+	 * Draws the frames of the responders that lie within an area.
+	 * Safe to call from several threads at once, each with a graphical
+	 * context and a visible rectangle of its own
+	 * @param g2d graphical context to draw on
+	 * @param base transform from world coordinates to the device
+	 * space of the graphical context
+	 * @param x left of the visible area in world coordinates
+	 * @param y bottom of the visible area in world coordinates
+	 * @param w width of the visible area
+	 * @param h height of the visible area
+	 * @param visible reused to tell frames their visible area
+	 * @param quality quality to draw at
+	 * @param metrics metrics to time the responders with, or null
+	 * @return the amount of responders culled
+	 */
+	public int draw(Graphics2D g2d, AffineTransform base, double x, double y, double w, double h,
+			Rectangle2D.Double visible, RenderQuality quality, FrameMetrics metrics)
+	{
+		int culled = 0;
+		int i = 0;
+		while(i < count)
+		{
+			if(!intersects(i, x, y, w, h))
+			{
+				culled += responderCounts[i];
+				i = ends[i];
+				continue;
+			}
+
+			ResponderFrame frame = frames[i];
+			if(frame != null)
+			{
+				Rectangle2D b = frame.getBounds();
+				boolean identity = worlds[i].isIdentity();
+				if(identity)
+					visible.setRect(x, y, w, h);
+				else if(invertible[i])
+					SceneNode.transformBounds(inverses[i], x, y, w, h, visible);
+				else
+					visible.setRect(0, 0, 0, 0);
+
+				if(b != null && !b.intersects(visible))
+					culled++;
+				else
+				{
+					g2d.setTransform(base);
+					if(!identity)
+						g2d.transform(worlds[i]);
+					if(metrics == null)
+						frame.draw(g2d, visible, quality);
+					else
+					{
+						long start = System.nanoTime();
+						frame.draw(g2d, visible, quality);
+						metrics.responderDrawn(indices[i], System.nanoTime() - start);
+					}
+				}
+			}
+			i++;
+		}
+		return culled;
+	}
+
+	/**
+	 * Counts the responders that draw() would leave out for an
+	 * area in world coordinates, without drawing
+	 * @return the amount of responders outside the area
+	 */
+	public int countCulled(double x, double y, double w, double h)
+	{
+		int culled = 0;
+		int i = 0;
+		while(i < count)
+		{
+			if(!intersects(i, x, y, w, h))
+			{
+				culled += responderCounts[i];
+				i = ends[i];
+				continue;
+			}
+			if(frames[i] != null && frames[i].getBounds() != null && !responderBounds[i].intersects(x, y, w, h))
+				culled++;
+			i++;
+		}
+		return culled;
+	}
+
+	/**
+	 * Reports what changed since a snapshot drawn before, each frame in
+	 * the coordinates of its node. The whole canvas is reported when the
+	 * scene is not made of the same nodes, or when a node moved, which
+	 * leaves behind what its responder drew
+	 * @param last snapshot drawn before, or null
+	 * @param damage damage of the frame
+	 * @param toCanvas transform from world coordinates to the canvas
+	 * @param scratch reused for the transform of every node
+	 */
+	void reportDamage(SceneSnapshot last, DamageTracker damage, AffineTransform toCanvas, AffineTransform scratch)
+	{
+		if(damage.isFull())
+			return;
+		if(last == null || last.count != count)
+		{
+			damage.invalidateAll();
+			return;
+		}
+		for(int i = 0; i < count; i++)
+		{
+			if(responders[i] != last.responders[i] || !worlds[i].equals(last.worlds[i]))
+			{
+				damage.invalidateAll();
+				return;
+			}
+		}
+
+		for(int i = 0; i < count; i++)
+		{
+			if(frames[i] == null)
+				continue;
+			scratch.setTransform(toCanvas);
+			scratch.concatenate(worlds[i]);
+			damage.setTransform(scratch);
+			frames[i].reportDamage(last.frames[i], damage);
+		}
+		damage.setTransform(toCanvas);
+	}
+}
@@ -0,0 +1,205 @@
+package vismid;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
+
+/**
+ * SequenceCache keeps the sequences of recently played MIDI files, along
+ * with their NoteTimeline, so playing a file again does not parse it again.
+ *
+ * Files are identified by their path, size and time of last modification,
+ * so a file changed on disk is parsed again. The cache is bounded by an
+ * estimate of the heap taken by its entries, and evicts the least recently
+ * used entries first once the bound is passed.
+ */
+public class SequenceCache
+{
+	//Rough heap taken by an event of a Sequence: the MidiEvent,
+	//its message and data array, and its slot in the track
+	private static final long BYTES_PER_EVENT = 96;
+
+	//Heap taken by a note of a NoteTimeline: its tick, time,
+	//key, velocity and whether it is on
+	private static final long BYTES_PER_NOTE = 19;
+
+	private long capacityBytes;
+	private long sizeBytes;
+	private long hits;
+	private long misses;
+
+	//Entries by key, in order of use
+	private LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * Creates a cache bounded by a quarter of the maximum heap
+	 */
+	public SequenceCache()
+	{
+		this(Runtime.getRuntime().maxMemory() / 4);
+	}
+
+	/**
+	 * Creates a cache
+	 * @param capacityBytes most heap the entries are estimated to take
+	 */
+	public SequenceCache(long capacityBytes)
+	{
+		this.capacityBytes = capacityBytes;
+	}
+
+	/**
+	 * Gets the entry of a file, making it the most recently used
+	 * @param file MIDI file
+	 * @return the entry, or null if the file is not cached or has
+	 * changed since it was
+	 */
+	public synchronized Entry get(File file)
+	{
+		Entry e = entries.get(key(file));
+		if(e == null)
+			misses++;
+		else
+			hits++;
+		return e;
+	}
+
+	/**
+	 * Adds the parsed contents of a file, evicting the least recently
+	 * used entries if needed. Entries larger than the whole cache are
+	 * returned but not kept
+	 * @param file MIDI file the sequence was read from
+	 * @param sequence sequence of the file
+	 * @param timeline index of the notes of the sequence
+	 * @return the new entry
+	 */
+	public synchronized Entry put(File file, Sequence sequence, NoteTimeline timeline)
+	{
+		Entry e = new Entry(sequence, timeline, estimateBytes(sequence, timeline));
+		if(e.bytes > capacityBytes)
+			return e;
+
+		Entry old = entries.put(key(file), e);
+		if(old != null)
+			sizeBytes -= old.bytes;
+		sizeBytes += e.bytes;
+
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while(sizeBytes > capacityBytes && it.hasNext())
+		{
+			sizeBytes -= it.next().getValue().bytes;
+			it.remove();
+		}
+		return e;
+	}
+
+	/**
+	 * Removes every entry
+	 */
+	public synchronized void clear()
+	{
+		entries.clear();
+		sizeBytes = 0;
+	}
+
+	/**
+	 * @return the amount of files cached
+	 */
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * @return the estimated heap taken by the entries
+	 */
+	public synchronized long getSizeBytes()
+	{
+		return sizeBytes;
+	}
+
+	/**
+	 * @return the most heap the entries may take
+	 */
+	public long getCapacityBytes()
+	{
+		return capacityBytes;
+	}
+
+	/**
+	 * @return the amount of lookups that found their file
+	 */
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	/**
+	 * @return the amount of lookups that did not find their file
+	 */
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	 * @return the key of a file in its current state
+	 */
+	private static String key(File file)
+	{
+		return file.getAbsolutePath() + '|' + file.length() + '|' + file.lastModified();
+	}
+
+	/**
+	 * Estimates the heap taken by a sequence and its timeline
+	 */
+	public static long estimateBytes(Sequence sequence, NoteTimeline timeline)
+	{
+		long events = 0;
+		for(Track t: sequence.getTracks())
+			events += t.size();
+		long notes = 0;
+		for(int channel = 0; channel < NoteTimeline.CHANNELS; channel++)
+			notes += timeline.size(channel);
+		return events * BYTES_PER_EVENT + notes * BYTES_PER_NOTE;
+	}
+
+	/**
+	 * A parsed file
+	 */
+	public static class Entry
+	{
+		private Sequence sequence;
+		private NoteTimeline timeline;
+		private long bytes;
+
+		Entry(Sequence sequence, NoteTimeline timeline, long bytes)
+		{
+			this.sequence = sequence;
+			this.timeline = timeline;
+			this.bytes = bytes;
+		}
+
+		public Sequence getSequence()
+		{
+			return sequence;
+		}
+
+		public NoteTimeline getTimeline()
+		{
+			return timeline;
+		}
+
+		/**
+		 * @return the estimated heap taken by the entry
+		 */
+		public long getBytes()
+		{
+			return bytes;
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package vismid;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+
+/**
+ * SequenceLoader parses MIDI files on a background thread, so the user
+ * interface keeps responding while a large file loads.
+ *
+ * Loaded files go into a SequenceCache, and files found there are not
+ * parsed again. A load reports its progress as the file is read, and can
+ * be cancelled through its Future. Files can also be prefetched, to be
+ * in the cache by the time they are played. Loads run one at a time, and
+ * a load cancels any prefetch of another file still running, so
+ * prefetching never delays what the user asked for.
+ */
+public class SequenceLoader implements AutoCloseable
+{
+	/**
+	 * Told about the progress and outcome of a load, on the thread
+	 * of the loader, or right away for files already cached
+	 */
+	public interface Listener
+	{
+		/**
+		 * @param fraction part of the file read so far, from 0 to 1
+		 */
+		public void progress(double fraction);
+
+		/**
+		 * @param entry the parsed file
+		 */
+		public void loaded(SequenceCache.Entry entry);
+
+		/**
+		 * @param e reason the file could not be loaded
+		 */
+		public void failed(Exception e);
+	}
+
+	//Least amount of bytes read between two progress reports
+	private static final long PROGRESS_STEP_BYTES = 64 * 1024;
+
+	private SequenceCache cache;
+	private ExecutorService executor;
+
+	//Last prefetch and its file, if any
+	private Future<?> prefetch;
+	private File prefetchFile;
+
+	/**
+	 * Creates a loader
+	 * @param cache cache to look files up in and add loaded files to
+	 */
+	public SequenceLoader(SequenceCache cache)
+	{
+		this.cache = cache;
+		this.executor = Executors.newSingleThreadExecutor(r ->
+		{
+			Thread t = new Thread(r, "vismid-loader");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Loads a file, from the cache if it is there
+	 * @param file MIDI file to load
+	 * @param listener told about the progress and outcome of the load
+	 * @return the load, which can be cancelled. A cancelled
+	 * load tells the listener neither success nor failure
+	 */
+	public synchronized Future<?> load(File file, Listener listener)
+	{
+		SequenceCache.Entry cached = cache.get(file);
+		if(cached != null)
+		{
+			listener.progress(1);
+			listener.loaded(cached);
+			return CompletableFuture.completedFuture(cached);
+		}
+
+		//A prefetch of the same file is left to finish, and the load
+		//then finds the file in the cache
+		if(prefetch != null && !file.equals(prefetchFile))
+			prefetch.cancel(true);
+		return executor.submit(() ->
+		{
+			try
+			{
+				SequenceCache.Entry e = cache.get(file);
+				if(e == null)
+					e = parse(file, listener);
+				if(!Thread.currentThread().isInterrupted())
+					listener.loaded(e);
+			}
+			catch(InterruptedIOException e)
+			{
+				//Cancelled
+			}
+			catch(Exception e)
+			{
+				listener.failed(e);
+			}
+		});
+	}
+
+	/**
+	 * Loads a file into the cache once nothing else is being loaded,
+	 * unless it is there already. Failures are ignored, to be
+	 * reported when the file is loaded for good
+	 * @param file MIDI file to load
+	 */
+	public synchronized void prefetch(File file)
+	{
+		prefetchFile = file;
+		prefetch = executor.submit(() ->
+		{
+			try
+			{
+				if(cache.get(file) == null)
+					parse(file, null);
+			}
+			catch(Exception e)
+			{
+				//Left for load() to report
+			}
+		});
+	}
+
+	/**
+	 * Parses a file and adds it to the cache
+	 */
+	private SequenceCache.Entry parse(File file, Listener listener) throws Exception
+	{
+		long length = Math.max(file.length(), 1);
+		Sequence sequence;
+		try(InputStream in = new BufferedInputStream(new ProgressInputStream(new FileInputStream(file), length, listener)))
+		{
+			sequence = MidiSystem.getSequence(in);
+		}
+		NoteTimeline timeline = new NoteTimeline(sequence);
+		if(listener != null)
+			listener.progress(1);
+		return cache.put(file, sequence, timeline);
+	}
+
+	/**
+	 * Stops the thread of the loader, cancelling what it was doing
+	 */
+	@Override
+	public void close()
+	{
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Stream reporting how much of a file has been read, which
+	 * stops reading once the thread of the load is interrupted
+	 */
+	private static class ProgressInputStream extends FilterInputStream
+	{
+		private long length;
+		private long read;
+		private long reported;
+		private Listener listener;
+
+		ProgressInputStream(InputStream in, long length, Listener listener)
+		{
+			super(in);
+			this.length = length;
+			this.listener = listener;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int b = super.read();
+			if(b >= 0)
+				advance(1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			int n = super.read(b, off, len);
+			if(n > 0)
+				advance(n);
+			return n;
+		}
+
+		private void advance(int n) throws InterruptedIOException
+		{
+			if(Thread.currentThread().isInterrupted())
+				throw new InterruptedIOException("Load cancelled");
+			read += n;
+			if(listener != null && read - reported >= PROGRESS_STEP_BYTES)
+			{
+				reported = read;
+				listener.progress(Math.min((double) read / length, 1));
+			}
+		}
+	}
+}
@@ -1,10 +1,10 @@
 package vismid;
 
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Arrays;
 
 import javax.sound.midi.MidiMessage;
 import javax.sound.midi.Receiver;
+import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.ShortMessage;
 
 /**
@@ -14,44 +14,238 @@ import javax.sound.midi.ShortMessage;
  * signals any registered MidiResponder objects.
  * 
  * Registered MidiResponder objects are organized according to channel
- * number.
+ * number. Channels are addressed as port * 16 + channel, so that more
+ * than the 16 channels of a single MIDI port can be mapped. The table of
+ * responders is indexed directly by that address and is copied whenever
+ * a responder is registered, so registering during playback is safe and
+ * dispatching never has to lock or allocate.
+ * 
+ * Responders can also subscribe to a range of notes of a channel. Those
+ * are kept in a second table indexed by channel address * 128 + note, so
+ * a note reaches exactly its subscribers with a single lookup, however
+ * many note responders there are.
+ * 
+ * Messages arrive on the transmitter's thread, while responders are
+ * drawn on the rendering thread. To keep the two apart, received notes
+ * are only queued by send(), and are handed to the responders when the
+ * rendering thread calls dispatchPending() at the start of a frame.
+ * 
+ * Every port has a queue of its own, written by the thread of the single
+ * transmitter feeding that port, so several devices can send at once
+ * without locking and the notes of each port keep their order. The
+ * Signaler itself receives port 0, and receiverForPort gives a Receiver
+ * for any other port.
+ * 
+ * Every queued note carries the System.nanoTime at which it happened,
+ * derived from the time stamp given to send(), so that the time it
+ * takes for a note to be shown can be measured. A PresentationScheduler
+ * uses those times to hold notes back until the frame closest to when
+ * they are heard, or to take the notes of a file from its timeline.
+ * 
+ * By default the notes of a frame are coalesced: the notes of every
+ * channel are gathered into a ChannelSignal, handed to each responder
+ * of the channel once per frame, so the work of the responders stays
+ * bounded however many notes arrive. What a port does with notes that
+ * arrive while its queue is full is set by its OverflowPolicy.
+ * 
+ * Every message received can also be appended to a log by an
+ * EventRecorder, and sent again later by an EventReplayer.
  * @author Miguel Guerrero
  */
 public class Signaler implements Receiver
 {
-	private HashMap<Integer, LinkedList<MidiResponder>> observers;
+	//Default amount of note events that can wait for the next frame
+	public static final int DEFAULT_QUEUE_CAPACITY = 8192;
+	
+	//Amount of channels in a single MIDI port
+	public static final int CHANNELS_PER_PORT = 16;
+	
+	//Amount of notes of a channel
+	public static final int NOTES_PER_CHANNEL = 128;
+	
+	//Responders indexed by channel address. A null entry means
+	//no responder is mapped to the channel. Replaced as a whole,
+	//never modified in place
+	private volatile MidiResponder[][] observers;
+	
+	//Responders subscribed to single notes, indexed by channel
+	//address * 128 + note. Replaced as a whole like observers
+	private volatile MidiResponder[][] noteObservers;
+	
+	//Pending notes of every port, indexed by port. Replaced as
+	//a whole when a port is added
+	private volatile Port[] ports;
+	private int queueCapacity;
+	private NoteEventQueue.OverflowPolicy overflowPolicy;
+	
+	//Whether notes are coalesced into a signal per channel and frame
+	private volatile boolean coalescing = true;
+	
+	//Signals of the current frame, indexed by channel address, and the
+	//addresses of those not empty. Only used by the rendering thread
+	private ChannelSignal[] signals = new ChannelSignal[0];
+	private int[] touched = new int[0];
+	private int touchedCount;
+	
+	//Reused for every dispatched note so responders still
+	//receive a ShortMessage without one being created per event
+	private ShortMessage dispatched;
+	private NoteEventQueue.NoteEventHandler dispatcher = this::dispatch;
+	
+	//Decides at which frame notes are dispatched
+	private PresentationScheduler scheduler;
+	private NoteEventQueue.NoteEventHandler holder;
+	private NoteEventQueue.NoteEventHandler discarder = (channel, com, note, velocity, eventNanos) -> {};
+	
+	//Metrics told about every dispatched note, if any
+	private FrameMetrics metrics;
+	
+	//Note events dispatched so far, written by the rendering thread
+	private volatile long dispatchedEvents;
+	
+	//Log every received message is appended to, if any
+	private volatile EventRecorder recorder;
+	
 	public Signaler()
 	{
-		observers = new HashMap<>();
+		this(DEFAULT_QUEUE_CAPACITY);
+	}
+	
+	/**
+	 * Creates a Signaler that can hold the given amount of
+	 * note events of each port between two frames
+	 * @param queueCapacity amount of pending note events per port
+	 */
+	public Signaler(int queueCapacity)
+	{
+		this(queueCapacity, NoteEventQueue.OverflowPolicy.DROP_NEWEST);
+	}
+	
+	/**
+	 * Creates a Signaler that can hold the given amount of
+	 * note events of each port between two frames
+	 * @param queueCapacity amount of pending note events per port
+	 * @param overflowPolicy what ports do with notes that
+	 * arrive while their queue is full
+	 */
+	public Signaler(int queueCapacity, NoteEventQueue.OverflowPolicy overflowPolicy)
+	{
+		this.queueCapacity = queueCapacity;
+		this.overflowPolicy = overflowPolicy;
+		scheduler = new PresentationScheduler(PresentationScheduler.DEFAULT_MAX_HELD, overflowPolicy, dispatcher);
+		holder = scheduler::hold;
+		observers = new MidiResponder[CHANNELS_PER_PORT][];
+		noteObservers = new MidiResponder[CHANNELS_PER_PORT * NOTES_PER_CHANNEL][];
+		ports = new Port[] { new Port(0) };
+		dispatched = new ShortMessage();
+	}
+	
+	/**
+	 * Gets the Receiver of a port. Messages it receives are addressed
+	 * to the channels port * 16 + channel. Each port must be fed by
+	 * a single transmitter
+	 * @param port port number, 0 being the port of this Signaler
+	 * @return the receiver of the port
+	 */
+	public Receiver receiverForPort(int port)
+	{
+		return port(port);
+	}
+	
+	/**
+	 * Gets a port, creating it and any port before it if needed
+	 */
+	private Port port(int port)
+	{
+		if(port < 0)
+			throw new IllegalArgumentException("Invalid port: " + port);
+		Port[] p = ports;
+		if(port < p.length)
+			return p[port];
+		
+		synchronized(this)
+		{
+			p = ports;
+			if(port >= p.length)
+			{
+				Port[] grown = Arrays.copyOf(p, port + 1);
+				for(int i = p.length; i < grown.length; i++)
+					grown[i] = new Port(i);
+				ports = p = grown;
+			}
+			return p[port];
+		}
 	}
 
 	/**
 	 * Maps a MidiResponder to a specific channel for this Signaler.
 	 * @param m midi responder
-	 * @param channel channel number
+	 * @param channel channel number, or port * 16 + channel for
+	 * ports other than the first one
+	 */
+	public synchronized void registerMidiResponder(MidiResponder m, int channel)
+	{
+		if(channel < 0)
+			throw new IllegalArgumentException("Invalid channel: " + channel);
+		
+		//Copy the table so that a dispatch in progress keeps
+		//seeing a consistent set of responders
+		MidiResponder[][] table = observers;
+		table = Arrays.copyOf(table, Math.max(table.length, 
+				(channel / CHANNELS_PER_PORT + 1) * CHANNELS_PER_PORT));
+		
+		table[channel] = append(table[channel], m);
+		observers = table;
+	}
+	
+	/**
+	 * Maps a MidiResponder to a range of notes of a channel. The
+	 * responder is only signalled of notes within the range
+	 * @param m midi responder
+	 * @param channel channel number, or port * 16 + channel for
+	 * ports other than the first one
+	 * @param lowNote lowest note of the range
+	 * @param highNote highest note of the range, included
 	 */
-	public void registerMidiResponder(MidiResponder m, int channel)
+	public synchronized void registerMidiResponder(MidiResponder m, int channel, int lowNote, int highNote)
 	{
-		if(!channelSet(channel))
-			setupNewChannel(channel);
-		observers.get(channel).add(m);
+		if(channel < 0)
+			throw new IllegalArgumentException("Invalid channel: " + channel);
+		if(lowNote < 0 || highNote >= NOTES_PER_CHANNEL || lowNote > highNote)
+			throw new IllegalArgumentException("Invalid note range: " + lowNote + " to " + highNote);
+		
+		MidiResponder[][] table = noteObservers;
+		table = Arrays.copyOf(table, Math.max(table.length, 
+				(channel / CHANNELS_PER_PORT + 1) * CHANNELS_PER_PORT * NOTES_PER_CHANNEL));
+		for(int note = lowNote; note <= highNote; note++)
+			table[channel * NOTES_PER_CHANNEL + note] = append(table[channel * NOTES_PER_CHANNEL + note], m);
+		noteObservers = table;
 	}
 	
 	/**
-	 * Determines whether a channel number has been
-	 * set a key in the hashmap
+	 * @return a copy of a list of responders with one more at its end
 	 */
-	private boolean channelSet(int channel)
+	private static MidiResponder[] append(MidiResponder[] mapped, MidiResponder m)
 	{
-		return this.observers.containsKey(channel);
+		if(mapped == null)
+			return new MidiResponder[] { m };
+		mapped = Arrays.copyOf(mapped, mapped.length + 1);
+		mapped[mapped.length - 1] = m;
+		return mapped;
 	}
 	
 	/**
-	 * Sets up a new LinkedList for a particular channel
+	 * Determines whether any responder is mapped to a channel,
+	 * or subscribed to a note of the channel
 	 */
-	private void setupNewChannel(int channel)
+	private boolean channelSet(int channel, int note)
 	{
-		this.observers.put(channel, new LinkedList<>());
+		MidiResponder[][] table = observers;
+		if(channel < table.length && table[channel] != null)
+			return true;
+		table = noteObservers;
+		int index = channel * NOTES_PER_CHANNEL + note;
+		return index < table.length && table[index] != null;
 	}
 	
 	/**
@@ -61,62 +255,324 @@ public class Signaler implements Receiver
 	public void close(){}
 
 	/**
-	 * Receives a MidiMessage from the Sequencer's transmitter.
-	 * These messages are then processed to determine whether
-	 * responders to off-on notes should be notified.
+	 * Receives a MidiMessage from the Sequencer's transmitter, on port 0.
+	 * Note on and note off messages are queued to be passed to the
+	 * responders on the next frame. Every other message is ignored.
 	 */
 	@Override
 	public void send(MidiMessage message, long timeStamp)
 	{
-		//First check if the message is a ShortMessage. A 
-		//ShortMessage represents the content of songs
-	    if(message instanceof ShortMessage)
-	    {
-	    	//Cast to access specific methods of the ShortMessage
-	        ShortMessage sm = (ShortMessage) message;
-	        
-	        //Get the channel that produced this message
-	        int channel = sm.getChannel();
-	        
-	        //If this channel is not a key in the observer
-	        //map, then there are no responses mapped to
-	        //the channel and the message is meaningless
-	        if(!this.observers.containsKey(channel)) 
-	        	return;
-	        
-	        //These attributes are necessary to determine 
-	        //whether a signal if off or on
-            int velocity = sm.getData2();
-            int com = sm.getCommand();
-            
-            //MIDI specifications state that a message be on,
-            //but still be classified as off if  velocity 
-            //is 0
-            if(com == ShortMessage.NOTE_ON && velocity != 0)
-            {
-            	//Signal each responder for the message's channel
-            	//a note on message
-            	for(MidiResponder mr: observers.get(channel))
-            	{
-            		mr.signalOn(sm);
-            	}
-            }
-            
-            //Check if the message is note-off
-	        else if (com == ShortMessage.NOTE_OFF 
-	        		|| 
-	        		(com == ShortMessage.NOTE_ON && velocity == 0))
-	        {
-	        	
-	        	//Signal each responder for this channel that the
-	        	//message is off
-	          	for(MidiResponder mr: observers.get(channel))
-            	{
-            		mr.signalOff(sm);
-            	}
-	        } 
-            
-            //Do nothing otherwise
-	    }
+		ports[0].send(message, timeStamp);
+	}
+	
+	/**
+	 * Sets the metrics to tell about every dispatched note, so that
+	 * the time until the note is shown can be measured
+	 * @param metrics metrics of the frames showing the notes
+	 */
+	public void setMetrics(FrameMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Sets the log to append every message received on any port to,
+	 * before it is filtered, so that an EventReplayer can send the
+	 * same messages again. Recording may be started and stopped
+	 * while messages are received
+	 * @param recorder recorder of the messages, or null to stop recording
+	 */
+	public void setRecorder(EventRecorder recorder)
+	{
+		this.recorder = recorder;
+	}
+	
+	/**
+	 * @return the log received messages are appended to, or null
+	 */
+	public EventRecorder getRecorder()
+	{
+		return recorder;
+	}
+	
+	/**
+	 * @return the scheduler deciding at which frame notes are dispatched
+	 */
+	public PresentationScheduler getScheduler()
+	{
+		return scheduler;
+	}
+	
+	/**
+	 * Sets whether the notes of a frame are coalesced into a single
+	 * ChannelSignal per channel, or signalled to the responders
+	 * one by one
+	 * @param coalescing true to coalesce notes, the default
+	 */
+	public void setCoalescing(boolean coalescing)
+	{
+		this.coalescing = coalescing;
+	}
+	
+	/**
+	 * @return whether the notes of a frame are coalesced
+	 */
+	public boolean isCoalescing()
+	{
+		return coalescing;
+	}
+	
+	/**
+	 * Signals the registered responders of every note due by the
+	 * frame about to be drawn. Must be called from the thread that
+	 * runs the simulation of the responders, once per tick before
+	 * they are updated.
+	 * @return the amount of note events dispatched
+	 */
+	public int dispatchPending()
+	{
+		//A note is due when this frame is the closest to its time
+		long now = System.nanoTime();
+		long interval = metrics == null ? 0 : metrics.getTargetInterval();
+		long horizon = now + interval / 2;
+		
+		//Ports are drained one after the other, which keeps
+		//the notes of every port in order. The notes of the
+		//Sequencer are left out while read from its timeline
+		int count = 0;
+		boolean following = scheduler.isFollowing();
+		for(Port p: ports)
+		{
+			if(following && p.base == 0)
+				p.queue.drain(discarder);
+			else if(scheduler.isHolding())
+				p.queue.drain(holder);
+			else
+				count += p.queue.drain(dispatcher);
+		}
+		if(scheduler.size() > 0)
+			count += scheduler.release(horizon, dispatcher);
+		if(following)
+			count += scheduler.releaseTimeline(now, horizon, dispatcher);
+		dispatchedEvents += count;
+		
+		//Hand every channel its notes at once, and the
+		//subscribers of every note the outcome of their note
+		if(touchedCount > 0)
+		{
+			MidiResponder[][] table = observers;
+			MidiResponder[][] noteTable = noteObservers;
+			for(int i = 0; i < touchedCount; i++)
+			{
+				int channel = touched[i];
+				ChannelSignal signal = signals[channel];
+				MidiResponder[] mapped = channel < table.length ? table[channel] : null;
+				for(int r = 0; mapped != null && r < mapped.length; r++)
+					mapped[r].signal(signal);
+				
+				int first = channel * NOTES_PER_CHANNEL;
+				if(first < noteTable.length)
+				{
+					for(int note = signal.nextNote(0); note >= 0; note = signal.nextNote(note + 1))
+					{
+						MidiResponder[] subscribed = noteTable[first + note];
+						for(int r = 0; subscribed != null && r < subscribed.length; r++)
+							signal.replayNote(subscribed[r], note);
+					}
+				}
+				signal.clear();
+			}
+			touchedCount = 0;
+		}
+		return count;
+	}
+	
+	/**
+	 * Adds a note to the signal of its channel for this frame
+	 */
+	private void coalesce(int channel, int note, int velocity, boolean on)
+	{
+		if(channel >= signals.length)
+		{
+			int length = Math.max(channel + 1, signals.length * 2);
+			signals = Arrays.copyOf(signals, length);
+			touched = Arrays.copyOf(touched, length);
+		}
+		ChannelSignal signal = signals[channel];
+		if(signal == null)
+			signal = signals[channel] = new ChannelSignal(channel);
+		if(signal.isEmpty())
+			touched[touchedCount++] = channel;
+		signal.add(note, velocity, on);
+	}
+	
+	/**
+	 * @return the amount of note events dispatched so far
+	 */
+	public long dispatchedEvents()
+	{
+		return dispatchedEvents;
+	}
+	
+	/**
+	 * @return the amount of note events lost because too
+	 * many arrived between two frames, or too many were
+	 * held back by the scheduler
+	 */
+	public long droppedEvents()
+	{
+		long dropped = scheduler.dropped();
+		for(Port p: ports)
+			dropped += p.queue.dropped();
+		return dropped;
+	}
+	
+	/**
+	 * Processes a single queued note event to determine whether
+	 * responders to off-on notes should be notified.
+	 */
+	private void dispatch(int channel, int com, int note, int velocity, long eventNanos)
+	{
+        //If neither this channel nor this note have an
+        //entry in the observer tables, then there are no
+        //responses mapped and the message is meaningless
+        MidiResponder[][] table = observers;
+        MidiResponder[] mapped = channel < table.length ? table[channel] : null;
+        table = noteObservers;
+        int index = channel * NOTES_PER_CHANNEL + note;
+        MidiResponder[] subscribed = index < table.length ? table[index] : null;
+        if(mapped == null && subscribed == null) 
+        	return;
+        
+        if(metrics != null)
+        	metrics.eventDispatched(eventNanos, eventNanos + scheduler.getOffset());
+        
+        //MIDI specifications state that a message be on,
+        //but still be classified as off if  velocity 
+        //is 0
+        boolean on = com == ShortMessage.NOTE_ON && velocity != 0;
+        if(coalescing)
+        {
+        	coalesce(channel, note, velocity, on);
+        	return;
+        }
+        
+        try
+        {
+        	//Responders see the channel within its own port
+        	dispatched.setMessage(com, channel % CHANNELS_PER_PORT, note, velocity);
+        }
+        
+        catch(InvalidMidiDataException e)
+        {
+        	//Values came from a valid ShortMessage, so
+        	//this cannot happen
+        	return;
+        }
+        
+        if(mapped != null)
+        	signalAll(mapped, on);
+        if(subscribed != null)
+        	signalAll(subscribed, on);
+	}
+	
+	/**
+	 * Signals responders of the note being dispatched
+	 */
+	private void signalAll(MidiResponder[] mapped, boolean on)
+	{
+        if(on)
+        {
+        	//Signal each responder for the message's channel
+        	//a note on message
+        	for(int i = 0; i < mapped.length; i++)
+        	{
+        		mapped[i].signalOn(dispatched);
+        	}
+        }
+        
+        //Otherwise the note is off
+        else
+        {
+        	//Signal each responder for this channel that the
+        	//message is off
+          	for(int i = 0; i < mapped.length; i++)
+        	{
+        		mapped[i].signalOff(dispatched);
+        	}
+        } 
+	}
+	
+	/**
+	 * Receiver of a single port, with its own queue of pending notes
+	 */
+	private class Port implements Receiver
+	{
+		//First channel address of the port
+		private int base;
+		private NoteEventQueue queue;
+		
+		//Smallest difference seen between System.nanoTime and the
+		//time stamps of received messages, which maps time stamps
+		//onto System.nanoTime. Only used by the transmitter's thread
+		private long timeStampOffset = Long.MAX_VALUE;
+		
+		Port(int port)
+		{
+			this.base = port * CHANNELS_PER_PORT;
+			this.queue = new NoteEventQueue(queueCapacity, overflowPolicy);
+		}
+		
+		@Override
+		public void send(MidiMessage message, long timeStamp)
+		{
+			EventRecorder r = recorder;
+			if(r != null)
+				r.record(base / CHANNELS_PER_PORT, message);
+			
+			//First check if the message is a ShortMessage. A 
+			//ShortMessage represents the content of songs
+		    if(message instanceof ShortMessage)
+		    {
+		    	//Cast to access specific methods of the ShortMessage
+		        ShortMessage sm = (ShortMessage) message;
+		        int com = sm.getCommand();
+		        
+		        //Only notes are of interest to the responders
+		        if(com != ShortMessage.NOTE_ON && com != ShortMessage.NOTE_OFF)
+		        	return;
+		        
+		        //There is no need to queue notes nobody listens to
+		        int channel = base + sm.getChannel();
+		        if(channelSet(channel, sm.getData1()))
+		        	queue.offer(channel, com, sm.getData1(), sm.getData2(), toNanoTime(timeStamp));
+		    }
+		}
+		
+		/**
+		 * Converts the time stamp of a received message to the
+		 * System.nanoTime at which it happened
+		 * @param timeStamp time stamp in microseconds, or -1 if
+		 * the transmitter does not provide one
+		 */
+		private long toNanoTime(long timeStamp)
+		{
+			long now = System.nanoTime();
+			if(timeStamp < 0)
+				return now;
+			
+			//The message that arrived the soonest after its time stamp
+			//gives the best estimate of where the transmitter's clock is
+			long stamped = timeStamp * 1000;
+			if(now - stamped < timeStampOffset)
+				timeStampOffset = now - stamped;
+			return stamped + timeStampOffset;
+		}
+		
+		/**
+		 * Ports are closed with the devices feeding them
+		 */
+		@Override
+		public void close(){}
 	}
 }
@@ -0,0 +1,203 @@
+package vismid;
+
+import java.awt.geom.AffineTransform;
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulation runs the responders of a scene once per tick, apart from
+ * any view of them, and publishes every tick as a SceneSnapshot that
+ * any amount of canvases and image sinks can draw at once, each at its
+ * own resolution and pace.
+ *
+ * A tick delivers the notes the Signaler received, steps the animation
+ * of the responders, interpolates them, and captures their frames into
+ * a snapshot from a pool, which then replaces the latest one. Publishing
+ * never waits on the views: a view takes hold of the latest snapshot for
+ * as long as it draws it, and the simulation fills whichever snapshots
+ * nobody holds, growing the pool when there are none.
+ *
+ * Ticks are run either by the single canvas created with the Signaler,
+ * before each of its frames, or by a thread of the simulation's own at
+ * a fixed rate, when several views share it. Only one thread may run
+ * ticks.
+ */
+public class Simulation implements Runnable
+{
+	private static final AffineTransform IDENTITY = new AffineTransform();
+
+	private Signaler signaler;
+	private SceneNode scene = new SceneNode();
+
+	//Responders of the scene in drawing order, gathered every tick
+	private ArrayList<MidiResponder> responders = new ArrayList<>();
+
+	//Steps the animation of the responders independently of
+	//how often ticks are run
+	private SimulationClock clock = new SimulationClock();
+
+	//Snapshots filled so far, and the latest one published
+	private ArrayList<SceneSnapshot> pool = new ArrayList<>();
+	private volatile SceneSnapshot latest;
+	private long ticks;
+
+	//Thread running ticks at a fixed rate, when started
+	private Thread thread;
+	private volatile boolean running;
+	private long tickNanos;
+
+	/**
+	 * Creates a simulation of the responders signaled by a Signaler.
+	 * Until the first tick, an empty scene is published
+	 * @param signaler source of the notes to simulate
+	 */
+	public Simulation(Signaler signaler)
+	{
+		this.signaler = signaler;
+		latest = new SceneSnapshot();
+		latest.publish();
+		pool.add(latest);
+	}
+
+	/**
+	 * Runs a tick: delivers the notes received since the last one, runs
+	 * every simulation step due by the given time, and publishes the
+	 * responders as they are between the last two steps
+	 * @param time time of the tick in nanoseconds. Only the differences
+	 * between the times of successive ticks matter
+	 */
+	public void advance(long time)
+	{
+		//Deliver the notes received since the last tick
+		//before anything is simulated
+		signaler.dispatchPending();
+		responders.clear();
+		scene.collect(responders);
+
+		int steps = clock.advance(time);
+		long stepNanos = clock.getStepNanos();
+		for(int s = 0; s < steps; s++)
+			for(int i = 0; i < responders.size(); i++)
+				responders.get(i).update(stepNanos);
+
+		double alpha = clock.getAlpha();
+		for(int i = 0; i < responders.size(); i++)
+			responders.get(i).interpolate(alpha);
+		scene.updateBounds(IDENTITY);
+
+		SceneSnapshot snapshot = freeSnapshot();
+		snapshot.begin(++ticks);
+		scene.capture(snapshot);
+		snapshot.end();
+
+		//Views holding the last snapshot keep it until they let go
+		SceneSnapshot last = latest;
+		snapshot.publish();
+		latest = snapshot;
+		last.release();
+	}
+
+	/**
+	 * @return a snapshot held by nobody, from the pool or new
+	 */
+	private SceneSnapshot freeSnapshot()
+	{
+		for(int i = 0; i < pool.size(); i++)
+		{
+			SceneSnapshot s = pool.get(i);
+			if(s != latest && s.isFree())
+				return s;
+		}
+		SceneSnapshot s = new SceneSnapshot();
+		pool.add(s);
+		return s;
+	}
+
+	/**
+	 * Takes hold of the latest snapshot. Never blocks the simulation,
+	 * and may be called from any thread
+	 * @return the latest snapshot, to be released once drawn
+	 */
+	public SceneSnapshot acquire()
+	{
+		for(;;)
+		{
+			//A snapshot let go of by everyone since it was read
+			//is no longer the latest, so the next read is newer
+			SceneSnapshot s = latest;
+			if(s.retain())
+				return s;
+		}
+	}
+
+	/**
+	 * Starts running ticks on a new thread
+	 * @param ticksPerSecond amount of ticks to run per second
+	 */
+	public void start(int ticksPerSecond)
+	{
+		if(ticksPerSecond <= 0)
+			throw new IllegalArgumentException("Ticks per second must be positive: " + ticksPerSecond);
+		tickNanos = 1_000_000_000L / ticksPerSecond;
+		running = true;
+		thread = new Thread(this, "vismid-simulation");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops running ticks and waits for the current one to finish
+	 */
+	public void stop() throws InterruptedException
+	{
+		running = false;
+		thread.join();
+	}
+
+	/**
+	 * Runs ticks until stopped, sleeping between ticks
+	 * so that each starts on schedule
+	 */
+	@Override
+	public void run()
+	{
+		long next = System.nanoTime();
+		while(running)
+		{
+			advance(System.nanoTime());
+			next += tickNanos;
+			long wait = next - System.nanoTime();
+
+			//Start a new schedule rather than catching up
+			if(wait < -tickNanos)
+				next = System.nanoTime();
+			else if(wait > 0)
+				LockSupport.parkNanos(wait);
+		}
+	}
+
+	/**
+	 * @return whether ticks are run by a thread of the simulation
+	 */
+	public boolean isRunning()
+	{
+		return running;
+	}
+
+	/**
+	 * @return the root of the scene. Nodes may be added, removed
+	 * and moved between ticks
+	 */
+	public SceneNode getScene()
+	{
+		return scene;
+	}
+
+	/**
+	 * @return the Signaler whose notes are simulated
+	 */
+	public Signaler getSignaler()
+	{
+		return signaler;
+	}
+}
@@ -0,0 +1,91 @@
+package vismid;
+
+/**
+ * SimulationClock turns the irregular times at which frames are rendered
+ * into a sequence of fixed simulation steps.
+ *
+ * Every frame, the time since the previous frame is added to an
+ * accumulator, and one step is taken for every whole step interval it
+ * holds. Whatever is left over is the fraction of a step that the frame
+ * lies past the last one, which the renderer uses to interpolate between
+ * the last two simulated states. Animations therefore progress at the
+ * same speed whether frames are rendered at 30 or 144 per second, or
+ * skipped altogether.
+ */
+public class SimulationClock
+{
+	//Length of a step. 20 ms was the frame interval animations
+	//were originally tuned for
+	public static final long DEFAULT_STEP_NANOS = 20_000_000L;
+
+	//Most steps taken in a single frame. Time beyond that is dropped,
+	//so a long stall does not turn into a burst of catching up
+	private static final int MAX_STEPS_PER_FRAME = 10;
+
+	private long stepNanos;
+	private long lastTime;
+	private boolean started;
+	private long accumulator;
+
+	/**
+	 * Creates a clock with the default step length
+	 */
+	public SimulationClock()
+	{
+		this(DEFAULT_STEP_NANOS);
+	}
+
+	/**
+	 * Creates a clock
+	 * @param stepNanos length of a simulation step in nanoseconds
+	 */
+	public SimulationClock(long stepNanos)
+	{
+		if(stepNanos <= 0)
+			throw new IllegalArgumentException("Step must be positive: " + stepNanos);
+		this.stepNanos = stepNanos;
+	}
+
+	/**
+	 * Moves the clock to the time of a new frame
+	 * @param now time of the frame in nanoseconds, on any clock that
+	 * only moves forward
+	 * @return the amount of steps to simulate before the frame is drawn
+	 */
+	public int advance(long now)
+	{
+		//The first frame shows the initial state
+		if(!started)
+		{
+			started = true;
+			lastTime = now;
+			return 0;
+		}
+
+		accumulator += Math.max(now - lastTime, 0);
+		lastTime = now;
+
+		long steps = accumulator / stepNanos;
+		accumulator -= steps * stepNanos;
+		if(steps > MAX_STEPS_PER_FRAME)
+			steps = MAX_STEPS_PER_FRAME;
+		return (int) steps;
+	}
+
+	/**
+	 * @return how far the current frame lies between the last two
+	 * steps, from 0 (the previous step) to 1 (the last step)
+	 */
+	public double getAlpha()
+	{
+		return (double) accumulator / stepNanos;
+	}
+
+	/**
+	 * @return the length of a step in nanoseconds
+	 */
+	public long getStepNanos()
+	{
+		return stepNanos;
+	}
+}
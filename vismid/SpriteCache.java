@@ -0,0 +1,194 @@
+package vismid;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * SpriteCache holds pre-rendered images of pulser circles, so that
+ * drawing a pulser is a single image copy instead of rasterizing an
+ * antialiased shape every frame.
+ *
+ * A sprite is identified by its color, the base size of the pulser and
+ * its scale step, a pulser being drawn at (1 + step) times its base size.
+ * The least recently used sprites are evicted once the images take more
+ * than the byte budget of the cache.
+ *
+ * The budget is a hard cap on the images the cache holds. A sprite
+ * larger than the whole budget is rendered but not cached.
+ *
+ * Evicting a sprite only drops the reference of the cache. Callers keep
+ * their own references to the sprites they draw and fetch them again only
+ * when the generation of the cache changes, which it does when the cache
+ * is cleared. So sprites in use are not rendered again when the budget is
+ * below the images in use, while the cache itself stays within it.
+ */
+public class SpriteCache
+{
+	//Budget of the shared cache unless one is configured
+	public static final long DEFAULT_BUDGET_BYTES = 32L * 1024 * 1024;
+
+	private static SpriteCache shared = new SpriteCache(
+			Long.getLong("vismid.spriteCacheBytes", DEFAULT_BUDGET_BYTES));
+
+	private long budgetBytes;
+	private long usedBytes;
+
+	//Count of the times the cache was cleared
+	private volatile int generation;
+
+	//Sprites in least to most recently used order
+	private LinkedHashMap<Long, BufferedImage> sprites = new LinkedHashMap<>(64, 0.75f, true);
+
+	/**
+	 * Creates a cache
+	 * @param budgetBytes most memory the cached images may take
+	 */
+	public SpriteCache(long budgetBytes)
+	{
+		if(budgetBytes <= 0)
+			throw new IllegalArgumentException("Budget must be positive: " + budgetBytes);
+		this.budgetBytes = budgetBytes;
+	}
+
+	/**
+	 * @return the cache shared by every pulser. Its budget is read from
+	 * the vismid.spriteCacheBytes system property
+	 */
+	public static SpriteCache getShared()
+	{
+		return shared;
+	}
+
+	/**
+	 * Gets the image of a pulser circle, rendering it if it is not cached.
+	 * The circle fills the image
+	 * @param color color of the circle
+	 * @param baseSize diameter of the circle at rest in pixels
+	 * @param step scale step, the diameter being baseSize * (1 + step)
+	 * @return image of the circle
+	 */
+	public synchronized BufferedImage getSprite(Color color, int baseSize, int step)
+	{
+		Long key = key(color, baseSize, step);
+		BufferedImage sprite = sprites.get(key);
+		if(sprite == null)
+		{
+			sprite = render(color, baseSize * (1 + step));
+			if(bytesOf(sprite) <= budgetBytes)
+			{
+				sprites.put(key, sprite);
+				usedBytes += bytesOf(sprite);
+				evict();
+			}
+		}
+		return sprite;
+	}
+
+	/**
+	 * @return a number that changes every time the cache is cleared
+	 */
+	public int getGeneration()
+	{
+		return generation;
+	}
+
+	/**
+	 * Changes the most memory the cached images may take, evicting
+	 * sprites if they no longer fit
+	 */
+	public synchronized void setBudgetBytes(long budgetBytes)
+	{
+		if(budgetBytes <= 0)
+			throw new IllegalArgumentException("Budget must be positive: " + budgetBytes);
+		this.budgetBytes = budgetBytes;
+		evict();
+	}
+
+	/**
+	 * @return the memory currently taken by the cached images
+	 */
+	public synchronized long getUsedBytes()
+	{
+		return usedBytes;
+	}
+
+	/**
+	 * Removes the least recently used sprites until the cache fits
+	 * its budget
+	 */
+	private void evict()
+	{
+		if(usedBytes <= budgetBytes)
+			return;
+		Iterator<Map.Entry<Long, BufferedImage>> lru = sprites.entrySet().iterator();
+		while(usedBytes > budgetBytes)
+		{
+			usedBytes -= bytesOf(lru.next().getValue());
+			lru.remove();
+		}
+	}
+
+	/**
+	 * Renders an antialiased circle filling a new image
+	 */
+	private static BufferedImage render(Color color, int diameter)
+	{
+		int size = Math.max(diameter, 1);
+		BufferedImage image;
+		if(GraphicsEnvironment.isHeadless())
+			image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB_PRE);
+		else
+		{
+			//An image in the display's format can be copied
+			//onto the screen without conversion
+			image = GraphicsEnvironment.getLocalGraphicsEnvironment()
+					.getDefaultScreenDevice()
+					.getDefaultConfiguration()
+					.createCompatibleImage(size, size, Transparency.TRANSLUCENT);
+		}
+
+		Graphics2D g2d = image.createGraphics();
+		g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g2d.setColor(color);
+		g2d.fill(new Ellipse2D.Double(0, 0, size, size));
+		g2d.dispose();
+		return image;
+	}
+
+	private static long key(Color color, int baseSize, int step)
+	{
+		return (long) color.getRGB() << 32 | (long) (baseSize & 0xFFFFFF) << 8 | (step & 0xFF);
+	}
+
+	private static long bytesOf(BufferedImage image)
+	{
+		//Every supported format uses 4 bytes per pixel
+		return (long) image.getWidth() * image.getHeight() * 4;
+	}
+
+	/**
+	 * Removes every sprite
+	 */
+	public synchronized void clear()
+	{
+		sprites.clear();
+		usedBytes = 0;
+		generation++;
+	}
+
+	/**
+	 * @return the amount of cached sprites
+	 */
+	public synchronized int size()
+	{
+		return sprites.size();
+	}
+}
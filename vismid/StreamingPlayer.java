@@ -0,0 +1,154 @@
+package vismid;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+
+/**
+ * StreamingPlayer plays a MappedMidiFile in real time, in place of the
+ * Sequencer, for files too large to be loaded as a Sequence.
+ *
+ * Events are read from the mapped file only as they become due, on a
+ * thread of the player, and are sent to the Signaler and to a synthesizer
+ * through a single reused ShortMessage. Both read the message right away,
+ * so playing neither loads the file into the heap nor allocates per event.
+ */
+public class StreamingPlayer
+{
+	//Longest the player sleeps before checking whether it was stopped
+	private static final long MAX_WAIT_NANOS = 10_000_000L;
+
+	private Signaler signaler;
+	private Receiver synthesizer;
+	private Thread thread;
+	private volatile boolean playing;
+
+	/**
+	 * Creates a player
+	 * @param signaler signaler to send the notes of the file to
+	 * @param synthesizer receiver to send every channel message
+	 * of the file to, to be heard, or null to only show them
+	 */
+	public StreamingPlayer(Signaler signaler, Receiver synthesizer)
+	{
+		this.signaler = signaler;
+		this.synthesizer = synthesizer;
+	}
+
+	/**
+	 * Stops anything playing, then starts playing a file from its start
+	 * @param file Standard MIDI File to play
+	 */
+	public void play(File file) throws IOException, InvalidMidiDataException
+	{
+		play(file, null);
+	}
+
+	/**
+	 * Stops anything playing, then starts playing a file from its start
+	 * @param file Standard MIDI File to play
+	 * @param ended run on the thread of the player once the whole file
+	 * has played, but not when stopped before, or null
+	 */
+	public synchronized void play(File file, Runnable ended) throws IOException, InvalidMidiDataException
+	{
+		MappedMidiFile midi = new MappedMidiFile(file);
+		stop();
+		playing = true;
+		thread = new Thread(() -> stream(midi.cursor(), ended), "vismid-stream");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops playing, releasing every note still held by the synthesizer
+	 */
+	public synchronized void stop()
+	{
+		playing = false;
+		if(thread == null)
+			return;
+		LockSupport.unpark(thread);
+		try
+		{
+			thread.join();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		thread = null;
+	}
+
+	/**
+	 * @return whether a file is being played
+	 */
+	public boolean isPlaying()
+	{
+		Thread t = thread;
+		return t != null && t.isAlive();
+	}
+
+	/**
+	 * Sends every event of a cursor when it becomes due,
+	 * then tells that the stream ended, unless stopped
+	 */
+	private void stream(MappedMidiFile.Cursor cursor, Runnable ended)
+	{
+		ShortMessage message = new ShortMessage();
+		long start = System.nanoTime();
+		while(playing && cursor.next())
+		{
+			long due = start + cursor.getMicros() * 1000;
+			long wait;
+			while(playing && (wait = due - System.nanoTime()) > 0)
+				LockSupport.parkNanos(Math.min(wait, MAX_WAIT_NANOS));
+			if(!playing)
+				break;
+			try
+			{
+				message.setMessage(cursor.getStatus(), cursor.getData1(), cursor.getData2());
+			}
+			catch(InvalidMidiDataException e)
+			{
+				//The cursor only gives out channel messages
+				continue;
+			}
+			if(synthesizer != null)
+				synthesizer.send(message, -1);
+			signaler.send(message, -1);
+		}
+		releaseAll(message);
+		
+		//The end is only reached while playing; stop() clears it first
+		if(playing && ended != null)
+			ended.run();
+	}
+
+	/**
+	 * Silences every channel of the synthesizer, as
+	 * notes still held when stopping are never released
+	 */
+	private void releaseAll(ShortMessage message)
+	{
+		if(synthesizer == null)
+			return;
+		for(int channel = 0; channel < Signaler.CHANNELS_PER_PORT; channel++)
+		{
+			try
+			{
+				//All notes off
+				message.setMessage(ShortMessage.CONTROL_CHANGE, channel, 123, 0);
+				synthesizer.send(message, -1);
+			}
+			catch(InvalidMidiDataException e)
+			{
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package vismid;
+
+import java.util.Arrays;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
+
+/**
+ * TempoMap converts MIDI ticks of a Sequence into microseconds, following
+ * every tempo change of the sequence. This gives a deterministic clock for
+ * a song without having to play it through a Sequencer.
+ */
+public class TempoMap
+{
+	//Meta message type of a tempo change
+	public static final int TEMPO_META_TYPE = 0x51;
+
+	//Tempo of a sequence that does not specify one, 120 BPM
+	public static final int DEFAULT_MICROS_PER_QUARTER = 500_000;
+
+	//Tick at which each tempo segment starts
+	private long[] ticks;
+
+	//Time in microseconds at which each tempo segment starts
+	private long[] micros;
+
+	//Microseconds per tick within each tempo segment
+	private double[] microsPerTick;
+
+	/**
+	 * Builds the tempo map of a sequence
+	 * @param sequence sequence to read the tempo changes of
+	 */
+	public TempoMap(Sequence sequence)
+	{
+		float division = sequence.getDivisionType();
+		int resolution = sequence.getResolution();
+
+		//SMPTE based sequences have a fixed amount of ticks
+		//per second and ignore tempo changes
+		if(division != Sequence.PPQ)
+		{
+			ticks = new long[] { 0 };
+			micros = new long[] { 0 };
+			microsPerTick = new double[] { 1_000_000.0 / (division * resolution) };
+			return;
+		}
+
+		//Gather the tempo changes of every track as
+		//(tick, microseconds per quarter note) pairs
+		long[] changes = new long[8];
+		int count = 0;
+		for(Track track: sequence.getTracks())
+		{
+			for(int i = 0; i < track.size(); i++)
+			{
+				MidiEvent event = track.get(i);
+				int mpq = microsPerQuarter(event.getMessage());
+				if(mpq < 0)
+					continue;
+				if(count * 2 == changes.length)
+					changes = Arrays.copyOf(changes, changes.length * 2);
+				changes[count * 2] = event.getTick();
+				changes[count * 2 + 1] = mpq;
+				count++;
+			}
+		}
+		sortPairs(changes, count);
+
+		//The tempo is the default one until the first change
+		ticks = new long[count + 1];
+		micros = new long[count + 1];
+		microsPerTick = new double[count + 1];
+		microsPerTick[0] = (double) DEFAULT_MICROS_PER_QUARTER / resolution;
+
+		int segments = 1;
+		for(int i = 0; i < count; i++)
+		{
+			long tick = changes[i * 2];
+			double mpt = (double) changes[i * 2 + 1] / resolution;
+
+			//A change at the same tick as the previous one replaces it
+			if(tick == ticks[segments - 1])
+			{
+				microsPerTick[segments - 1] = mpt;
+				continue;
+			}
+			ticks[segments] = tick;
+			micros[segments] = toMicroseconds(tick, segments - 1);
+			microsPerTick[segments] = mpt;
+			segments++;
+		}
+
+		ticks = Arrays.copyOf(ticks, segments);
+		micros = Arrays.copyOf(micros, segments);
+		microsPerTick = Arrays.copyOf(microsPerTick, segments);
+	}
+
+	/**
+	 * Converts a tick of the sequence into the time in
+	 * microseconds at which it is played
+	 * @param tick tick of the sequence
+	 * @return time in microseconds since the start of the sequence
+	 */
+	public long toMicroseconds(long tick)
+	{
+		int i = Arrays.binarySearch(ticks, tick);
+
+		//Not an exact match, use the segment the tick falls in
+		if(i < 0)
+			i = -i - 2;
+		return toMicroseconds(tick, Math.max(i, 0));
+	}
+
+	/**
+	 * Converts a tick using the tempo of a specific segment
+	 */
+	private long toMicroseconds(long tick, int segment)
+	{
+		return micros[segment] + Math.round((tick - ticks[segment]) * microsPerTick[segment]);
+	}
+
+	/**
+	 * Gets the tempo carried by a message
+	 * @return microseconds per quarter note, or -1 if the
+	 * message is not a tempo change
+	 */
+	public static int microsPerQuarter(MidiMessage message)
+	{
+		if(!(message instanceof MetaMessage))
+			return -1;
+		MetaMessage meta = (MetaMessage) message;
+		if(meta.getType() != TEMPO_META_TYPE || meta.getData().length < 3)
+			return -1;
+		byte[] data = meta.getData();
+		return (data[0] & 0xFF) << 16 | (data[1] & 0xFF) << 8 | (data[2] & 0xFF);
+	}
+
+	/**
+	 * Sorts (tick, value) pairs by tick, keeping pairs with
+	 * the same tick in their original order
+	 */
+	private static void sortPairs(long[] pairs, int count)
+	{
+		//Tempo changes are few, an insertion sort is enough
+		for(int i = 1; i < count; i++)
+		{
+			long tick = pairs[i * 2];
+			long value = pairs[i * 2 + 1];
+			int j = i - 1;
+			while(j >= 0 && pairs[j * 2] > tick)
+			{
+				pairs[(j + 1) * 2] = pairs[j * 2];
+				pairs[(j + 1) * 2 + 1] = pairs[j * 2 + 1];
+				j--;
+			}
+			pairs[(j + 1) * 2] = tick;
+			pairs[(j + 1) * 2 + 1] = value;
+		}
+	}
+}
@@ -0,0 +1,303 @@
+package vismid;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * TileRenderer draws the responders of a canvas on several threads at
+ * once, so that large canvases are not limited to a single core.
+ *
+ * The canvas is split into square tiles, each with an image of its own.
+ * The tiles are drawn in parallel on a ForkJoinPool, every tile drawing
+ * only the branches of the snapshot whose bounds intersect it, and are
+ * then copied in order onto the graphical context of the frame. Tiles
+ * that no responder reaches are filled with the background directly.
+ *
+ * The tasks drawing the tiles are created along with the tiles and reused
+ * for every frame, so drawing a frame allocates nothing.
+ */
+public class TileRenderer
+{
+	//Width and height of a tile in pixels
+	public static final int DEFAULT_TILE_SIZE = 256;
+
+	private static final AffineTransform IDENTITY = new AffineTransform();
+
+	//Rendering hints passed on from the graphical context of the frame
+	//to the tiles, one by one as copying them all would allocate
+	private static final RenderingHints.Key[] HINT_KEYS = {
+			RenderingHints.KEY_ANTIALIASING,
+			RenderingHints.KEY_RENDERING,
+			RenderingHints.KEY_INTERPOLATION,
+			RenderingHints.KEY_ALPHA_INTERPOLATION,
+			RenderingHints.KEY_COLOR_RENDERING,
+			RenderingHints.KEY_STROKE_CONTROL,
+			RenderingHints.KEY_TEXT_ANTIALIASING };
+
+	private ForkJoinPool pool;
+	private int tileSize;
+
+	//Tiles in rows, with a graphical context each, created
+	//again when the canvas changes size
+	private BufferedImage[] tiles = new BufferedImage[0];
+	private Graphics2D[] graphics = new Graphics2D[0];
+
+	//Transform from world coordinates to the pixels of each tile, and
+	//the visible area of each tile, reused from frame to frame
+	private AffineTransform[] bases = new AffineTransform[0];
+	private Rectangle2D.Double[] visibles = new Rectangle2D.Double[0];
+
+	//Clip of each tile, only set on its context when it changes
+	//as Java2D allocates for every clip set
+	private Rectangle[] clips = new Rectangle[0];
+	private int columns;
+	private int rows;
+	private int width;
+	private int height;
+
+	//Whether each tile was drawn for the current frame, rather than
+	//being left to the background
+	private boolean[] drawn = new boolean[0];
+
+	//Task drawing every tile, splitting into tasks for fewer tiles
+	private TileTask root = new TileTask(0, 0);
+
+	//State of the frame being drawn, read by the tasks
+	private SceneSnapshot scene;
+	private RenderQuality quality;
+	private AffineTransform toCanvas;
+	private AffineTransform fromCanvas = new AffineTransform();
+	private Color background;
+	private Object[] hints = new Object[HINT_KEYS.length];
+	private Rectangle clip = new Rectangle();
+	private Rectangle clipBounds = new Rectangle();
+
+	/**
+	 * Creates a renderer with the default tile size
+	 * @param threads amount of threads drawing tiles
+	 */
+	public TileRenderer(int threads)
+	{
+		this(threads, DEFAULT_TILE_SIZE);
+	}
+
+	/**
+	 * Creates a renderer
+	 * @param threads amount of threads drawing tiles
+	 * @param tileSize width and height of a tile in pixels
+	 */
+	public TileRenderer(int threads, int tileSize)
+	{
+		if(tileSize <= 0)
+			throw new IllegalArgumentException("Tile size must be positive: " + tileSize);
+		this.pool = new ForkJoinPool(threads);
+		this.tileSize = tileSize;
+	}
+
+	/**
+	 * Draws the responders onto a graphical context, within its clip
+	 * @param g2d graphical context to draw on
+	 * @param width width of the area to draw on
+	 * @param height height of the area to draw on
+	 * @param toCanvas maps world coordinates to pixels of the area
+	 * @param scene snapshot of the scene to draw
+	 * @param quality quality to draw at
+	 * @param background color of the area behind the responders
+	 */
+	public void render(Graphics2D g2d, int width, int height, AffineTransform toCanvas,
+			SceneSnapshot scene, RenderQuality quality, Color background)
+	{
+		resize(width, height);
+		clip.setBounds(0, 0, width, height);
+		clipBounds.setBounds(clip);
+		g2d.getClipBounds(clipBounds);
+		Rectangle.intersect(clip, clipBounds, clip);
+		if(clip.isEmpty())
+			return;
+
+		try
+		{
+			fromCanvas.setTransform(toCanvas);
+			fromCanvas.invert();
+		}
+		catch(NoninvertibleTransformException e)
+		{
+			throw new IllegalArgumentException("Transform of the canvas is not invertible", e);
+		}
+		this.scene = scene;
+		this.quality = quality;
+		this.toCanvas = toCanvas;
+		this.background = background;
+		for(int k = 0; k < HINT_KEYS.length; k++)
+			hints[k] = g2d.getRenderingHint(HINT_KEYS[k]);
+		root.reset();
+		pool.invoke(root);
+
+		//Graphical contexts are not thread safe, so the
+		//tiles are copied onto it from this thread only
+		g2d.setColor(background);
+		for(int i = 0; i < tiles.length; i++)
+		{
+			int x = (i % columns) * tileSize;
+			int y = (i / columns) * tileSize;
+			if(!intersectsClip(x, y))
+				continue;
+			if(drawn[i])
+				g2d.drawImage(tiles[i], x, y, null);
+			else
+				g2d.fillRect(x, y, tileSize, tileSize);
+		}
+		this.scene = null;
+	}
+
+	/**
+	 * Draws a tile on the calling thread
+	 */
+	private void renderTile(int i)
+	{
+		int x = (i % columns) * tileSize;
+		int y = (i / columns) * tileSize;
+		drawn[i] = false;
+		if(!intersectsClip(x, y))
+			return;
+
+		//Area of the tile in world coordinates
+		Rectangle2D.Double area = visibles[i];
+		SceneNode.transformBounds(fromCanvas, x, y, tileSize, tileSize, area);
+		double minX = area.x;
+		double minY = area.y;
+		double w = area.width;
+		double h = area.height;
+		if(!scene.intersects(minX, minY, w, h))
+			return;
+
+		drawn[i] = true;
+		Graphics2D tg = graphics[i];
+		tg.setTransform(IDENTITY);
+		for(int k = 0; k < HINT_KEYS.length; k++)
+			if(hints[k] != null)
+				tg.setRenderingHint(HINT_KEYS[k], hints[k]);
+		Rectangle tileClip = clips[i];
+		if(tileClip.x != clip.x - x || tileClip.y != clip.y - y 
+				|| tileClip.width != clip.width || tileClip.height != clip.height)
+		{
+			tileClip.setBounds(clip.x - x, clip.y - y, clip.width, clip.height);
+			tg.setClip(tileClip);
+		}
+		tg.setColor(background);
+		tg.fillRect(0, 0, tileSize, tileSize);
+
+		AffineTransform base = bases[i];
+		base.setToTranslation(-x, -y);
+		base.concatenate(toCanvas);
+		scene.draw(tg, base, minX, minY, w, h, area, quality, null);
+	}
+
+	private boolean intersectsClip(int x, int y)
+	{
+		return clip.intersects(x, y, tileSize, tileSize);
+	}
+
+	/**
+	 * Creates the tiles covering an area of a new size
+	 */
+	private void resize(int width, int height)
+	{
+		if(width == this.width && height == this.height)
+			return;
+		for(Graphics2D g: graphics)
+			g.dispose();
+
+		this.width = width;
+		this.height = height;
+		columns = (width + tileSize - 1) / tileSize;
+		rows = (height + tileSize - 1) / tileSize;
+		tiles = new BufferedImage[columns * rows];
+		graphics = new Graphics2D[tiles.length];
+		drawn = new boolean[tiles.length];
+		bases = new AffineTransform[tiles.length];
+		visibles = new Rectangle2D.Double[tiles.length];
+		clips = new Rectangle[tiles.length];
+		for(int i = 0; i < tiles.length; i++)
+		{
+			tiles[i] = new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_RGB);
+			graphics[i] = tiles[i].createGraphics();
+			bases[i] = new AffineTransform();
+			visibles[i] = new Rectangle2D.Double();
+			clips[i] = new Rectangle();
+			graphics[i].setClip(clips[i]);
+		}
+		root = new TileTask(0, tiles.length);
+	}
+
+	/**
+	 * Stops the threads drawing tiles
+	 */
+	public void shutdown()
+	{
+		pool.shutdown();
+	}
+
+	/**
+	 * Draws a range of tiles, splitting it in halves
+	 * until it is small enough
+	 */
+	@SuppressWarnings("serial")
+	private class TileTask extends RecursiveAction
+	{
+		//Amount of tiles a task draws without splitting
+		private static final int THRESHOLD = 2;
+
+		private int from;
+		private int to;
+
+		//Tasks for either half, null if small enough
+		private TileTask first;
+		private TileTask second;
+
+		TileTask(int from, int to)
+		{
+			this.from = from;
+			this.to = to;
+			if(to - from > THRESHOLD)
+			{
+				int mid = (from + to) >>> 1;
+				first = new TileTask(from, mid);
+				second = new TileTask(mid, to);
+			}
+		}
+
+		/**
+		 * Readies this task and its halves to be run again
+		 */
+		void reset()
+		{
+			reinitialize();
+			if(first != null)
+			{
+				first.reset();
+				second.reset();
+			}
+		}
+
+		@Override
+		protected void compute()
+		{
+			if(first == null)
+			{
+				for(int i = from; i < to; i++)
+					renderTile(i);
+				return;
+			}
+			invokeAll(first, second);
+		}
+	}
+}